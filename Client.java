@@ -1,21 +1,36 @@
 import java.io.*;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * public Client is used to acted as a chat room client.
  * It is the entry of client program.
- * 
+ * <br>Additional feature: "java Client load" starts the headless LoadGenerator instead of the interactive client.
+ *
  * @author Zhiyong Liu
  */
 public class Client {
 
     /**
      * The entry of Client Program.
-     * 
+     *
      * @param args the information from console
      * @throws Exception if some exception occurs
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("load")) {
+            LoadGenerator.main(args);
+            return;
+        }
         ClientInstance client = new ClientInstance();
         client.start();
     }
@@ -23,105 +38,675 @@ public class Client {
 
 /**
  * ClientInstance is used by Client.
- * <br>It contains members: WELCOME, ACCEPT, socket, in, out, isServerConnected, isAllowedToChat,
- * and methods: start(), establishConnection(), getClientInput(String hint), profileSetUp(),
- * handleOutgoingMessages(), handleIncomingMessages(), closeConnection().
+ * <br>Additional feature: When the connection is lost, e.g. because the server restarts, the client reconnects
+ * by itself and resumes its session with the token the server gave it. It gets back its username and room and only
+ * the messages it missed. The attempts are spread with full jitter exponential backoff, so the clients of a
+ * restarted server do not all come back at the same moment.
+ * <br>Additional feature: The connection is one non-blocking SocketChannel driven by a single I/O thread with a
+ * selector. The thread decodes the lines or frames as they arrive, answers heartbeats, sends what the user typed
+ * and reconnects, so nothing else ever waits for the socket. The console is read by one reader for the whole
+ * program, and the lines for the user are printed by a ConsoleRenderer in batches, so a flood of broadcasts costs
+ * one console write per batch instead of one per line.
+ * <br>The lines of the server it shares with the LoadGenerator are in ClientProtocol.
+ * <br>It contains members: QUIT, RESUME, RESUME_ACCEPT, TOKEN,
+ * USE_BINARY, COMPRESSION, RECONNECT_BASE_MILLIS, RECONNECT_MAX_MILLIS, GREETING, NEGOTIATING, BINARY_GREETING, READY,
+ * CONSOLE, READ_BUFFER_SIZE, MAX_MESSAGE_BYTES, selector, channel, tls, readBuffer, outgoing, pendingWrites,
+ * decompressor, isBinary, step, isReconnecting, isAllowedToChat, isQuitting, serverAddress, clientName,
+ * sessionToken, lastSequence, isResuming, reconnectAttempts, reconnectAtMillis, renderer,
+ * and methods: start(), establishConnection(), startConnection(), runLoop(), read(), decode(), handleFrame(byte type,
+ * byte[] payload), handleMessage(String line, boolean isControl), sendRequest(), send(String message), sendOutgoing(), flush(),
+ * ensureRoom(int room), disconnected(String reason), scheduleReconnect(), connectAgain(), finishConnect(),
+ * closeChannel(), getClientInput(String hint), filter(String line, boolean isControl), keepToken(String line),
+ * handleOutgoingMessages(), closeConnection().
  */
 class ClientInstance {
 
     /**
      * The port number of client.
      */
-    private static final int PORT_NUMBER = 4396;
+    private static final int PORT_NUMBER = Integer.getInteger("chatroom.port", 4396);
+
+    /**
+     * The command which leaves the chat room.
+     */
+    static final String QUIT = "\\quit";
+
+    /**
+     * The request for a resumable session, followed by the token and the last sequence number on a reconnect.
+     */
+    static final String RESUME = "\\resume";
+
+    /**
+     * The answer of the server to the request for a resumable session.
+     */
+    static final String RESUME_ACCEPT = "Your session can be resumed after a reconnect.";
+
+    /**
+     * The line which carries the token of the session and the sequence number the client has caught up to.
+     */
+    static final String TOKEN = "\\token";
+
+    /**
+     * To denote whether the client asks the server for binary frames (-Dchatroom.binary=true).
+     */
+    private static final boolean USE_BINARY = Boolean.getBoolean("chatroom.binary");
+
+    /**
+     * The compression the client asks for with binary frames (-Dchatroom.compression=deflate or deflate-shared).
+     */
+    private static final String COMPRESSION = System.getProperty("chatroom.compression", "");
+
+    /**
+     * The ceiling of the wait before the first reconnect attempt; it doubles with every failed attempt.
+     */
+    private static final long RECONNECT_BASE_MILLIS = Long.getLong("chatroom.reconnectBaseMillis", 500);
+
+    /**
+     * The largest ceiling of the wait before a reconnect attempt.
+     */
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("chatroom.reconnectMaxMillis", 30000);
+
+    /**
+     * The step of a new connection when it waits for the greeting of the server.
+     */
+    private static final int GREETING = 0;
+
+    /**
+     * The step of a new connection when it waits for the answer to the request for binary frames.
+     */
+    private static final int NEGOTIATING = 1;
+
+    /**
+     * The step of a new connection when it waits for the greeting the server sends again as a frame.
+     */
+    private static final int BINARY_GREETING = 2;
+
+    /**
+     * The step of a connection which has made its first request; the messages are for the user from now on.
+     */
+    private static final int READY = 3;
+
+    /**
+     * The only reader of the console. A reader per line could keep buffered input which the next one never sees.
+     */
+    private static final BufferedReader CONSOLE = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+    /**
+     * The size the read buffer starts with.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The largest line or frame the client accepts.
+     */
+    private static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * The selector of the I/O thread.
+     */
+    private Selector selector;
+
+    /**
+     * The channel to the server, or null while the client is disconnected. It is only used by the I/O thread
+     * after the first connection.
+     */
+    private SocketChannel channel = null;
+
+    /**
+     * The TLS of the connection, or null for plain text.
+     */
+    private TlsChannel tls = null;
 
     /**
-     * The information of welcome.
+     * The bytes which have been read and not decoded yet, in write mode. It grows for a longer line or frame.
      */
-    private static final String WELCOME = "Please type your username.";
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
 
     /**
-     * The information of accept.
+     * The lines the user typed, handed from the console to the I/O thread.
      */
-    private static final String ACCEPT = "Your username is accepted. Please type messages";
+    private final Queue<String> outgoing = new ConcurrentLinkedQueue<String>();
 
     /**
-     * The socket of client.
+     * The encoded lines or frames which are not written yet. It is only used by the I/O thread.
      */
-    private Socket socket;
+    private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<ByteBuffer>();
 
     /**
-     * The input stream of client.
+     * The decompressor of the COMPRESSED frames, or null if the server does not compress.
      */
-    private BufferedReader in;
+    private FrameCompressor.Decompressor decompressor = null;
 
     /**
-     * The outout stream of client.
+     * To denote whether the client speaks binary frames with the server.
      */
-    private PrintWriter out;
+    private boolean isBinary = false;
 
     /**
-     * To denote whether client connects to the server.
+     * The step of the connection, from GREETING to READY.
      */
-    private boolean isServerConnected = false;
+    private int step = GREETING;
+
+    /**
+     * To denote whether the client lost the connection and has not made its first request on a new one yet.
+     * It is written by the I/O thread and read by the console.
+     */
+    private volatile boolean isReconnecting = false;
 
     /**
      * To denote whether client is allowed to chat.
      */
     private boolean isAllowedToChat = false;
 
+    /**
+     * To denote whether the user asked to quit, so a closed connection is not reconnected.
+     */
+    private volatile boolean isQuitting = false;
+
+    /**
+     * The address of the server, used again to reconnect.
+     */
+    private String serverAddress;
+
+    /**
+     * The username the client entered the chat room with, taken from the token of the session.
+     */
+    private String clientName = null;
+
+    /**
+     * The token of the session, or null until the server sends one.
+     */
+    private String sessionToken = null;
+
+    /**
+     * The sequence number of the newest message the client got.
+     */
+    private long lastSequence = 0;
+
+    /**
+     * To denote whether the client sends the username by itself when the server asks for it after a reconnect.
+     */
+    private boolean isResuming = false;
+
+    /**
+     * The number of reconnect attempts since the last message from the server.
+     */
+    private int reconnectAttempts = 0;
+
+    /**
+     * The time of the next reconnect attempt, or 0 if none is scheduled.
+     */
+    private long reconnectAtMillis = 0;
+
+    /**
+     * The printer of the lines for the user.
+     */
+    private final ConsoleRenderer renderer = new ConsoleRenderer();
+
     /**
      * Start the whole process of client program.
+     * The I/O thread takes over the connection, and the calling thread reads the console.
      */
     public void start() {
         establishConnection();
-        handleIncomingMessages();
+        renderer.start();
+        Thread ioThread = new Thread(new Runnable() {
+            public void run() {
+                runLoop();
+            }
+        }, "client-io");
+        ioThread.start();
         handleOutgoingMessages();
     }
 
     /**
      * Establish the connection to the server.
-     * <br>Additional feature: it can ask user to retype the IP address in two situations:
-     * <br>1. The input IP address is not valid.
-     * <br>2. Server goes offline when user inputs username.
+     * <br>Additional feature: it can ask user to retype the IP address if the server can not be reached.
+     * <br>Additional feature: With -Dchatroom.tls=true the connection is encrypted, see startConnection().
      */
     private void establishConnection() {
-        boolean isEnterChatRoom = false;
-        while (!isEnterChatRoom) {
-            String serverAddress = getClientInput("What is the address of the server that you wish to connect to?");
+        try {
+            selector = Selector.open();
+        }
+        catch (IOException e) {
+            System.err.println("IOException in opening the selector: " + e.getMessage());
+            System.exit(1);
+        }
+        boolean isConnected = false;
+        while (!isConnected) {
+            serverAddress = getClientInput("What is the address of the server that you wish to connect to?");
+            if (serverAddress == null) {
+                System.exit(0);
+            }
             try {
-                socket = new Socket(serverAddress, PORT_NUMBER);
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-                isServerConnected = true;
-                profileSetUp();
-                isEnterChatRoom = true;
+                channel = SocketChannel.open(new InetSocketAddress(serverAddress, PORT_NUMBER));
+                startConnection();
+                isConnected = true;
             }
             catch (IOException e) {
+                closeChannel();
                 System.err.println("IOException in connection: " + e.getMessage());
             }
-            catch (NullPointerException e) {
-                //Catch the NullPointerException in profileSetUp().
-                System.err.println("NullPointerException in profileSetUP(): " + e.getMessage());
-                System.err.println("The server may has been shut down.");
+            catch (UnresolvedAddressException e) {
+                closeChannel();
+                System.err.println("IOException in connection: unknown host " + serverAddress);
             }
         }
     }
 
+    /**
+     * Prepare a channel which has just connected: make it non-blocking, wrap it in TLS if it is turned on,
+     * and wait for the greeting of the server. The TLS handshake starts with the first flush.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void startConnection() throws IOException {
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        tls = TlsContext.ENABLED ? new TlsChannel(TlsContext.clientEngine(serverAddress, PORT_NUMBER)) : null;
+        readBuffer.clear();
+        pendingWrites.clear();
+        decompressor = null;
+        isBinary = false;
+        step = GREETING;
+        SelectionKey key = channel.keyFor(selector);
+        if (key == null) {
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+        else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        flush();
+    }
+
+    /**
+     * The loop of the I/O thread. Every round handles the ready channel, a due reconnect and the lines the user
+     * typed, and then hands the lines for the user to the renderer at once.
+     */
+    private void runLoop() {
+        while (!(isQuitting && channel == null)) {
+            try {
+                long timeout = reconnectAtMillis > 0 ? Math.max(1, reconnectAtMillis - System.currentTimeMillis()) : 0;
+                selector.select(timeout);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isConnectable()) {
+                        finishConnect();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush();
+                    }
+                }
+                if (reconnectAtMillis > 0 && System.currentTimeMillis() >= reconnectAtMillis) {
+                    connectAgain();
+                }
+                sendOutgoing();
+            }
+            catch (IOException e) {
+                disconnected(e.getMessage());
+            }
+            renderer.flush();
+        }
+        closeConnection();
+    }
+
+    /**
+     * Read what has arrived and handle the complete lines or frames. A TLS connection also does the steps
+     * of the handshake and writes what the handshake held back.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void read() throws IOException {
+        int n;
+        if (tls == null) {
+            ensureRoom(1);
+            n = channel.read(readBuffer);
+            decode();
+        }
+        else {
+            n = tls.read(channel);
+            int produced;
+            do {
+                ensureRoom(TlsContext.APPLICATION_SIZE);
+                produced = tls.unwrap(readBuffer);
+                decode();
+            } while (produced > 0);
+            if (produced < 0) {
+                n = -1;
+            }
+            else {
+                flush();
+            }
+        }
+        if (n < 0) {
+            disconnected(null);
+        }
+    }
+
+    /**
+     * Handle every complete line or frame in the read buffer and keep the rest for the next read.
+     * <br>The client may switch to binary frames after any line, so the kind is checked for each message.
+     *
+     * @throws IOException if a frame is invalid
+     */
+    private void decode() throws IOException {
+        readBuffer.flip();
+        byte[] array = readBuffer.array();
+        while (channel != null && readBuffer.hasRemaining()) {
+            int start = readBuffer.position();
+            if (!isBinary) {
+                int end = start;
+                while (end < readBuffer.limit() && array[end] != '\n') {
+                    end++;
+                }
+                if (end == readBuffer.limit()) {
+                    break;
+                }
+                readBuffer.position(end + 1);
+                int length = end > start && array[end - 1] == '\r' ? end - 1 - start : end - start;
+                // The server never lets chat text start a line, so every line may carry a control line.
+                handleMessage(new String(array, start, length, StandardCharsets.UTF_8), true);
+                continue;
+            }
+            if (readBuffer.remaining() < FrameCodec.HEADER_LENGTH) {
+                break;
+            }
+            int length = readBuffer.getInt(start);
+            if (length < 0 || length > MAX_MESSAGE_BYTES) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            if (readBuffer.remaining() < FrameCodec.HEADER_LENGTH + length) {
+                break;
+            }
+            byte type = readBuffer.get(start + 4);
+            byte[] payload = new byte[length];
+            readBuffer.position(start + FrameCodec.HEADER_LENGTH);
+            readBuffer.get(payload);
+            handleFrame(type, payload);
+        }
+        readBuffer.compact();
+        if (!readBuffer.hasRemaining() && readBuffer.capacity() >= MAX_MESSAGE_BYTES) {
+            throw new IOException("The line from the server is too long");
+        }
+    }
+
+    /**
+     * Handle one frame. The frames in a COMPRESSED frame are handled one by one.
+     *
+     * @param type the type of the frame
+     * @param payload the payload
+     * @throws IOException if a COMPRESSED frame is invalid
+     */
+    private void handleFrame(byte type, byte[] payload) throws IOException {
+        if (type != FrameCodec.COMPRESSED || decompressor == null) {
+            handleMessage(new String(payload, StandardCharsets.UTF_8), type == FrameCodec.SYSTEM);
+            return;
+        }
+        ByteBuffer frames = ByteBuffer.wrap(decompressor.inflate(payload));
+        while (frames.remaining() >= FrameCodec.HEADER_LENGTH) {
+            int length = frames.getInt();
+            byte inner = frames.get();
+            if (length < 0 || length > frames.remaining()) {
+                throw new IOException("Invalid compressed frame");
+            }
+            handleMessage(new String(frames.array(), frames.position(), length, StandardCharsets.UTF_8), inner == FrameCodec.SYSTEM);
+            frames.position(frames.position() + length);
+        }
+    }
+
+    /**
+     * Handle one message from the server according to the step of the connection.
+     * <br>A new connection skips the greeting, asks for binary frames if the user wants them, and makes its first
+     * request. Everything after that goes to the user, apart from the lines filter(String line, boolean isControl) takes away.
+     *
+     * @param line the message
+     * @param isControl whether the message comes from the server itself, i.e. it is a text line or a SYSTEM frame,
+     * and may be a control line; a CHAT or EMOJI frame carries the text of a user
+     */
+    private void handleMessage(String line, boolean isControl) {
+        reconnectAttempts = 0;
+        switch (step) {
+            case GREETING:
+                if (USE_BINARY) {
+                    send(COMPRESSION.isEmpty() ? FrameCodec.BINARY_REQUEST : FrameCodec.BINARY_REQUEST + " " + COMPRESSION);
+                    step = NEGOTIATING;
+                }
+                else {
+                    sendRequest();
+                }
+                return;
+            case NEGOTIATING:
+                if (!COMPRESSION.isEmpty() && line.equals(FrameCodec.BINARY_ACCEPT + " " + COMPRESSION)) {
+                    decompressor = new FrameCompressor.Decompressor(COMPRESSION);
+                    line = FrameCodec.BINARY_ACCEPT;
+                }
+                if (line.equals(FrameCodec.BINARY_ACCEPT)) {
+                    isBinary = true;
+                    step = BINARY_GREETING;
+                    return;
+                }
+                System.err.println("The server does not support binary frames.");
+                // The server took the request as a username and asks again.
+                sendRequest();
+                break;
+            case BINARY_GREETING:
+                sendRequest();
+                return;
+            default:
+                break;
+        }
+        line = filter(line, isControl);
+        if (line == null) {
+            return;
+        }
+        if (line.startsWith(ClientProtocol.ACCEPT) && !isAllowedToChat) {
+            isAllowedToChat = true;
+            renderer.add(ClientProtocol.ACCEPT);
+            renderer.add("------ Command List: \\help   Quit: \\quit ------");
+            return;
+        }
+        renderer.add(line);
+    }
+
+    /**
+     * Make the first request of a connection: resume the session if the server gave a token, or only ask for one.
+     * The connection is ready for the lines the user types after it.
+     */
+    private void sendRequest() {
+        send(sessionToken == null ? RESUME : RESUME + " " + sessionToken + " " + lastSequence);
+        step = READY;
+        isReconnecting = false;
+    }
+
+    /**
+     * Encode a message, as a line or as a frame, and queue it for the next flush.
+     * A message starting with a backslash is a command.
+     *
+     * @param message the message to send
+     */
+    private void send(String message) {
+        if (!isBinary) {
+            pendingWrites.add(ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)));
+            return;
+        }
+        pendingWrites.add(FrameCodec.encode(message.startsWith("\\") ? FrameCodec.COMMAND : FrameCodec.CHAT, message));
+    }
+
+    /**
+     * Send the lines the user typed, once the connection is ready, and write everything queued.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void sendOutgoing() throws IOException {
+        if (channel == null || !channel.isConnected()) {
+            return;
+        }
+        if (step == READY) {
+            String message;
+            while ((message = outgoing.poll()) != null) {
+                send(message);
+            }
+        }
+        if (!pendingWrites.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the queued lines or frames as far as the socket buffer takes them, with one gathering write.
+     * The channel waits for OP_WRITE only while something is left; a TLS handshake holds the plain text back
+     * until it is done, and the next read writes it.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void flush() throws IOException {
+        if (channel == null || !channel.isConnected()) {
+            return;
+        }
+        ByteBuffer[] batch = pendingWrites.toArray(new ByteBuffer[0]);
+        if (tls != null) {
+            tls.write(channel, batch, 0, batch.length);
+        }
+        else if (batch.length > 0) {
+            channel.write(batch);
+        }
+        while (!pendingWrites.isEmpty() && !pendingWrites.peek().hasRemaining()) {
+            pendingWrites.poll();
+        }
+        boolean isPending = tls != null
+                ? tls.hasPendingOutput() || (!tls.isHandshaking() && !pendingWrites.isEmpty())
+                : !pendingWrites.isEmpty();
+        SelectionKey key = channel.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(isPending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Make sure the read buffer has room for some more bytes, growing it for a long line or frame.
+     *
+     * @param room the number of bytes
+     */
+    private void ensureRoom(int room) {
+        if (readBuffer.remaining() >= room) {
+            return;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(readBuffer.capacity() * 2, readBuffer.position() + room));
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+    }
+
+    /**
+     * Handle a lost connection: close it, and reconnect unless the user asked to quit.
+     *
+     * @param reason the error, or null if the server closed the connection
+     */
+    private void disconnected(String reason) {
+        closeChannel();
+        if (isQuitting) {
+            return;
+        }
+        isReconnecting = true;
+        if (reason != null) {
+            System.err.println("Exception in the connection: " + reason);
+        }
+        System.err.println("Disconnected from the server, reconnecting...");
+        scheduleReconnect();
+    }
+
+    /**
+     * Schedule the next reconnect attempt after a random wait between zero and a ceiling, which starts at
+     * RECONNECT_BASE_MILLIS and doubles with every attempt up to RECONNECT_MAX_MILLIS.
+     */
+    private void scheduleReconnect() {
+        long ceiling = Math.min(RECONNECT_MAX_MILLIS, RECONNECT_BASE_MILLIS << Math.min(reconnectAttempts, 16));
+        reconnectAttempts++;
+        reconnectAtMillis = System.currentTimeMillis() + 1 + ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Start a reconnect attempt. The connect finishes later in finishConnect().
+     */
+    private void connectAgain() {
+        reconnectAtMillis = 0;
+        isResuming = true;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(new InetSocketAddress(serverAddress, PORT_NUMBER))) {
+                finishConnect();
+            }
+            else {
+                channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        }
+        catch (IOException | UnresolvedAddressException e) {
+            closeChannel();
+            System.err.println("Reconnect attempt " + reconnectAttempts + " failed: " + e.getMessage());
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Finish a reconnect attempt, or schedule the next one if it failed.
+     */
+    private void finishConnect() {
+        try {
+            channel.finishConnect();
+            startConnection();
+            System.err.println("Reconnected to the server.");
+        }
+        catch (IOException e) {
+            closeChannel();
+            System.err.println("Reconnect attempt " + reconnectAttempts + " failed: " + e.getMessage());
+            scheduleReconnect();
+        }
+    }
+
+    /**
+     * Close the channel to the server, if there is one.
+     */
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        if (tls != null) {
+            tls.close(channel);
+            tls = null;
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println("Exception in closing the channel: " + e.getMessage());
+        }
+        channel = null;
+    }
+
     /**
      * Handle the input from the user.
-     * 
+     *
      * @param hint The hint information for the input.
-     * @return String
+     * @return String or null at the end of the input
      */
     private String getClientInput(String hint) {
         String message = null;
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
             if (hint != null) {
                System.out.println(hint);
             }
-            message = reader.readLine();
-        } 
+            message = CONSOLE.readLine();
+        }
         catch (IOException e) {
             System.err.println("Exception in getClientInput():" + e.getMessage());
         }
@@ -129,88 +714,235 @@ class ClientInstance {
     }
 
     /**
-     * Set the name information before being allowed to chat.
-     * <br>Additional feature: it can test whether the server is offline when user inputs name.
-     * If server goes offline, after user input username, it will throw NullPointerException to the establishConnection()
-     * and ask user to retype the ip address they want to connect.
+     * Handle the lines of the server which are meant for the client program, not for the user.
+     * <br>A heartbeat is answered, a token is kept, and the sequence number in front of a broadcast is kept and
+     * taken away. The token starts with the username in base64, which is sent again by itself after a reconnect
+     * which could not resume the session.
+     * <br>The control lines are only taken from the server itself, never from the text of a user in a CHAT frame,
+     * and a control line which can not be parsed is dropped instead of ending the I/O thread. The sequence number
+     * is only taken from the start of a line, where the server puts it in front of a broadcast.
+     *
+     * @param line the line from the server
+     * @param isControl whether the line comes from the server itself and may be a control line
+     * @return String the line to show to the user, or null if there is nothing to show
      */
-    private void profileSetUp() throws NullPointerException {
-        String line = null;
-        while (!isAllowedToChat) {
+    private String filter(String line, boolean isControl) {
+        if (isControl && ClientProtocol.HEARTBEAT.equals(line)) {
+            send(ClientProtocol.HEARTBEAT_REPLY);
+            return null;
+        }
+        if (isControl && RESUME_ACCEPT.equals(line)) {
+            return null;
+        }
+        if (isControl && line.startsWith(TOKEN + " ")) {
+            keepToken(line);
+            return null;
+        }
+        int space = line.indexOf(' ');
+        if (line.startsWith("#") && space > 1) {
             try {
-                line = in.readLine();
-            }
-            catch (IOException e) {
-                System.err.println("Exception in profiles set up:" + e.getMessage());
+                lastSequence = Math.max(lastSequence, Long.parseLong(line.substring(1, space)));
+                return line.substring(space + 1);
             }
-            if (line.startsWith(WELCOME)) {
-                // If server is offline at this time, it will throw NullPointerException.
-                out.println(getClientInput(WELCOME));
-            }
-            else if (line.startsWith(ACCEPT)) {
-                isAllowedToChat = true;
-                System.out.println(ACCEPT);
-                System.out.println("------ Command List: \\help   Quit: \\quit ------");
-            }
-            else {
-                System.out.println(line);
+            catch (NumberFormatException e) {
+                return line;
             }
         }
+        if (isControl && isResuming && line.startsWith(ClientProtocol.WELCOME) && clientName != null) {
+            isResuming = false;
+            send(clientName);
+            return null;
+        }
+        return line;
     }
 
     /**
-     * Send the outgoing messages to server.
+     * Keep the token of the session, the sequence number the client has caught up to, and the username in the token.
+     * Nothing is kept unless the whole line is valid.
+     *
+     * @param line the token line, TOKEN followed by the token and the sequence number
      */
-    private void handleOutgoingMessages() {
-        Thread sendThread = new Thread(new Runnable() {
-            public void run() {
-                while (isServerConnected) {
-                    out.println(getClientInput(null));
-                }
-            }
-        });
-        sendThread.start();
+    private void keepToken(String line) {
+        String[] parts = line.split(" ");
+        if (parts.length != 3) {
+            System.err.println("Invalid token line from the server");
+            return;
+        }
+        try {
+            long sequence = Long.parseLong(parts[2]);
+            String name = parts[1].substring(0, Math.max(0, parts[1].indexOf('.')));
+            String decoded = new String(Base64.getUrlDecoder().decode(name), StandardCharsets.UTF_8);
+            sessionToken = parts[1];
+            lastSequence = Math.max(lastSequence, sequence);
+            clientName = decoded;
+        }
+        catch (IllegalArgumentException e) {
+            // NumberFormatException is one too.
+            System.err.println("Invalid token line from the server: " + e.getMessage());
+        }
     }
 
     /**
-     * Receive the incoming messages from server.
+     * Hand the lines the user types to the I/O thread.
+     * The lines typed before the first connection is ready wait for it.
+     * <br>Additional feature: A message typed while the client reconnects is not sent, and the user is told so.
+     * The end of the input quits, like \quit.
      */
-    private void handleIncomingMessages() {
-        Thread listenThread = new Thread(new Runnable() {
-            public void run() {
-                while (isServerConnected) {
-                    String line = null;
-                    try {
-                        line = in.readLine();
-                        if (line == null) {
-                            isServerConnected = false;
-                            System.err.println("Disconnected from the server.");
-                            closeConnection();
-                        }
-                        System.out.println(line);
-                    }
-                    catch (IOException e) {
-                        isServerConnected = false;
-                        System.err.println("Exception in handleIncominMgessages():" + e.getMessage());
-                        break;
-                    }
+    private void handleOutgoingMessages() {
+        while (!isQuitting) {
+            String message = getClientInput(null);
+            if (message == null || message.equals(QUIT)) {
+                message = QUIT;
+                isQuitting = true;
+            }
+            if (isReconnecting) {
+                if (!isQuitting) {
+                    System.err.println("You are not connected to the server, the message is not sent.");
                 }
+                selector.wakeup();
+                continue;
             }
-        });
-        listenThread.start();
+            outgoing.add(message);
+            selector.wakeup();
+        }
     }
 
     /**
-     * Close the connection between this client to the server.
+     * Close the connection between this client to the server, print what is left and exit.
      */
     private void closeConnection() {
-        try {
-            socket.close();
-            System.exit(0);
+        closeChannel();
+        System.err.println("Disconnected from the server.");
+        renderer.close();
+        System.exit(0);
+    }
+
+    /**
+     * ConsoleRenderer prints the lines for the user on its own thread.
+     * <br>The I/O thread only appends lines to a buffer and wakes the printer once per round, so it never waits
+     * for the console. The printer takes everything collected so far and writes it with one call; while the
+     * console is slow the batches just get bigger. If more than MAX_PENDING_CHARS pile up, the newest lines
+     * are skipped and the user is told how many.
+     * <br>It contains members: MAX_PENDING_CHARS, console, pending, printing, skipped, isClosed, thread,
+     * and methods: start(), add(String line), flush(), close(), run().
+     */
+    static final class ConsoleRenderer implements Runnable {
+
+        /**
+         * The largest number of characters waiting to be printed.
+         */
+        private static final int MAX_PENDING_CHARS = Integer.getInteger("chatroom.renderBufferChars", 4 * 1024 * 1024);
+
+        /**
+         * The buffered console.
+         */
+        private final Writer console = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 64 * 1024);
+
+        /**
+         * The lines collected for the next batch.
+         */
+        private StringBuilder pending = new StringBuilder();
+
+        /**
+         * The batch being printed. It is swapped with pending, so neither is allocated again.
+         */
+        private StringBuilder printing = new StringBuilder();
+
+        /**
+         * The number of lines skipped since the last batch.
+         */
+        private int skipped = 0;
+
+        /**
+         * To denote whether the printer stops after the last batch.
+         */
+        private boolean isClosed = false;
+
+        /**
+         * The thread of the printer.
+         */
+        private final Thread thread = new Thread(this, "client-console");
+
+        /**
+         * Start the thread of the printer.
+         */
+        void start() {
+            thread.setDaemon(true);
+            thread.start();
         }
-        catch (IOException e) {
-            System.err.println("Exception in closing the socket.");
-            System.err.println(e.getMessage());
+
+        /**
+         * Collect one line for the next batch.
+         *
+         * @param line the line
+         */
+        synchronized void add(String line) {
+            if (pending.length() >= MAX_PENDING_CHARS) {
+                skipped++;
+                return;
+            }
+            pending.append(line).append(System.lineSeparator());
+        }
+
+        /**
+         * Wake the printer if lines were collected.
+         */
+        synchronized void flush() {
+            if (pending.length() > 0 || skipped > 0) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Print what is left and stop the printer.
+         */
+        void close() {
+            synchronized (this) {
+                isClosed = true;
+                notifyAll();
+            }
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Print the batches until the printer is closed.
+         */
+        public void run() {
+            try {
+                while (true) {
+                    int lost;
+                    synchronized (this) {
+                        while (pending.length() == 0 && skipped == 0 && !isClosed) {
+                            wait();
+                        }
+                        if (pending.length() == 0 && skipped == 0) {
+                            return;
+                        }
+                        StringBuilder batch = pending;
+                        pending = printing;
+                        printing = batch;
+                        lost = skipped;
+                        skipped = 0;
+                    }
+                    console.append(printing);
+                    if (lost > 0) {
+                        console.append("------ " + lost + " messages are not shown, the console is too slow ------" + System.lineSeparator());
+                    }
+                    console.flush();
+                    printing.setLength(0);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (IOException e) {
+                System.err.println("Exception in ConsoleRenderer:\n" + e.getMessage());
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,515 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ClientOutbound is the bounded queue of data waiting to be sent to one client.
+ * <br>Senders only put data into the queue and return; the data is written by a drain task which the owner of
+ * the connection schedules. When the queue is full, the overflow policy decides whether the oldest data is dropped,
+ * the client is dropped, or the sender waits for room.
+ * <br>Additional feature: The drain task takes all the buffers queued so far (up to COALESCE_BYTES) and writes them
+ * with one call. With COALESCE_MILLIS above zero, the drain also waits that long after the first buffer arrives,
+ * which trades latency for fewer and larger writes.
+ * <br>Additional feature: For a client which asked for compression, the drain task compresses the buffers it takes,
+ * see FrameCompressor. Only the buffers queued after startCompression() are compressed.
+ * <br>It contains members: CAPACITY, OVERFLOW_POLICY, BACKPRESSURE_MILLIS, COALESCE_MILLIS, COALESCE_BYTES, MAX_BATCH,
+ * COMPRESSION_START, IS_NON_BLOCKING, queue, isDrainScheduled, isAborted, isBinary, isSequenced, compressor, isCompressing,
+ * and methods: send(ByteBuffer data), dropOldest(), poll(), drainTo(ByteBuffer[] batch, int from), finishDrain(), isDrained(), size(),
+ * startCompression(FrameCompressor compressor), endCompression(),
+ * scheduleDrain(), abortClient(), shutdownOutput(), overflowPolicy(), markNonBlocking(), canWait().
+ *
+ * @author Zhiyong Liu
+ */
+abstract class ClientOutbound {
+
+    /**
+     * The overflow policy which drops the oldest queued data to make room.
+     */
+    static final String DROP_OLDEST = "dropOldest";
+
+    /**
+     * The overflow policy which disconnects the client whose queue is full.
+     */
+    static final String DROP_CLIENT = "dropClient";
+
+    /**
+     * The overflow policy which makes the sender wait until there is room.
+     */
+    static final String BACKPRESSURE = "backpressure";
+
+    /**
+     * The number of buffers a client can have queued.
+     */
+    static final int CAPACITY = Integer.getInteger("chatroom.outboundCapacity", 1024);
+
+    /**
+     * The policy used when the queue of a client is full.
+     */
+    static final String OVERFLOW_POLICY = System.getProperty("chatroom.overflowPolicy", DROP_OLDEST);
+
+    /**
+     * The longest time a sender waits for room under the backpressure policy before the client is dropped.
+     */
+    static final long BACKPRESSURE_MILLIS = Long.getLong("chatroom.backpressureMillis", 1000);
+
+    /**
+     * The time a drain waits for more data before it writes. Zero writes as soon as possible.
+     */
+    static final long COALESCE_MILLIS = Long.getLong("chatroom.coalesceMillis", 0);
+
+    /**
+     * The number of bytes after which a drain stops taking more buffers into one write.
+     */
+    static final int COALESCE_BYTES = Integer.getInteger("chatroom.coalesceBytes", 64 * 1024);
+
+    /**
+     * The largest number of buffers written with one call.
+     */
+    static final int MAX_BATCH = 64;
+
+    /**
+     * The mark in the queue after which the drain task compresses.
+     */
+    private static final ByteBuffer COMPRESSION_START = ByteBuffer.allocate(0);
+
+    /**
+     * To denote whether the current thread must never wait for room, e.g. the thread of an event loop, which would
+     * stall all its clients, and which another loop waiting for it could deadlock.
+     */
+    private static final ThreadLocal<Boolean> IS_NON_BLOCKING = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * The timer which delays drains by COALESCE_MILLIS. It is only created when the delay is used.
+     */
+    private static ScheduledExecutorService coalesceTimer;
+
+    /**
+     * The data waiting to be written.
+     */
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<ByteBuffer>(CAPACITY);
+
+    /**
+     * To denote whether a drain task is scheduled or running.
+     */
+    private final AtomicBoolean isDrainScheduled = new AtomicBoolean(false);
+
+    /**
+     * To denote whether the client has been dropped.
+     */
+    private volatile boolean isAborted = false;
+
+    /**
+     * To denote whether the client speaks the binary protocol of FrameCodec instead of text lines.
+     */
+    volatile boolean isBinary = false;
+
+    /**
+     * To denote whether the client wants the sequence numbers of logged broadcasts, so it can resume its session.
+     */
+    volatile boolean isSequenced = false;
+
+    /**
+     * The compressor of the frames of the client, or null if it did not ask for compression.
+     */
+    volatile FrameCompressor compressor = null;
+
+    /**
+     * To denote whether the drain task has passed COMPRESSION_START. It is only used by the drain task.
+     */
+    private boolean isCompressing = false;
+
+    /**
+     * Put the data into the queue and make sure it will be drained.
+     * The data must not be modified after it is sent.
+     *
+     * @param data the data to send
+     * @return boolean whether the data is queued
+     */
+    boolean send(ByteBuffer data) {
+        if (isAborted) {
+            ServerMetrics.DROPPED.increment();
+            return false;
+        }
+        if (!queue.offer(data) && !handleOverflow(data)) {
+            ServerMetrics.DROPPED.increment();
+            return false;
+        }
+        ServerMetrics.MESSAGES_OUT.increment();
+        if (isDrainScheduled.compareAndSet(false, true)) {
+            if (COALESCE_MILLIS > 0) {
+                coalesceTimer().schedule(new Runnable() {
+                    public void run() {
+                        scheduleDrain();
+                    }
+                }, COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            else {
+                scheduleDrain();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the timer which delays drains, creating it on first use.
+     *
+     * @return ScheduledExecutorService
+     */
+    private static synchronized ScheduledExecutorService coalesceTimer() {
+        if (coalesceTimer == null) {
+            coalesceTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "coalesce-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return coalesceTimer;
+    }
+
+    /**
+     * Apply the overflow policy to the data which does not fit into the queue.
+     *
+     * @param data the data to send
+     * @return boolean whether the data is queued
+     */
+    private boolean handleOverflow(ByteBuffer data) {
+        switch (overflowPolicy()) {
+            case DROP_CLIENT:
+                abort();
+                return false;
+            case BACKPRESSURE:
+                try {
+                    if (canWait() && queue.offer(data, BACKPRESSURE_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                abort();
+                return false;
+            default:
+                while (!queue.offer(data)) {
+                    if (!dropOldest()) {
+                        return false;
+                    }
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Drop the oldest queued data to make room. COMPRESSION_START is never dropped, because the client could not
+     * read the compressed frames without it.
+     *
+     * @return boolean whether there was data to drop
+     */
+    private boolean dropOldest() {
+        Iterator<ByteBuffer> oldest = queue.iterator();
+        while (oldest.hasNext()) {
+            if (oldest.next() != COMPRESSION_START) {
+                // The drain may have taken the data meanwhile, which made room as well.
+                oldest.remove();
+                ServerMetrics.DROPPED.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drop the client once.
+     */
+    void abort() {
+        if (!isAborted) {
+            isAborted = true;
+            abortClient();
+        }
+    }
+
+    /**
+     * Take the next data to write.
+     *
+     * @return ByteBuffer or null if the queue is empty
+     */
+    ByteBuffer poll() {
+        ByteBuffer data = queue.poll();
+        return data == COMPRESSION_START ? queue.poll() : data;
+    }
+
+    /**
+     * Take the queued buffers for one write, up to the free room of the batch and COALESCE_BYTES.
+     *
+     * @param batch the array to put the buffers into
+     * @param from the first free index of batch
+     * @return int the number of buffers taken
+     */
+    int drainTo(ByteBuffer[] batch, int from) {
+        int count = 0;
+        long bytes = 0;
+        int compressFrom = isCompressing ? from : -1;
+        ByteBuffer data;
+        while (from + count < batch.length && bytes < COALESCE_BYTES && (data = queue.poll()) != null) {
+            if (data == COMPRESSION_START) {
+                isCompressing = true;
+                compressFrom = from + count;
+                continue;
+            }
+            batch[from + count] = data;
+            bytes += data.remaining();
+            count++;
+        }
+        if (compressFrom >= 0 && compressFrom < from + count) {
+            count = compressFrom - from + compressor.compress(batch, compressFrom, from + count - compressFrom);
+        }
+        return count;
+    }
+
+    /**
+     * Compress everything sent from now on. The data queued before, e.g. the last text line, is sent as it is.
+     *
+     * @param compressor the compressor of the client
+     */
+    void startCompression(FrameCompressor compressor) {
+        this.compressor = compressor;
+        if (queue.offer(COMPRESSION_START) && isDrainScheduled.compareAndSet(false, true)) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Free the compressor of a client which is gone.
+     */
+    void endCompression() {
+        FrameCompressor c = compressor;
+        if (c != null) {
+            c.end();
+        }
+    }
+
+    /**
+     * Tell the queue that the drain task found it empty.
+     *
+     * @return boolean whether data arrived meanwhile and the drain task must go on
+     */
+    boolean finishDrain() {
+        isDrainScheduled.set(false);
+        return !queue.isEmpty() && isDrainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Test whether everything sent so far has been written to the client.
+     *
+     * @return boolean
+     */
+    boolean isDrained() {
+        return queue.isEmpty() && !isDrainScheduled.get();
+    }
+
+    /**
+     * Get the number of queued buffers.
+     *
+     * @return int
+     */
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Run or schedule the drain task. It is called only when no drain task is scheduled.
+     */
+    protected abstract void scheduleDrain();
+
+    /**
+     * Disconnect the client. It must not block and must not end the session on the calling thread,
+     * because it can be called in the middle of a broadcast.
+     */
+    protected abstract void abortClient();
+
+    /**
+     * Close the sending side of the connection once everything has been written, so the client reads all the data
+     * and then the end of the stream. It must not block.
+     */
+    protected void shutdownOutput() {
+    }
+
+    /**
+     * Get the policy used when the queue is full.
+     *
+     * @return String one of DROP_OLDEST, DROP_CLIENT and BACKPRESSURE
+     */
+    protected String overflowPolicy() {
+        return OVERFLOW_POLICY;
+    }
+
+    /**
+     * Mark the current thread as one which must never wait for room. Under the backpressure policy, a full queue
+     * then disconnects its client at once instead of stalling the thread.
+     */
+    static void markNonBlocking() {
+        IS_NON_BLOCKING.set(true);
+    }
+
+    /**
+     * Test whether the current thread may wait for room under the backpressure policy. The threads marked by
+     * markNonBlocking() may not, whichever loop owns the queue.
+     *
+     * @return boolean
+     */
+    protected boolean canWait() {
+        return !IS_NON_BLOCKING.get();
+    }
+
+    /**
+     * SocketOutbound is the ClientOutbound of a blocking socket. Its drain task runs on the given executor
+     * and exists only while the client has queued data.
+     */
+    static class SocketOutbound extends ClientOutbound {
+
+        /**
+         * The socket of the client.
+         */
+        private final java.net.Socket socket;
+
+        /**
+         * The channel which writes to the output stream of the socket.
+         */
+        private final WritableByteChannel channel;
+
+        /**
+         * The executor which runs the drain task.
+         */
+        private final Executor executor;
+
+        /**
+         * The constructor of SocketOutbound class.
+         *
+         * @param socket the socket of the client
+         * @param executor the executor which runs the drain task
+         * @throws IOException if the output stream can not be created
+         */
+        SocketOutbound(java.net.Socket socket, Executor executor) throws IOException {
+            this.socket = socket;
+            this.channel = Channels.newChannel(socket.getOutputStream());
+            this.executor = executor;
+        }
+
+        protected void scheduleDrain() {
+            executor.execute(new Runnable() {
+                public void run() {
+                    drain();
+                }
+            });
+        }
+
+        /**
+         * Write all the queued data to the socket.
+         * <br>The output stream of a socket can not write several buffers with one call, so the buffers of
+         * a batch are copied into one buffer first.
+         */
+        private void drain() {
+            ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+            try {
+                do {
+                    int count;
+                    while ((count = drainTo(batch, 0)) > 0) {
+                        ByteBuffer data = batch[0];
+                        if (count > 1) {
+                            int size = 0;
+                            for (int i = 0; i < count; i++) {
+                                size += batch[i].remaining();
+                            }
+                            data = ByteBuffer.allocate(size);
+                            for (int i = 0; i < count; i++) {
+                                data.put(batch[i]);
+                            }
+                            data.flip();
+                        }
+                        Arrays.fill(batch, 0, count, null);
+                        while (data.hasRemaining()) {
+                            ServerMetrics.BYTES_OUT.add(channel.write(data));
+                        }
+                    }
+                } while (finishDrain());
+            }
+            catch (IOException e) {
+                abortClient();
+            }
+        }
+
+        protected void shutdownOutput() {
+            try {
+                socket.shutdownOutput();
+            }
+            catch (IOException e) {
+                abortClient();
+            }
+        }
+
+        protected void abortClient() {
+            try {
+                // The session thread sees the closed socket and ends the session itself.
+                socket.close();
+            }
+            catch (IOException e) {
+                System.err.println("Exception when closing the socket");
+            }
+        }
+    }
+
+    /**
+     * OutboundWriter is used by the PrintWriter of a session. It collects the characters printed
+     * and sends them as a single buffer when the PrintWriter flushes.
+     * For a binary client every line becomes a SYSTEM frame.
+     */
+    static class OutboundWriter extends Writer {
+
+        /**
+         * The queue to send to.
+         */
+        private final ClientOutbound outbound;
+
+        /**
+         * The characters which have not been flushed.
+         */
+        private final StringBuilder pending = new StringBuilder();
+
+        /**
+         * The constructor of OutboundWriter class.
+         *
+         * @param outbound the queue to send to
+         */
+        OutboundWriter(ClientOutbound outbound) {
+            this.outbound = outbound;
+        }
+
+        public void write(char[] cbuf, int off, int len) {
+            pending.append(cbuf, off, len);
+        }
+
+        public void flush() {
+            if (pending.length() == 0) {
+                return;
+            }
+            if (outbound.isBinary) {
+                outbound.send(FrameCodec.encodeLines(FrameCodec.SYSTEM, pending));
+                pending.setLength(0);
+                return;
+            }
+            byte[] bytes = pending.toString().getBytes(StandardCharsets.UTF_8);
+            pending.setLength(0);
+            outbound.send(ByteBuffer.wrap(bytes));
+        }
+
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ClientProtocol keeps the lines of the server a client must recognize, for the interactive client and the
+ * LoadGenerator alike.
+ * <br>It contains members: WELCOME, ACCEPT, HEARTBEAT, HEARTBEAT_REPLY,
+ * and methods: readRawLine(InputStream stream).
+ *
+ * @author Zhiyong Liu
+ */
+final class ClientProtocol {
+
+    /**
+     * The information of welcome.
+     */
+    static final String WELCOME = "Please type your username.";
+
+    /**
+     * The information of accept.
+     */
+    static final String ACCEPT = "Your username is accepted. Please type messages";
+
+    /**
+     * The heartbeat the server sends when the client has been quiet.
+     */
+    static final String HEARTBEAT = "\\ping";
+
+    /**
+     * The answer to a heartbeat, which keeps a quiet client connected.
+     */
+    static final String HEARTBEAT_REPLY = "\\pong";
+
+    /**
+     * The constructor of ClientProtocol class. It is not used.
+     */
+    private ClientProtocol() {
+    }
+
+    /**
+     * Read one line from the stream without reading ahead.
+     *
+     * @param stream the stream to read
+     * @throws IOException if an I/O error occurs
+     * @return String or null at the end of the stream
+     */
+    static String readRawLine(InputStream stream) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = stream.read()) != '\n') {
+            if (b < 0) {
+                return null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,720 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ClusterNode joins several chat room servers into one chat room, so users connected to different servers chat
+ * with each other and the capacity grows with the number of servers.
+ * <br>Every node listens on PORT_NUMBER for the other nodes and connects to each address in PEERS. A link carries
+ * FrameCodec frames: a broadcast travels as a frame of its own type with the room name and the line as payload,
+ * the types HELLO to LEFT keep the usernames unique in the whole cluster, and PRIVATE carries a private message
+ * to the node of its recipient. Every link has an
+ * outbound queue like a client, so the broadcasts of a node are written to each peer in batches and a broadcast
+ * never waits for the network.
+ * <br>A username is first reserved on the local node and then claimed from every connected peer. A peer refuses
+ * the claim if the name is used on it or on another node, and when two nodes claim the same name at the same time,
+ * the node with the smaller NODE_ID wins; in a close race of more nodes all of them may be refused, but never two
+ * of them get the name. A node which agreed to a claim keeps the name for the claimant until
+ * it hears that the claim failed, so it never claims the name itself meanwhile. A node which does not answer within CLAIM_TIMEOUT_MILLIS refuses the
+ * name; a node which goes away counts as agreeing, and the names of its users are forgotten.
+ * <br>Messages from one node arrive at every other node in the order they were sent. Messages from different
+ * nodes may be interleaved differently on different nodes.
+ * <br>The cluster port listens on BIND_ADDRESS, the loopback address unless it is configured. A peer is only trusted
+ * after it proves that it knows SECRET: each side sends a random challenge with its HELLO and answers the challenge
+ * of the other side with a PROOF, an HMAC-SHA256 of the challenge and its NODE_ID, so the secret itself never
+ * crosses the link. The links are not encrypted, also when the clients use TLS.
+ * <br>It contains members: PORT_NUMBER, BIND_ADDRESS, PEERS, NODE_ID, SECRET, CLAIM_TIMEOUT_MILLIS, RECONNECT_MILLIS,
+ * ALGORITHM, HELLO, CLAIM, GRANT, DENY, JOINED, LEFT, PRIVATE, PROOF, RANDOM, server, outgoing, incoming, localNames,
+ * remoteNames, claims, nextClaimId, executor,
+ * and methods: start(Server server), forward(String roomName, byte type, String line),
+ * forwardPrivate(String to, String line), claim(String name), release(String name), remoteSize().
+ *
+ * @author Zhiyong Liu
+ */
+class ClusterNode {
+
+    /**
+     * The port number on which the node accepts the other nodes. Zero turns the cluster off.
+     */
+    static final int PORT_NUMBER = Integer.getInteger("chatroom.clusterPort", 0);
+
+    /**
+     * The address the cluster port is bound to. The loopback address keeps the other machines out.
+     */
+    static final String BIND_ADDRESS = System.getProperty("chatroom.clusterBindAddress", "127.0.0.1");
+
+    /**
+     * The addresses of the other nodes as host:port, separated by commas.
+     */
+    static final String PEERS = System.getProperty("chatroom.clusterPeers", "");
+
+    /**
+     * The name of this node. It must be different on every node.
+     */
+    static final String NODE_ID = System.getProperty("chatroom.nodeId", defaultNodeId());
+
+    /**
+     * The secret every node of the cluster shares. The cluster is not started without it.
+     */
+    private static final byte[] SECRET = System.getProperty("chatroom.clusterSecret", "").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The longest time a username claim waits for the answers of the other nodes.
+     */
+    static final long CLAIM_TIMEOUT_MILLIS = Long.getLong("chatroom.clusterClaimMillis", 2000);
+
+    /**
+     * The time to wait before connecting to a node again.
+     */
+    static final long RECONNECT_MILLIS = Long.getLong("chatroom.clusterReconnectMillis", 1000);
+
+    /**
+     * The algorithm of the proofs.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * The type of the first frame on a link. Its payload is the NODE_ID of the sender and its challenge.
+     */
+    static final byte HELLO = 16;
+
+    /**
+     * The type of a username claim. Its payload is the claim id and the username.
+     */
+    static final byte CLAIM = 17;
+
+    /**
+     * The type of the answer which agrees to a claim. Its payload is the one of the claim.
+     */
+    static final byte GRANT = 18;
+
+    /**
+     * The type of the answer which refuses a claim. Its payload is the one of the claim.
+     */
+    static final byte DENY = 19;
+
+    /**
+     * The type which tells that a username is used on the sender. Its payload is the username.
+     */
+    static final byte JOINED = 20;
+
+    /**
+     * The type which tells that a username is free again. Its payload is the username.
+     */
+    static final byte LEFT = 21;
+
+    /**
+     * The type of a private message. Its payload is the username of the recipient and the line.
+     */
+    static final byte PRIVATE = 22;
+
+    /**
+     * The type of the second frame on a link, the answer to the challenge of the peer. Its payload is the proof.
+     */
+    static final byte PROOF = 23;
+
+    /**
+     * The source of the challenges.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The server of this node.
+     */
+    private final Server server;
+
+    /**
+     * The links this node opened, keyed by the NODE_ID of the peer. The frames of this node are sent on them.
+     */
+    private final Map<String, Link> outgoing = new ConcurrentHashMap<String, Link>();
+
+    /**
+     * The links the peers opened, keyed by the NODE_ID of the peer. They are used to send only when there is
+     * no outgoing link to the peer, e.g. when the peer is not in PEERS.
+     */
+    private final Map<String, Link> incoming = new ConcurrentHashMap<String, Link>();
+
+    /**
+     * The usernames of this node which the cluster agreed to.
+     */
+    private final Set<String> localNames = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The usernames used on the other nodes or promised to them, mapped to the NODE_ID of their node.
+     */
+    private final ConcurrentHashMap<String, String> remoteNames = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The claims of this node which are waiting for answers, keyed by username.
+     */
+    private final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<String, Claim>();
+
+    /**
+     * The id of the last claim.
+     */
+    private final AtomicLong nextClaimId = new AtomicLong(0);
+
+    /**
+     * The threads which read the links and write their outbound queues.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "cluster-link");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * The constructor of ClusterNode class.
+     *
+     * @param server the server of this node
+     */
+    private ClusterNode(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Accept the other nodes and connect to the PEERS if the cluster is turned on.
+     * <br>The server still runs on its own if there is no SECRET or the cluster port can not be opened.
+     *
+     * @param server the server of this node
+     * @return ClusterNode or null if the cluster is turned off
+     */
+    static ClusterNode start(Server server) {
+        if (PORT_NUMBER <= 0) {
+            return null;
+        }
+        if (SECRET.length == 0) {
+            System.err.println("chatroom.clusterSecret is not set, the server runs on its own.");
+            return null;
+        }
+        ClusterNode node = new ClusterNode(server);
+        ServerSocket listener;
+        try {
+            listener = new ServerSocket(PORT_NUMBER, 50, InetAddress.getByName(BIND_ADDRESS));
+        }
+        catch (IOException e) {
+            System.err.println("The cluster port can not be opened, the server runs on its own:\n" + e.getMessage());
+            return null;
+        }
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                node.accept(listener);
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (String peer : PEERS.split(",")) {
+            if (peer.trim().isEmpty()) {
+                continue;
+            }
+            Thread dialer = new Thread(new Runnable() {
+                public void run() {
+                    node.dial(peer.trim());
+                }
+            }, "cluster-dial-" + peer.trim());
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+        System.out.println("Cluster node " + NODE_ID + " is waiting for peers on " + BIND_ADDRESS + ":" + PORT_NUMBER + ".");
+        return node;
+    }
+
+    /**
+     * Send a broadcast of this node to every other node.
+     *
+     * @param roomName the name of the room
+     * @param type the type of the message for binary clients, see FrameCodec
+     * @param line the line which was broadcast
+     */
+    void forward(String roomName, byte type, String line) {
+        if (outgoing.isEmpty() && incoming.isEmpty()) {
+            return;
+        }
+        ByteBuffer frame = FrameCodec.encode(type, roomName + "\n" + line).asReadOnlyBuffer();
+        for (String peer : peers()) {
+            send(peer, frame);
+        }
+    }
+
+    /**
+     * Send a private message to the node of its recipient.
+     *
+     * @param to the username of the recipient
+     * @param line the line to send
+     * @return boolean whether the recipient is on a connected node
+     */
+    boolean forwardPrivate(String to, String line) {
+        String owner = remoteNames.get(to);
+        if (owner == null) {
+            return false;
+        }
+        send(owner, FrameCodec.encode(PRIVATE, to + "\n" + line));
+        return true;
+    }
+
+    /**
+     * Ask every connected node whether a username which is reserved on this node may be used.
+     * <br>When the claim succeeds, the other nodes are told that the name is used here.
+     *
+     * @param name the username
+     * @return CompletableFuture which completes with whether the name may be used, on the thread of the last answer
+     */
+    CompletableFuture<Boolean> claim(String name) {
+        Claim claim = new Claim(nextClaimId.incrementAndGet(), name);
+        synchronized (this) {
+            // A name this node agreed to give to a peer can not be claimed until the peer gives it up.
+            if (remoteNames.containsKey(name)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            claims.put(name, claim);
+        }
+        CompletableFuture<Boolean> result = claim.future.thenApply(isGranted -> {
+            claims.remove(name, claim);
+            if (!isGranted) {
+                // The peers which agreed forget their promise.
+                sendToAll(LEFT, name);
+            }
+            // The name is added before JOINED is sent, so a link which comes up meanwhile announces it itself.
+            else if (localNames.add(name)) {
+                sendToAll(JOINED, name);
+            }
+            return isGranted;
+        });
+        claim.waiting.addAll(peers());
+        ByteBuffer frame = FrameCodec.encode(CLAIM, claim.id + " " + name).asReadOnlyBuffer();
+        for (String peer : claim.waiting) {
+            send(peer, frame);
+        }
+        if (claim.waiting.isEmpty()) {
+            claim.future.complete(true);
+        }
+        claim.future.completeOnTimeout(false, CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * Tell the other nodes that a username claimed by this node is free again.
+     *
+     * @param name the username
+     */
+    void release(String name) {
+        if (localNames.remove(name)) {
+            sendToAll(LEFT, name);
+        }
+    }
+
+    /**
+     * Get the number of users on the other nodes.
+     *
+     * @return int
+     */
+    int remoteSize() {
+        return remoteNames.size();
+    }
+
+    /**
+     * Accept the links of the other nodes until the JVM exits.
+     *
+     * @param listener the socket of the cluster port
+     */
+    private void accept(ServerSocket listener) {
+        while (true) {
+            try {
+                Socket socket = listener.accept();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        serve(socket, incoming);
+                    }
+                });
+            }
+            catch (IOException e) {
+                System.err.println("IOException in ClusterNode:\n" + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Keep a link to a peer open, connecting again whenever it is lost.
+     *
+     * @param address the address of the peer as host:port
+     */
+    private void dial(String address) {
+        int colon = address.lastIndexOf(':');
+        String host = colon < 0 ? "localhost" : address.substring(0, colon);
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid cluster peer " + address + ", it should be host:port");
+            return;
+        }
+        while (true) {
+            try {
+                serve(new Socket(host, port), outgoing);
+            }
+            catch (IOException e) {
+                // The peer is not up yet; it is tried again.
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Exchange the NODE_IDs with the peer, check that it knows the SECRET, tell it the usernames of this node and
+     * handle its frames until the link is lost.
+     *
+     * @param socket the socket of the link
+     * @param links the links the new link belongs to, outgoing or incoming
+     */
+    private void serve(Socket socket, Map<String, Link> links) {
+        Link link = null;
+        String peer = null;
+        try {
+            socket.setTcpNoDelay(true);
+            // Whoever can reach the port must not hold a thread for long without proving itself.
+            socket.setSoTimeout((int) CLAIM_TIMEOUT_MILLIS);
+            link = new Link(socket);
+            byte[] bytes = new byte[32];
+            RANDOM.nextBytes(bytes);
+            String challenge = Base64.getEncoder().encodeToString(bytes);
+            link.outbound.send(FrameCodec.encode(HELLO, NODE_ID + "\n" + challenge));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (readFrame(in, link) != HELLO || link.text.indexOf('\n') < 0) {
+                throw new IOException("The peer " + socket.getRemoteSocketAddress() + " did not say hello");
+            }
+            String hello = link.text;
+            String id = hello.substring(0, hello.lastIndexOf('\n'));
+            link.outbound.send(FrameCodec.encode(PROOF, prove(hello.substring(hello.lastIndexOf('\n') + 1), NODE_ID)));
+            byte[] expected = prove(challenge, id).getBytes(StandardCharsets.UTF_8);
+            if (readFrame(in, link) != PROOF || !MessageDigest.isEqual(expected, link.text.getBytes(StandardCharsets.UTF_8))) {
+                ServerLog.error("The peer " + socket.getRemoteSocketAddress() + " does not know the cluster secret");
+                return;
+            }
+            if (id.equals(NODE_ID)) {
+                throw new IOException("The peer has the same node id " + NODE_ID);
+            }
+            peer = id;
+            socket.setSoTimeout(0);
+            Link old = links.put(peer, link);
+            if (old != null) {
+                old.outbound.abort();
+            }
+            for (String name : localNames) {
+                link.outbound.send(FrameCodec.encode(JOINED, name));
+            }
+            ServerLog.info("The cluster link with " + peer + " is up");
+            while (true) {
+                handle(peer, readFrame(in, link), link.text);
+            }
+        }
+        catch (IOException e) {
+            if (peer != null) {
+                ServerLog.info("The cluster link with " + peer + " is lost" + (e instanceof EOFException ? "" : ": " + e.getMessage()));
+            }
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                System.err.println("Exception when closing the cluster link");
+            }
+            if (peer != null && links.remove(peer, link) && !outgoing.containsKey(peer) && !incoming.containsKey(peer)) {
+                forget(peer);
+            }
+        }
+    }
+
+    /**
+     * Prove that this node knows the SECRET, or compute the proof expected from a peer.
+     *
+     * @param challenge the challenge of the other side
+     * @param node the NODE_ID of the side which proves
+     * @return String the HMAC of the challenge and the NODE_ID in base64
+     */
+    private static String prove(String challenge, String node) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(SECRET, ALGORITHM));
+            return Base64.getEncoder().encodeToString(mac.doFinal((challenge + "\n" + node).getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Read one frame of a link.
+     *
+     * @param in the input stream of the link
+     * @param link the link, which keeps the text of the frame
+     * @return byte the type of the frame
+     * @throws IOException if the link is lost or the frame is invalid
+     */
+    private byte readFrame(DataInputStream in, Link link) throws IOException {
+        int length = in.readInt();
+        byte type = in.readByte();
+        if (length < 0 || length > FrameCodec.MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        link.text = new String(payload, StandardCharsets.UTF_8);
+        return type;
+    }
+
+    /**
+     * Handle one frame from a peer.
+     *
+     * @param peer the NODE_ID of the peer
+     * @param type the type of the frame
+     * @param text the payload of the frame
+     */
+    private void handle(String peer, byte type, String text) {
+        switch (type) {
+            case FrameCodec.CHAT:
+            case FrameCodec.SYSTEM:
+            case FrameCodec.EMOJI:
+                int newline = text.indexOf('\n');
+                if (newline > 0) {
+                    server.deliver(text.substring(0, newline), type, text.substring(newline + 1));
+                }
+                break;
+            case CLAIM:
+                String name = text.substring(text.indexOf(' ') + 1);
+                send(peer, FrameCodec.encode(promise(name, peer) ? GRANT : DENY, text));
+                break;
+            case GRANT:
+            case DENY:
+                answer(peer, type == GRANT, text);
+                break;
+            case JOINED:
+                if (localNames.contains(text)) {
+                    ServerLog.error("The username " + text + " is used on " + NODE_ID + " and on " + peer);
+                }
+                remoteNames.put(text, peer);
+                break;
+            case LEFT:
+                remoteNames.remove(text, peer);
+                break;
+            case PRIVATE:
+                int end = text.indexOf('\n');
+                if (end > 0) {
+                    server.deliverPrivate(text.substring(0, end), text.substring(end + 1));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Decide whether a peer may use a username. When it may, the name counts as used on the peer from now on,
+     * so this node can not claim it as well before the answer arrives.
+     *
+     * @param name the username
+     * @param peer the NODE_ID of the peer which claims it
+     * @return boolean
+     */
+    private synchronized boolean promise(String name, String peer) {
+        boolean isLocal = server.sessions.get(name) != null;
+        boolean isFree;
+        if (claims.containsKey(name) || (isLocal && !localNames.contains(name))) {
+            // Both nodes claim the name at the same time, or this node is about to; both decide the same way.
+            isFree = NODE_ID.compareTo(peer) > 0;
+        }
+        else if (isLocal) {
+            isFree = false;
+        }
+        else {
+            String owner = remoteNames.get(name);
+            isFree = owner == null || owner.equals(peer);
+        }
+        if (isFree) {
+            remoteNames.putIfAbsent(name, peer);
+        }
+        return isFree;
+    }
+
+    /**
+     * Count the answer of a peer to a claim of this node.
+     *
+     * @param peer the NODE_ID of the peer
+     * @param isGranted whether the peer agreed
+     * @param text the payload of the claim
+     */
+    private void answer(String peer, boolean isGranted, String text) {
+        int space = text.indexOf(' ');
+        Claim claim = claims.get(text.substring(space + 1));
+        if (claim == null || !text.substring(0, space).equals(String.valueOf(claim.id))) {
+            // The claim has timed out, or it is an old claim of the same name.
+            return;
+        }
+        if (!isGranted) {
+            claim.future.complete(false);
+        }
+        else if (claim.waiting.remove(peer) && claim.waiting.isEmpty()) {
+            claim.future.complete(true);
+        }
+    }
+
+    /**
+     * Forget a peer which has no link left: its users are gone, and the claims stop waiting for it.
+     *
+     * @param peer the NODE_ID of the peer
+     */
+    private void forget(String peer) {
+        remoteNames.values().removeIf(peer::equals);
+        for (Claim claim : claims.values()) {
+            if (claim.waiting.remove(peer) && claim.waiting.isEmpty()) {
+                claim.future.complete(true);
+            }
+        }
+    }
+
+    /**
+     * Get the NODE_IDs of the connected peers.
+     *
+     * @return Set
+     */
+    private Set<String> peers() {
+        Set<String> peers = new HashSet<String>(outgoing.keySet());
+        peers.addAll(incoming.keySet());
+        return peers;
+    }
+
+    /**
+     * Send a frame to one peer, on the link this node opened if there is one.
+     * A frame longer than a link accepts is not sent; chat messages are limited by the server, so they always fit.
+     *
+     * @param peer the NODE_ID of the peer
+     * @param frame the frame; it is not modified
+     */
+    private void send(String peer, ByteBuffer frame) {
+        if (frame.remaining() > FrameCodec.HEADER_LENGTH + FrameCodec.MAX_PAYLOAD) {
+            // The peer would drop the whole link, and forget every username of this node, for one frame.
+            ServerLog.error("A frame of " + frame.remaining() + " bytes is too long for the link to " + peer + ", it is not sent");
+            return;
+        }
+        Link link = outgoing.get(peer);
+        if (link == null) {
+            link = incoming.get(peer);
+        }
+        if (link != null) {
+            link.outbound.send(frame.duplicate());
+        }
+    }
+
+    /**
+     * Send one frame to every peer.
+     *
+     * @param type the type of the frame
+     * @param text the payload of the frame
+     */
+    private void sendToAll(byte type, String text) {
+        ByteBuffer frame = FrameCodec.encode(type, text).asReadOnlyBuffer();
+        for (String peer : peers()) {
+            send(peer, frame);
+        }
+    }
+
+    /**
+     * Get the default NODE_ID, the host name and the cluster port.
+     *
+     * @return String
+     */
+    private static String defaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + PORT_NUMBER;
+        }
+        catch (UnknownHostException e) {
+            return "localhost:" + PORT_NUMBER;
+        }
+    }
+
+    /**
+     * Link is the connection to one peer.
+     */
+    private class Link {
+
+        /**
+         * The outbound queue of the link. A peer which can not keep up is disconnected, because a dropped frame
+         * would make the nodes disagree; it connects again and announces its users again.
+         */
+        final ClientOutbound outbound;
+
+        /**
+         * The payload of the last frame read. Only the reading thread uses it.
+         */
+        String text;
+
+        /**
+         * The constructor of Link class.
+         *
+         * @param socket the socket of the link
+         * @throws IOException if the output stream can not be created
+         */
+        Link(Socket socket) throws IOException {
+            outbound = new ClientOutbound.SocketOutbound(socket, executor) {
+                protected String overflowPolicy() {
+                    return DROP_CLIENT;
+                }
+            };
+        }
+    }
+
+    /**
+     * Claim is a username claim of this node waiting for the answers of the peers.
+     */
+    private static class Claim {
+
+        /**
+         * The id of the claim, so a late answer to an old claim of the same name is ignored.
+         */
+        final long id;
+
+        /**
+         * The username.
+         */
+        final String name;
+
+        /**
+         * The NODE_IDs of the peers which have not agreed yet.
+         */
+        final Set<String> waiting = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The result of the claim.
+         */
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+
+        /**
+         * The constructor of Claim class.
+         *
+         * @param id the id of the claim
+         * @param name the username
+         */
+        Claim(long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}
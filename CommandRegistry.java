@@ -0,0 +1,156 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * CommandRegistry keeps the commands a client can send, keyed by name, with the line \help shows for each of them.
+ * <br>A command runs on the thread driving the session and returns its reply as a CompletableFuture. A cheap command
+ * does its work at once and returns done(). A slow one, e.g. a query of the message log, takes what it needs from
+ * the session, hands the work to offload() and replies when the work is done, so an event loop goes on serving the
+ * other clients meanwhile. The reply is run on the thread driving the session again, which sends it to the client.
+ * <br>A command which needs more lines of the client, e.g. the emoji menu, does not read them itself: it starts a
+ * Conversation, and the session hands it the following lines until it ends.
+ * <br>It contains members: THREADS, commands, usages, executor,
+ * and methods: register(String name, String usage, Command command), lookup(String name), help(),
+ * offload(Callable work), done().
+ *
+ * @param <S> the type of the session
+ * @author Zhiyong Liu
+ */
+final class CommandRegistry<S> {
+
+    /**
+     * The number of threads which run the offloaded work of the commands.
+     */
+    static final int THREADS = Integer.getInteger("chatroom.commandThreads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The commands, keyed by name, in the order they were registered.
+     */
+    private final Map<String, Command<S>> commands = new LinkedHashMap<String, Command<S>>();
+
+    /**
+     * The usage lines of the commands, keyed by name.
+     */
+    private final Map<String, String> usages = new LinkedHashMap<String, String>();
+
+    /**
+     * The threads which run the offloaded work. They are daemon threads, so they never keep the server alive.
+     */
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "command-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Register a command. A command registered again replaces the old one.
+     *
+     * @param name the name the client types, e.g. "\\join"
+     * @param usage the line \help shows, e.g. "\\join &lt;room&gt;: Join or create a chat room"
+     * @param command the command
+     */
+    void register(String name, String usage, Command<S> command) {
+        commands.put(name, command);
+        usages.put(name, usage);
+    }
+
+    /**
+     * Find a command.
+     *
+     * @param name the name the client typed
+     * @return Command or null if there is no such command
+     */
+    Command<S> lookup(String name) {
+        return commands.get(name);
+    }
+
+    /**
+     * Get the usage lines of all the commands, in the order they were registered.
+     *
+     * @return Collection
+     */
+    Collection<String> help() {
+        return Collections.unmodifiableCollection(usages.values());
+    }
+
+    /**
+     * Run the work of a command off the thread driving the session.
+     * <br>The work must not touch the session: everything it needs is taken from the session before, and
+     * its result is sent by the reply.
+     *
+     * @param work the work
+     * @param <T> the type of the result
+     * @return CompletableFuture which completes with the result, or with the exception the work threw
+     */
+    <T> CompletableFuture<T> offload(Callable<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        result.complete(work.call());
+                    }
+                    catch (Exception e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Get the reply of a command which has already sent everything itself.
+     *
+     * @param <S> the type of the session
+     * @return CompletableFuture which is already completed
+     */
+    static <S> CompletableFuture<Consumer<S>> done() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Command is one command a client can send.
+     *
+     * @param <S> the type of the session
+     */
+    interface Command<S> {
+
+        /**
+         * Run the command on the thread driving the session.
+         *
+         * @param session the session of the client
+         * @param argument the text after the first space of the command, or ""
+         * @return CompletableFuture of the reply, which is run on the thread driving the session once the future
+         * completes; the reply may be null if there is nothing more to send
+         */
+        CompletableFuture<Consumer<S>> execute(S session, String argument);
+    }
+
+    /**
+     * Conversation is one step of a command which asks the client for more lines, e.g. the emoji menu.
+     * Every step is run on the thread driving the session, so it may keep its state in the session.
+     *
+     * @param <S> the type of the session
+     */
+    interface Conversation<S> {
+
+        /**
+         * Handle the next line of the client.
+         *
+         * @param session the session of the client
+         * @param line the line
+         * @return Conversation the next step, e.g. this one again to ask once more, or null when the conversation is over
+         */
+        Conversation<S> next(S session, String line);
+    }
+}
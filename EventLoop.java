@@ -0,0 +1,541 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * EventLoop is used by Server in nio mode. One EventLoop owns one Selector and serves many non-blocking
+ * client channels on a single thread.
+ * <br>Additional feature: With -Dchatroom.tls=true every channel is encrypted by a TlsChannel on the same loop,
+ * so TLS does not bring back a thread per connection.
+ * <br>It contains members: MAX_LINE_LENGTH, server, selector, tasks, readBuffer, gather, loopThread,
+ * and methods: run(), register(SocketChannel channel), execute(Runnable task), inLoop(), read(Connection c),
+ * handleInput(Connection c, int n), flush(Connection c), close(Connection c).
+ *
+ * @author Zhiyong Liu
+ */
+class EventLoop implements Runnable, Executor {
+
+    /**
+     * The longest line a client is allowed to send.
+     */
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    /**
+     * The server which owns this loop.
+     */
+    private final Server server;
+
+    /**
+     * The selector of this loop.
+     */
+    private final Selector selector;
+
+    /**
+     * The tasks submitted by other threads, run on the loop thread.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * The read buffer shared by all connections of this loop. Only a partial line is copied out of it,
+     * so an idle connection costs no buffer at all. It has room for the plain text of a TLS record.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(32 * 1024);
+
+    /**
+     * The array shared by all connections of this loop to write several buffers with one gathering write.
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[ClientOutbound.MAX_BATCH];
+
+    /**
+     * The thread running this loop.
+     */
+    private volatile Thread loopThread;
+
+    /**
+     * The constructor of EventLoop class.
+     *
+     * @param server the server which owns this loop
+     * @throws IOException if the selector can not be opened
+     */
+    EventLoop(Server server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Select and dispatch the ready channels until the selector is closed.
+     */
+    public void run() {
+        loopThread = Thread.currentThread();
+        // A broadcast on this loop may reach a full queue of any loop; waiting for it would stall this loop.
+        ClientOutbound.markNonBlocking();
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+            }
+            catch (IOException e) {
+                System.err.println("IOException in EventLoop:\n" + e.getMessage());
+                return;
+            }
+            runTasks();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection c = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        read(c);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(c);
+                    }
+                }
+                catch (IOException | CancelledKeyException e) {
+                    close(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand over an accepted channel to this loop.
+     *
+     * @param channel the non-blocking channel of the client
+     */
+    void register(SocketChannel channel) {
+        execute(new Runnable() {
+            public void run() {
+                Connection c = new Connection(channel);
+                try {
+                    if (TlsContext.ENABLED) {
+                        c.tls = new TlsChannel(TlsContext.serverEngine());
+                    }
+                    c.key = channel.register(selector, SelectionKey.OP_READ, c);
+                }
+                catch (IOException e) {
+                    System.err.println("Exception when registering the channel:\n" + e.getMessage());
+                    close(c);
+                    return;
+                }
+                c.session = server.new HandleSession(channel.socket(), c.outbound, EventLoop.this);
+                ServerLog.info("One connetion is established");
+                c.session.greet();
+            }
+        });
+    }
+
+    /**
+     * Run the task on the loop thread.
+     *
+     * @param task the task to run
+     */
+    public void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Test whether the current thread is the loop thread.
+     *
+     * @return boolean
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Run all the tasks submitted by other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Read the available bytes of the client and hand every complete line or frame to its session.
+     * <br>A TLS connection first unwraps the records into the read buffer, one record at a time, and then
+     * writes the handshake data or the queued data which the handshake held back.
+     *
+     * @param c the connection of the client
+     * @throws IOException if an I/O error occurs
+     */
+    private void read(Connection c) throws IOException {
+        readBuffer.clear();
+        int n = c.tls == null ? c.channel.read(readBuffer) : c.tls.read(c.channel);
+        if (n < 0) {
+            close(c);
+            return;
+        }
+        ServerMetrics.BYTES_IN.add(n);
+        if (c.tls == null) {
+            handleInput(c, n);
+            return;
+        }
+        while (true) {
+            readBuffer.clear();
+            int plain = c.tls.unwrap(readBuffer);
+            if (plain < 0) {
+                close(c);
+                return;
+            }
+            if (plain == 0) {
+                break;
+            }
+            if (!handleInput(c, plain)) {
+                return;
+            }
+        }
+        flush(c);
+    }
+
+    /**
+     * Hand every complete line or frame in the read buffer to the session of the client.
+     * <br>A session starts with text lines and may switch to binary frames after any line.
+     *
+     * @param c the connection of the client
+     * @param n the number of bytes in the read buffer
+     * @return boolean whether the connection is still open
+     * @throws IOException if an I/O error occurs
+     */
+    private boolean handleInput(Connection c, int n) throws IOException {
+        byte[] bytes = readBuffer.array();
+        int start = 0;
+        for (int i = 0; i < n && !c.session.isBinary(); i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            String line = c.takeLine(bytes, start, i);
+            start = i + 1;
+            if (line == null) {
+                System.err.println("The line of " + c.channel.getRemoteAddress() + " is too long.");
+                close(c);
+                return false;
+            }
+            if (c.session.handleLine(line)) {
+                close(c);
+                return false;
+            }
+        }
+        while (c.session.isBinary() && c.partialLength > 0 && start < n) {
+            // The start of a frame arrived earlier; copy only the rest of that frame to the partial buffer.
+            int needed = c.partialLength < FrameCodec.HEADER_LENGTH
+                    ? FrameCodec.HEADER_LENGTH - c.partialLength
+                    : FrameCodec.HEADER_LENGTH + frameLength(c.partial, 0) - c.partialLength;
+            int taken = Math.min(needed, n - start);
+            if (!c.keepPartial(bytes, start, start + taken)) {
+                close(c);
+                return false;
+            }
+            start += taken;
+            if (readFrames(c, c.partial, 0, c.partialLength) < 0) {
+                close(c);
+                return false;
+            }
+            if (c.partialLength >= FrameCodec.HEADER_LENGTH && c.partialLength == FrameCodec.HEADER_LENGTH + frameLength(c.partial, 0)) {
+                c.partialLength = 0;
+            }
+        }
+        if (c.session.isBinary()) {
+            start = readFrames(c, bytes, start, n);
+            if (start < 0) {
+                close(c);
+                return false;
+            }
+        }
+        if (!c.keepPartial(bytes, start, n)) {
+            System.err.println("The line of " + c.channel.getRemoteAddress() + " is too long.");
+            close(c);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hand every complete binary frame in the bytes to the session of the client.
+     * The text of a frame is decoded straight out of the bytes.
+     *
+     * @param c the connection of the client
+     * @param bytes the received bytes
+     * @param from the start of the first frame
+     * @param to the end of the received bytes
+     * @throws IOException if an I/O error occurs
+     * @return int the end of the last complete frame, or -1 if the connection must be closed
+     */
+    private int readFrames(Connection c, byte[] bytes, int from, int to) throws IOException {
+        while (to - from >= FrameCodec.HEADER_LENGTH) {
+            int length = frameLength(bytes, from);
+            if (length < 0 || length > FrameCodec.MAX_PAYLOAD) {
+                System.err.println("Invalid frame from " + c.channel.getRemoteAddress());
+                return -1;
+            }
+            if (to - from < FrameCodec.HEADER_LENGTH + length) {
+                break;
+            }
+            byte type = bytes[from + 4];
+            String text = new String(bytes, from + FrameCodec.HEADER_LENGTH, length, StandardCharsets.UTF_8);
+            from += FrameCodec.HEADER_LENGTH + length;
+            if (c.session.handleFrame(type, text)) {
+                return -1;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Get the payload length from the header of a binary frame.
+     *
+     * @param bytes the received bytes
+     * @param from the start of the frame
+     * @return int
+     */
+    private static int frameLength(byte[] bytes, int from) {
+        return ((bytes[from] & 0xff) << 24) | ((bytes[from + 1] & 0xff) << 16) | ((bytes[from + 2] & 0xff) << 8) | (bytes[from + 3] & 0xff);
+    }
+
+    /**
+     * Write the queued data of the client as far as the socket buffer allows.
+     * <br>All the queued buffers are written with one gathering write. If the socket buffer is full,
+     * the loop keeps the rest and waits for OP_WRITE instead of blocking.
+     * <br>A TLS connection first writes the records it has already wrapped. The queued data is held back
+     * until the handshake is done; the read which finishes the handshake flushes it.
+     *
+     * @param c the connection of the client
+     * @throws IOException if an I/O error occurs
+     */
+    private void flush(Connection c) throws IOException {
+        if (c.tls != null) {
+            ServerMetrics.BYTES_OUT.add(c.tls.flush(c.channel));
+            if (c.tls.hasPendingOutput()) {
+                c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        do {
+            while (true) {
+                int count = 0;
+                if (c.unwritten != null) {
+                    for (ByteBuffer data : c.unwritten) {
+                        gather[count++] = data;
+                    }
+                    c.unwritten = null;
+                }
+                count += c.outbound.drainTo(gather, count);
+                if (count == 0) {
+                    break;
+                }
+                ServerMetrics.BYTES_OUT.add(c.tls == null ? c.channel.write(gather, 0, count) : c.tls.write(c.channel, gather, 0, count));
+                int first = 0;
+                while (first < count && !gather[first].hasRemaining()) {
+                    first++;
+                }
+                if (first < count) {
+                    c.unwritten = Arrays.copyOfRange(gather, first, count);
+                }
+                Arrays.fill(gather, 0, count, null);
+                if (c.unwritten != null) {
+                    if (c.tls != null && !c.tls.hasPendingOutput()) {
+                        // The handshake holds the data back; the drain stays scheduled until it is done.
+                        c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    // The drain stays scheduled until OP_WRITE fires again.
+                    c.key.interestOps(c.key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            c.key.interestOps(c.key.interestOps() & ~SelectionKey.OP_WRITE);
+        } while (c.outbound.finishDrain());
+    }
+
+    /**
+     * Close the connection of the client and end its session.
+     *
+     * @param c the connection of the client
+     */
+    private void close(Connection c) {
+        if (c.tls != null) {
+            c.tls.close(c.channel);
+        }
+        if (c.key != null) {
+            c.key.cancel();
+        }
+        if (c.session != null) {
+            c.session.closeConnection();
+        }
+        else {
+            try {
+                c.channel.close();
+            }
+            catch (IOException e) {
+                System.err.println("Exception when closing the channel");
+            }
+        }
+    }
+
+    /**
+     * Connection is used by EventLoop to keep the state of one client channel.
+     * <br>It contains members: channel, key, session, tls, partial, partialLength, outbound, unwritten,
+     * and methods: takeLine(byte[] bytes, int from, int to), keepPartial(byte[] bytes, int from, int to).
+     */
+    class Connection {
+
+        /**
+         * The channel of the client.
+         */
+        final SocketChannel channel;
+
+        /**
+         * The selection key of the channel.
+         */
+        SelectionKey key;
+
+        /**
+         * The session driven by this connection.
+         */
+        Server.HandleSession session;
+
+        /**
+         * The TLS state of the channel, or null if the server does not use TLS.
+         */
+        TlsChannel tls;
+
+        /**
+         * The bytes of the line which has not been completed yet.
+         */
+        private byte[] partial;
+
+        /**
+         * The number of bytes in partial.
+         */
+        private int partialLength = 0;
+
+        /**
+         * The data waiting to be written to the client. It is drained by the loop.
+         */
+        final ClientOutbound outbound = new ClientOutbound() {
+            protected void scheduleDrain() {
+                execute(new Runnable() {
+                    public void run() {
+                        try {
+                            flush(Connection.this);
+                        }
+                        catch (IOException | CancelledKeyException e) {
+                            close(Connection.this);
+                        }
+                    }
+                });
+            }
+
+            protected void abortClient() {
+                execute(new Runnable() {
+                    public void run() {
+                        close(Connection.this);
+                    }
+                });
+            }
+
+            protected void shutdownOutput() {
+                execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (tls != null) {
+                                // The client reads close_notify before the end of the stream.
+                                tls.close(channel);
+                            }
+                            channel.shutdownOutput();
+                        }
+                        catch (IOException e) {
+                            close(Connection.this);
+                        }
+                    }
+                });
+            }
+        };
+
+        /**
+         * The buffers which could not be written because the socket buffer of the client was full.
+         */
+        private ByteBuffer[] unwritten;
+
+        /**
+         * The constructor of Connection class.
+         *
+         * @param channel the channel of the client
+         */
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Decode one complete line ending at the given newline.
+         *
+         * @param bytes the bytes read from the channel
+         * @param from the start of the line in bytes
+         * @param to the index of the newline in bytes
+         * @return String or null if the line is longer than MAX_LINE_LENGTH
+         */
+        String takeLine(byte[] bytes, int from, int to) {
+            byte[] source = bytes;
+            int start = from;
+            int end = to;
+            if (partialLength > 0) {
+                if (!keepPartial(bytes, from, to)) {
+                    // The end of the line does not fit; none of it may be handled as a line of its own.
+                    partialLength = 0;
+                    return null;
+                }
+                source = partial;
+                start = 0;
+                end = partialLength;
+                partialLength = 0;
+            }
+            else if (end - start > MAX_LINE_LENGTH) {
+                return null;
+            }
+            if (end > start && source[end - 1] == '\r') {
+                end--;
+            }
+            String line = new String(source, start, end - start, StandardCharsets.UTF_8);
+            if (partial != null && partial.length > 1024) {
+                // Do not keep a large buffer for a client that sent one long line.
+                partial = null;
+            }
+            return line;
+        }
+
+        /**
+         * Keep the bytes of an incomplete line until the rest of it arrives.
+         *
+         * @param bytes the bytes read from the channel
+         * @param from the start of the incomplete line
+         * @param to the end of the incomplete line
+         * @return boolean whether the line is still within MAX_LINE_LENGTH
+         */
+        boolean keepPartial(byte[] bytes, int from, int to) {
+            int length = to - from;
+            if (length == 0) {
+                return true;
+            }
+            if (partialLength + length > MAX_LINE_LENGTH) {
+                return false;
+            }
+            if (partial == null || partial.length < partialLength + length) {
+                partial = Arrays.copyOf(partial == null ? new byte[0] : partial, Math.max(256, (partialLength + length) * 2));
+            }
+            System.arraycopy(bytes, from, partial, partialLength, length);
+            partialLength += length;
+            return true;
+        }
+    }
+}
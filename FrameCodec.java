@@ -0,0 +1,209 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FrameCodec describes the binary wire protocol which clients can use instead of text lines.
+ * <br>A frame is [int length][byte type][length bytes of UTF-8 text]. The text may contain newlines and is decoded
+ * straight out of the receive buffer. The server never passes a line break of a client to the text clients: a CHAT
+ * frame with line breaks is broadcast as one chat message per line, and any other frame with line breaks is refused.
+ * <br>The protocol is negotiated in the WELCOME handshake: instead of a username the client sends the line
+ * BINARY_REQUEST and waits for the line BINARY_ACCEPT. From then on both sides only send frames. A client which never
+ * asks keeps the text protocol.
+ * <br>Additional feature: The client can ask for compression with "\binary deflate" or "\binary deflate-shared".
+ * The server then answers BINARY_ACCEPT followed by the same option, and may send COMPRESSED frames, whose payload
+ * is one or more frames compressed with raw deflate, see FrameCompressor. The client never compresses.
+ * <br>It contains members: CHAT, COMMAND, SYSTEM, EMOJI, COMPRESSED, HEADER_LENGTH, MAX_PAYLOAD, BINARY_REQUEST,
+ * BINARY_ACCEPT, DEFLATE, DEFLATE_SHARED, DEFLATE_DICTIONARY,
+ * and methods: encode(byte type, String text), encodeLines(byte type, CharSequence text), wrapLine(byte type, ByteBuffer line),
+ * wrapLines(byte type, List&lt;ByteBuffer&gt; lines), hasLineBreak(String text), splitLines(String text).
+ *
+ * @author Zhiyong Liu
+ */
+class FrameCodec {
+
+    /**
+     * The type of a chat message.
+     */
+    static final byte CHAT = 1;
+
+    /**
+     * The type of a command sent by the client.
+     */
+    static final byte COMMAND = 2;
+
+    /**
+     * The type of a message from the server, e.g. a reply or a notice.
+     */
+    static final byte SYSTEM = 3;
+
+    /**
+     * The type of an emoji message.
+     */
+    static final byte EMOJI = 4;
+
+    /**
+     * The type of a frame sent by the server whose payload is one or more frames compressed with raw deflate.
+     */
+    static final byte COMPRESSED = 5;
+
+    /**
+     * The bytes before the payload of a frame.
+     */
+    static final int HEADER_LENGTH = 5;
+
+    /**
+     * The largest payload of a frame.
+     */
+    static final int MAX_PAYLOAD = 64 * 1024 - HEADER_LENGTH;
+
+    /**
+     * The line which asks the server for binary frames.
+     */
+    static final String BINARY_REQUEST = "\\binary";
+
+    /**
+     * The line which confirms binary frames. It is the last text line the server sends.
+     */
+    static final String BINARY_ACCEPT = "Binary frames accepted.";
+
+    /**
+     * The compression with one deflate stream for the whole connection, so later messages are compressed with
+     * the words of earlier ones.
+     */
+    static final String DEFLATE = "deflate";
+
+    /**
+     * The compression where every compressed frame stands alone, so the server can compress a broadcast once
+     * and send the same bytes to every client which asked for it.
+     */
+    static final String DEFLATE_SHARED = "deflate-shared";
+
+    /**
+     * The preset dictionary of both compressions. It holds the words the server sends most, so even the first
+     * message and a frame which stands alone are compressed well.
+     */
+    static final byte[] DEFLATE_DICTIONARY = ("------ Recent messages in  ------ The last  messages ------"
+            + " has left room  has joined room  (Members: ) has left the chat. has entered the chat (Current online: "
+            + "Your username is accepted. Please type messages (private): Private message to  is sent. "
+            + "The server is shut down. The server is shutting down, your message was not sent. "
+            + "You are sending messages too fast, some of them are dropped. "
+            + "\\help: List all the commands that can be sent \\quit: Quit the chat room \\history [n]: "
+            + "\\join <room>: Join or create a chat room \\msg <user> <message>: Send a private message to one user "
+            + "the chat room lobby\n(Time: ").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Encode one frame.
+     *
+     * @param type the type of the frame
+     * @param text the payload
+     * @return ByteBuffer which is ready to be written
+     */
+    static ByteBuffer encode(byte type, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+        frame.putInt(payload.length).put(type).put(payload).flip();
+        return frame;
+    }
+
+    /**
+     * Encode every line of the text as its own frame, all in one buffer.
+     *
+     * @param type the type of the frames
+     * @param text the lines, each one ended by a line separator
+     * @return ByteBuffer which is ready to be written
+     */
+    static ByteBuffer encodeLines(byte type, CharSequence text) {
+        String[] lines = text.toString().split("\r?\n");
+        byte[][] payloads = new byte[lines.length][];
+        int size = 0;
+        for (int i = 0; i < lines.length; i++) {
+            payloads[i] = lines[i].getBytes(StandardCharsets.UTF_8);
+            size += HEADER_LENGTH + payloads[i].length;
+        }
+        ByteBuffer frames = ByteBuffer.allocate(size);
+        for (byte[] payload : payloads) {
+            frames.putInt(payload.length).put(type).put(payload);
+        }
+        frames.flip();
+        return frames;
+    }
+
+    /**
+     * Turn an encoded text line into a frame.
+     *
+     * @param type the type of the frame
+     * @param line the UTF-8 bytes of the line, with or without its line separator; it is not modified
+     * @return ByteBuffer which is ready to be written
+     */
+    static ByteBuffer wrapLine(byte type, ByteBuffer line) {
+        ByteBuffer payload = line.duplicate();
+        payload.limit(payload.position() + payloadLength(line));
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + payload.remaining());
+        frame.putInt(payload.remaining()).put(type).put(payload).flip();
+        return frame;
+    }
+
+    /**
+     * Turn encoded text lines into frames, all in one buffer, e.g. a burst of history.
+     *
+     * @param type the type of the frames
+     * @param lines the UTF-8 bytes of the lines, with or without their line separators; they are not modified
+     * @return ByteBuffer which is ready to be written
+     */
+    static ByteBuffer wrapLines(byte type, List<ByteBuffer> lines) {
+        int size = 0;
+        for (ByteBuffer line : lines) {
+            size += HEADER_LENGTH + payloadLength(line);
+        }
+        ByteBuffer frames = ByteBuffer.allocate(size);
+        for (ByteBuffer line : lines) {
+            ByteBuffer payload = line.duplicate();
+            payload.limit(payload.position() + payloadLength(line));
+            frames.putInt(payload.remaining()).put(type).put(payload);
+        }
+        frames.flip();
+        return frames;
+    }
+
+    /**
+     * Test whether the text of a frame contains a line break, which a text client would read as the end of a line.
+     *
+     * @param text the text
+     * @return boolean
+     */
+    static boolean hasLineBreak(String text) {
+        return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    /**
+     * Split the text of a frame into the lines a text client would read, without the empty ones.
+     *
+     * @param text the text
+     * @return List of the lines
+     */
+    static List<String> splitLines(String text) {
+        List<String> lines = new ArrayList<String>();
+        for (String line : text.split("\r\n|\r|\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Get the length of an encoded text line without its line separator.
+     *
+     * @param line the UTF-8 bytes of the line
+     * @return int
+     */
+    private static int payloadLength(ByteBuffer line) {
+        int end = line.limit();
+        while (end > line.position() && (line.get(end - 1) == '\n' || line.get(end - 1) == '\r')) {
+            end--;
+        }
+        return end - line.position();
+    }
+}
@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * FrameCompressor compresses the frames sent to a binary client which asked for compression.
+ * <br>The frames are compressed when the outbound queue of the client is drained, so everything one drain writes,
+ * e.g. a burst of history or the lines of \help, becomes one COMPRESSED frame, and the data dropped by a full
+ * queue has never been compressed. Less than THRESHOLD bytes are sent as they are.
+ * <br>With DEFLATE every client has its own deflate stream, which is flushed but never reset, so repeated words
+ * of earlier messages make later ones smaller. The stream needs a few hundred KB of native memory per client.
+ * <br>With DEFLATE_SHARED every COMPRESSED frame stands alone. A broadcast is compressed once by compressShared()
+ * and the same bytes go to every client which asked for it; the deflaters are borrowed from a small pool.
+ * <br>Both start from the preset dictionary of FrameCodec. The trailing empty block of every flush is left out,
+ * as in the permessage-deflate extension of WebSocket.
+ * <br>It contains members: THRESHOLD, LEVEL, POOL_SIZE, TAIL, SHARED, pool, pooled, deflater, isEnded,
+ * and methods: create(String mode), compressShared(ByteBuffer frame), compress(ByteBuffer[] batch, int from, int count),
+ * end(), deflate(Deflater deflater, ByteBuffer[] buffers, int from, int to, int size), isCompressed(ByteBuffer data).
+ *
+ * @author Zhiyong Liu
+ */
+class FrameCompressor {
+
+    /**
+     * The smallest number of bytes which are compressed.
+     */
+    static final int THRESHOLD = Integer.getInteger("chatroom.compressThreshold", 256);
+
+    /**
+     * The level of the deflaters, from 1 (fastest) to 9 (smallest).
+     */
+    static final int LEVEL = Integer.getInteger("chatroom.compressLevel", 6);
+
+    /**
+     * The largest number of free deflaters kept in the pool of DEFLATE_SHARED.
+     */
+    private static final int POOL_SIZE = 64;
+
+    /**
+     * The end of a flushed deflate block, which is not sent and is added again by the receiver.
+     */
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    /**
+     * The compressor of all the clients which asked for DEFLATE_SHARED.
+     */
+    static final FrameCompressor SHARED = new FrameCompressor(null);
+
+    /**
+     * The free deflaters of DEFLATE_SHARED.
+     */
+    private static final Queue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+
+    /**
+     * The number of deflaters in the pool.
+     */
+    private static final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * The deflate stream of one client, or null for SHARED.
+     */
+    private final Deflater deflater;
+
+    /**
+     * To denote whether the deflate stream has been freed because the client is gone.
+     */
+    private boolean isEnded = false;
+
+    /**
+     * The constructor of FrameCompressor class.
+     *
+     * @param deflater the deflate stream of one client, or null for SHARED
+     */
+    private FrameCompressor(Deflater deflater) {
+        this.deflater = deflater;
+    }
+
+    /**
+     * Create the compressor of a client.
+     *
+     * @param mode the compression the client asked for
+     * @return FrameCompressor or null if the server does not know the compression
+     */
+    static FrameCompressor create(String mode) {
+        if (mode.equals(FrameCodec.DEFLATE_SHARED)) {
+            return SHARED;
+        }
+        if (mode.equals(FrameCodec.DEFLATE)) {
+            Deflater deflater = new Deflater(LEVEL, true);
+            deflater.setDictionary(FrameCodec.DEFLATE_DICTIONARY);
+            return new FrameCompressor(deflater);
+        }
+        return null;
+    }
+
+    /**
+     * Compress one frame for all the clients which asked for DEFLATE_SHARED.
+     *
+     * @param frame the frame; it is not modified
+     * @return ByteBuffer the COMPRESSED frame, or frame itself if it is too small or does not get smaller
+     */
+    static ByteBuffer compressShared(ByteBuffer frame) {
+        ByteBuffer[] buffers = {frame};
+        SHARED.compress(buffers, 0, 1);
+        return buffers[0];
+    }
+
+    /**
+     * Compress the buffers of one drain in place. Every run of frames which are not compressed yet and have
+     * THRESHOLD bytes or more becomes one COMPRESSED frame.
+     *
+     * @param batch the buffers of the drain, each of them whole frames
+     * @param from the first buffer to compress
+     * @param count the number of buffers to compress
+     * @return int the number of buffers left in batch from the index from
+     */
+    int compress(ByteBuffer[] batch, int from, int count) {
+        int end = from + count;
+        int to = from;
+        int i = from;
+        while (i < end) {
+            int j = i;
+            int size = 0;
+            while (j < end && !isCompressed(batch[j])) {
+                size += batch[j].remaining();
+                j++;
+            }
+            ByteBuffer compressed = null;
+            if (size >= THRESHOLD) {
+                if (deflater != null) {
+                    synchronized (this) {
+                        if (!isEnded) {
+                            compressed = deflate(deflater, batch, i, j, size);
+                        }
+                    }
+                }
+                else {
+                    Deflater shared = pool.poll();
+                    if (shared == null) {
+                        shared = new Deflater(LEVEL, true);
+                    }
+                    else {
+                        pooled.decrementAndGet();
+                    }
+                    shared.reset();
+                    shared.setDictionary(FrameCodec.DEFLATE_DICTIONARY);
+                    compressed = deflate(shared, batch, i, j, size);
+                    if (pooled.incrementAndGet() > POOL_SIZE) {
+                        pooled.decrementAndGet();
+                        shared.end();
+                    }
+                    else {
+                        pool.add(shared);
+                    }
+                    if (compressed.remaining() >= size) {
+                        // A frame which stands alone can be sent as it is.
+                        compressed = null;
+                    }
+                }
+            }
+            if (compressed != null) {
+                batch[to++] = compressed;
+                i = j;
+            }
+            else {
+                while (i < j) {
+                    batch[to++] = batch[i++];
+                }
+            }
+            if (i < end) {
+                // An already compressed frame of DEFLATE_SHARED.
+                batch[to++] = batch[i++];
+            }
+        }
+        Arrays.fill(batch, to, end, null);
+        return to - from;
+    }
+
+    /**
+     * Free the deflate stream of a client which is gone. Later drains send the frames as they are.
+     */
+    synchronized void end() {
+        if (deflater != null && !isEnded) {
+            isEnded = true;
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compress buffers into one COMPRESSED frame and flush the deflater.
+     *
+     * @param deflater the deflater
+     * @param buffers the buffers
+     * @param from the first buffer
+     * @param to the end of the buffers
+     * @param size the number of bytes in the buffers
+     * @return ByteBuffer which is ready to be written
+     */
+    private static ByteBuffer deflate(Deflater deflater, ByteBuffer[] buffers, int from, int to, int size) {
+        byte[] output = new byte[FrameCodec.HEADER_LENGTH + size / 2 + 64];
+        int length = FrameCodec.HEADER_LENGTH;
+        for (int i = from; i < to; i++) {
+            deflater.setInput(buffers[i].duplicate());
+            while (!deflater.needsInput()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                length += deflater.deflate(output, length, output.length - length, Deflater.NO_FLUSH);
+            }
+        }
+        while (true) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            int room = output.length - length;
+            int n = deflater.deflate(output, length, room, Deflater.SYNC_FLUSH);
+            length += n;
+            if (n < room) {
+                break;
+            }
+        }
+        length -= TAIL.length;
+        ServerMetrics.COMPRESS_IN.add(size);
+        ServerMetrics.COMPRESS_OUT.add(length);
+        ByteBuffer frame = ByteBuffer.wrap(output, 0, length);
+        frame.putInt(0, length - FrameCodec.HEADER_LENGTH).put(4, FrameCodec.COMPRESSED);
+        return frame;
+    }
+
+    /**
+     * Test whether the buffer is a COMPRESSED frame.
+     *
+     * @param data the buffer
+     * @return boolean
+     */
+    private static boolean isCompressed(ByteBuffer data) {
+        return data.remaining() > FrameCodec.HEADER_LENGTH && data.get(data.position() + 4) == FrameCodec.COMPRESSED;
+    }
+
+    /**
+     * Decompressor is used by the client to get the frames back out of COMPRESSED frames.
+     * <br>It contains members: inflater, isStreaming,
+     * and methods: inflate(byte[] payload).
+     */
+    static class Decompressor {
+
+        /**
+         * The inflate stream of the connection.
+         */
+        private final Inflater inflater = new Inflater(true);
+
+        /**
+         * To denote whether the stream goes on across frames, which is the case for DEFLATE.
+         */
+        private final boolean isStreaming;
+
+        /**
+         * The constructor of Decompressor class.
+         *
+         * @param mode the compression the server accepted
+         */
+        Decompressor(String mode) {
+            isStreaming = mode.equals(FrameCodec.DEFLATE);
+            if (isStreaming) {
+                inflater.setDictionary(FrameCodec.DEFLATE_DICTIONARY);
+            }
+        }
+
+        /**
+         * Decompress the payload of one COMPRESSED frame.
+         *
+         * @param payload the payload
+         * @return byte[] the frames in it
+         * @throws IOException if the payload is invalid
+         */
+        byte[] inflate(byte[] payload) throws IOException {
+            if (!isStreaming) {
+                inflater.reset();
+                inflater.setDictionary(FrameCodec.DEFLATE_DICTIONARY);
+            }
+            byte[] input = Arrays.copyOf(payload, payload.length + TAIL.length);
+            System.arraycopy(TAIL, 0, input, payload.length, TAIL.length);
+            inflater.setInput(input);
+            byte[] output = new byte[Math.max(256, payload.length * 4)];
+            int length = 0;
+            try {
+                while (true) {
+                    if (length == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    int n = inflater.inflate(output, length, output.length - length);
+                    length += n;
+                    if (n == 0 && (inflater.needsInput() || inflater.finished())) {
+                        break;
+                    }
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("Invalid compressed frame: " + e.getMessage(), e);
+            }
+            return Arrays.copyOf(output, length);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * LatencyHistogram counts values, e.g. latencies, in buckets which grow with the value, so a small fixed array covers
+ * from one unit up to hours with about 6% error.
+ * <br>The counts are striped: a recording thread only increments a bucket in the stripe chosen by its thread id,
+ * so threads recording at the same time rarely touch the same cache line. The stripes are only added up when the
+ * histogram is read.
+ * <br>It contains members: SUB_BUCKETS, BUCKETS, stripes, max,
+ * and methods: record(long value), add(LatencyHistogram other), count(), max(), percentile(double percent).
+ *
+ * @author Zhiyong Liu
+ */
+class LatencyHistogram {
+
+    /**
+     * The number of buckets between two powers of two.
+     */
+    private static final int SUB_BUCKETS = 16;
+
+    /**
+     * The number of buckets of a stripe.
+     */
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    /**
+     * The counts of the buckets, one array for each stripe.
+     */
+    private final AtomicLongArray[] stripes;
+
+    /**
+     * The largest value recorded.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * The constructor of LatencyHistogram class with one stripe for each processor.
+     */
+    LatencyHistogram() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The constructor of LatencyHistogram class.
+     *
+     * @param stripeCount the number of threads expected to record at the same time; it is rounded up to a power of two
+     */
+    LatencyHistogram(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new AtomicLongArray[stripeCount <= 1 ? 1 : size];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Record one value.
+     *
+     * @param value the value; a negative one is counted as zero
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        stripe.getAndIncrement(index(value));
+        max.accumulate(value);
+    }
+
+    /**
+     * Add the values of another histogram to this one.
+     *
+     * @param other the other histogram
+     */
+    void add(LatencyHistogram other) {
+        long[] counts = other.counts();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (counts[i] > 0) {
+                stripes[0].getAndAdd(i, counts[i]);
+            }
+        }
+        max.accumulate(other.max());
+    }
+
+    /**
+     * Get the number of values recorded.
+     *
+     * @return long
+     */
+    long count() {
+        long count = 0;
+        for (long bucket : counts()) {
+            count += bucket;
+        }
+        return count;
+    }
+
+    /**
+     * Get the largest value recorded.
+     *
+     * @return long
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * Get the value below which the given percent of the values are.
+     *
+     * @param percent the percent, e.g. 99.9
+     * @return long the upper bound of the bucket, or 0 if nothing is recorded
+     */
+    long percentile(double percent) {
+        long[] counts = counts();
+        long count = 0;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max(), upperBound(i));
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Add up the stripes.
+     *
+     * @return long[] the count of each bucket
+     */
+    private long[] counts() {
+        long[] counts = new long[BUCKETS];
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Get the bucket of a value.
+     *
+     * @param value the value
+     * @return int
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - Integer.numberOfTrailingZeros(SUB_BUCKETS);
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Get the largest value of a bucket.
+     *
+     * @param index the bucket
+     * @return long
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long base = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return base + (1L << shift) - 1;
+    }
+}
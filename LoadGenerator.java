@@ -0,0 +1,694 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator is the headless mode of Client, started with "java Client load". It measures how many messages
+ * a server delivers and how long the fan-out takes.
+ * <br>It opens CLIENTS sessions, completes the username handshake of each one itself and puts them all in the lobby.
+ * Then the sessions take turns to send RATE messages per second in total. Every message carries the System.nanoTime()
+ * of its sending, so each copy the server delivers to a session gives one end-to-end latency.
+ * <br>The sessions are read by a few selector threads instead of one thread each, so thousands of them fit in
+ * one process. The latencies measured after the warm-up are reported as p50/p99/p999 at the end, together with
+ * the messages delivered per second.
+ * <br>Additional feature: "java Client load scale" shows how far the number of connections scales in each execution
+ * mode of the server. For every mode in MODES it starts a server in its own JVM, opens idle sessions to it in steps
+ * of STEP up to MAX_CLIENTS, and prints the time each step took with the threads and the resident memory of the
+ * server. A mode stops at the first step which fails or takes longer than STEP_TIMEOUT_SECONDS.
+ * <br>It contains members: HOST, PORTS, CLIENTS, RATE, SECONDS, WARMUP_SECONDS, MESSAGE_BYTES, READERS, MODES,
+ * MAX_CLIENTS, STEP, STEP_TIMEOUT_SECONDS, SERVER_OPTIONS, MARKER, channels, readers, sent, isRunning, isMeasuring,
+ * and methods: main(String[] args), run(), runScaling(), scale(String mode, int port), startServer(String mode, int port),
+ * waitForServer(Process server, int port), isListening(int port), stopServer(Process server), serverStatus(Process server),
+ * connect(String name, int port), send(long sequence), report(long nanos).
+ *
+ * @author Zhiyong Liu
+ */
+class LoadGenerator {
+
+    /**
+     * The address of the server.
+     */
+    static final String HOST = System.getProperty("chatroom.load.host", "localhost");
+
+    /**
+     * The port numbers of the servers, separated by commas. The sessions are spread over them in turn,
+     * e.g. over the nodes of a cluster on one machine.
+     */
+    static final String PORTS = System.getProperty("chatroom.load.ports", String.valueOf(Integer.getInteger("chatroom.port", 4396)));
+
+    /**
+     * The number of sessions opened.
+     */
+    static final int CLIENTS = Integer.getInteger("chatroom.load.clients", 1000);
+
+    /**
+     * The number of messages sent per second by all the sessions together.
+     */
+    static final int RATE = Integer.getInteger("chatroom.load.rate", 100);
+
+    /**
+     * The time the messages are sent for, warm-up included.
+     */
+    static final int SECONDS = Integer.getInteger("chatroom.load.seconds", 30);
+
+    /**
+     * The time at the start whose latencies are not counted.
+     */
+    static final int WARMUP_SECONDS = Integer.getInteger("chatroom.load.warmupSeconds", 5);
+
+    /**
+     * The size of the text of a message, the time stamp included.
+     */
+    static final int MESSAGE_BYTES = Integer.getInteger("chatroom.load.messageBytes", 64);
+
+    /**
+     * The number of threads which read the sessions.
+     */
+    static final int READERS = Integer.getInteger("chatroom.load.readers",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The execution modes of the server compared by the scaling test, separated by commas.
+     */
+    static final String MODES = System.getProperty("chatroom.load.modes", "thread,virtual,nio");
+
+    /**
+     * The largest number of sessions the scaling test opens to one server.
+     */
+    static final int MAX_CLIENTS = Integer.getInteger("chatroom.load.maxClients", 10000);
+
+    /**
+     * The number of sessions the scaling test adds in one step.
+     */
+    static final int STEP = Integer.getInteger("chatroom.load.step", 1000);
+
+    /**
+     * The longest time one step of the scaling test may take.
+     */
+    static final int STEP_TIMEOUT_SECONDS = Integer.getInteger("chatroom.load.stepTimeoutSeconds", 60);
+
+    /**
+     * The JVM options of the servers started by the scaling test, separated by spaces, e.g. "-Xmx1g".
+     */
+    static final String SERVER_OPTIONS = System.getProperty("chatroom.load.serverOptions", "");
+
+    /**
+     * The text in front of the time stamp of a message.
+     */
+    private static final String MARKER = "@load ";
+
+    /**
+     * The channels of the sessions.
+     */
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+    /**
+     * The threads which read the sessions.
+     */
+    private final List<SessionReader> readers = new ArrayList<SessionReader>();
+
+    /**
+     * The number of messages sent.
+     */
+    private final AtomicLong sent = new AtomicLong(0);
+
+    /**
+     * To denote whether the sessions are still read.
+     */
+    private volatile boolean isRunning = true;
+
+    /**
+     * To denote whether the warm-up is over and deliveries are counted.
+     */
+    private volatile boolean isMeasuring = false;
+
+    /**
+     * The entry of the load generator.
+     *
+     * @param args the information from console
+     * @throws Exception if some exception occurs
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 1 && args[1].equals("scale")) {
+            runScaling();
+            return;
+        }
+        new LoadGenerator().run();
+    }
+
+    /**
+     * Run the scaling test for every mode in MODES and print the results side by side.
+     *
+     * @throws Exception if a server can not be started
+     */
+    static void runScaling() throws Exception {
+        int port = Integer.parseInt(PORTS.split(",")[0].trim());
+        List<String> rows = new ArrayList<String>();
+        for (String mode : MODES.split(",")) {
+            rows.add(new LoadGenerator().scale(mode.trim(), port));
+        }
+        System.out.println("------ Connection scaling report ------");
+        System.out.printf("%-8s %9s %9s %12s %15s %14s  %s%n", "Mode", "Sessions", "Seconds", "Sessions/s",
+                "Server threads", "Server RSS MB", "Stopped by");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    /**
+     * Open idle sessions in steps to a server in one mode until MAX_CLIENTS are open or a step fails.
+     * <br>The sessions are read all the time, so the notices of the joining sessions do not fill the queues
+     * of the server, and the heartbeats are answered.
+     *
+     * @param mode the execution mode of the server
+     * @param port the port number of the server
+     * @return String the row of the mode in the report
+     * @throws Exception if the server can not be started
+     */
+    private String scale(String mode, int port) throws Exception {
+        System.out.println("Starting a server in " + mode + " mode on port " + port + "...");
+        Process server = startServer(mode, port);
+        ExecutorService connectors = Executors.newFixedThreadPool(16);
+        List<Thread> readerThreads = new ArrayList<Thread>();
+        String stoppedBy = "-";
+        long[] status = {-1, -1};
+        long start = System.nanoTime();
+        long nanos = 0;
+        try {
+            waitForServer(server, port);
+            for (int i = 0; i < READERS; i++) {
+                SessionReader reader = new SessionReader();
+                readers.add(reader);
+                Thread thread = new Thread(reader, "load-reader");
+                thread.setDaemon(true);
+                thread.start();
+                readerThreads.add(thread);
+            }
+            String prefix = "scale" + ProcessHandle.current().pid() + "-" + mode + "-";
+            start = System.nanoTime();
+            for (int target = Math.min(STEP, MAX_CLIENTS); channels.size() < MAX_CLIENTS; target = Math.min(target + STEP, MAX_CLIENTS)) {
+                long stepStart = System.nanoTime();
+                List<Future<SocketChannel>> connections = new ArrayList<Future<SocketChannel>>();
+                for (int i = channels.size(); i < target; i++) {
+                    String name = prefix + i;
+                    connections.add(connectors.submit(new Callable<SocketChannel>() {
+                        public SocketChannel call() throws IOException {
+                            return connect(name, port);
+                        }
+                    }));
+                }
+                long deadline = stepStart + TimeUnit.SECONDS.toNanos(STEP_TIMEOUT_SECONDS);
+                for (Future<SocketChannel> connection : connections) {
+                    try {
+                        SocketChannel channel = connection.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                        readers.get(channels.size() % READERS).add(channel);
+                        channels.add(channel);
+                    }
+                    catch (TimeoutException e) {
+                        stoppedBy = "step took over " + STEP_TIMEOUT_SECONDS + " s";
+                        break;
+                    }
+                    catch (ExecutionException e) {
+                        stoppedBy = String.valueOf(e.getCause().getMessage());
+                        break;
+                    }
+                }
+                nanos = System.nanoTime() - start;
+                status = serverStatus(server);
+                if (!stoppedBy.equals("-")) {
+                    for (Future<SocketChannel> connection : connections) {
+                        if (!connection.cancel(true) && !connection.isCancelled()) {
+                            closeOpened(connection);
+                        }
+                    }
+                    break;
+                }
+                System.out.printf("%s: %d sessions, step %.1f s, server threads %d, server RSS %d MB%n", mode, channels.size(),
+                        (System.nanoTime() - stepStart) / 1e9, status[0], status[1] / 1024);
+                if (!server.isAlive()) {
+                    stoppedBy = "the server exited";
+                    break;
+                }
+            }
+        }
+        finally {
+            connectors.shutdownNow();
+            // The server closes the sessions while they are still read, so none of them is reset.
+            stopServer(server);
+            isRunning = false;
+            for (Thread thread : readerThreads) {
+                thread.join();
+            }
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                }
+                catch (IOException e) {
+                    System.err.println("Exception when closing the socket");
+                }
+            }
+        }
+        double seconds = nanos / 1e9;
+        return String.format("%-8s %9d %9.1f %12.0f %15d %14d  %s", mode, channels.size(), seconds,
+                seconds > 0 ? channels.size() / seconds : 0, status[0], status[1] < 0 ? -1 : status[1] / 1024, stoppedBy);
+    }
+
+    /**
+     * Close the session of a connection which finished after its step had already failed.
+     *
+     * @param connection the connection
+     */
+    private static void closeOpened(Future<SocketChannel> connection) {
+        try {
+            connection.get().close();
+        }
+        catch (Exception e) {
+            // The session was not opened.
+        }
+    }
+
+    /**
+     * Start a server in its own JVM, with the same class path as this one. The heartbeats and idle timeouts
+     * are turned off, so the idle sessions stay, and so are the log and the message log.
+     *
+     * @param mode the execution mode of the server
+     * @param port the port number of the server
+     * @return Process
+     * @throws IOException if the port is in use or the JVM can not be started
+     */
+    private static Process startServer(String mode, int port) throws IOException {
+        if (isListening(port)) {
+            throw new IOException("Port " + port + " is already in use, the scaling test needs a free port.");
+        }
+        List<String> command = new ArrayList<String>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        for (String option : SERVER_OPTIONS.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "-Dchatroom.port=" + port,
+                "-Dchatroom.logLevel=off", "-Dchatroom.logDir=", "-Dchatroom.heartbeatMillis=0",
+                "-Dchatroom.idleTimeoutMillis=0", "Server", mode));
+        return new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    /**
+     * Wait until the server accepts connections.
+     *
+     * @param server the process of the server
+     * @param port the port number of the server
+     * @throws IOException if the server exits or does not start within 30 seconds
+     */
+    private static void waitForServer(Process server, int port) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            if (!server.isAlive()) {
+                throw new IOException("The server exited with " + server.exitValue());
+            }
+            if (isListening(port)) {
+                return;
+            }
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the server");
+            }
+        }
+        throw new IOException("The server did not start within 30 seconds");
+    }
+
+    /**
+     * Test whether something accepts connections on a port of HOST.
+     *
+     * @param port the port number
+     * @return boolean
+     */
+    private static boolean isListening(int port) {
+        try {
+            new Socket(HOST, port).close();
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop a server started by the scaling test, the way a rolling restart does, and kill it if it takes too long.
+     *
+     * @param server the process of the server
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private static void stopServer(Process server) throws InterruptedException {
+        server.destroy();
+        if (!server.waitFor(15, TimeUnit.SECONDS)) {
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    /**
+     * Get the number of threads and the resident memory of a server from /proc. It only works on Linux.
+     *
+     * @param server the process of the server
+     * @return long[] the threads and the resident memory in KB, -1 for what is not known
+     */
+    private static long[] serverStatus(Process server) {
+        long[] status = {-1, -1};
+        try (BufferedReader in = new BufferedReader(new FileReader("/proc/" + server.pid() + "/status"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("Threads:")) {
+                    status[0] = Long.parseLong(line.substring(8).trim());
+                }
+                else if (line.startsWith("VmRSS:")) {
+                    status[1] = Long.parseLong(line.substring(6).replace("kB", "").trim());
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            // Not on Linux, or the server has exited.
+        }
+        return status;
+    }
+
+    /**
+     * Open the sessions, send the messages for SECONDS and print the report.
+     *
+     * @throws Exception if the sessions can not be opened
+     */
+    void run() throws Exception {
+        System.out.println("Opening " + CLIENTS + " sessions to " + HOST + ":" + PORTS + "...");
+        String[] ports = PORTS.split(",");
+        ExecutorService connectors = Executors.newFixedThreadPool(16);
+        List<Future<SocketChannel>> connections = new ArrayList<Future<SocketChannel>>();
+        String prefix = "load" + ProcessHandle.current().pid() + "-";
+        for (int i = 0; i < CLIENTS; i++) {
+            String name = prefix + i;
+            int port = Integer.parseInt(ports[i % ports.length].trim());
+            connections.add(connectors.submit(new Callable<SocketChannel>() {
+                public SocketChannel call() throws IOException {
+                    return connect(name, port);
+                }
+            }));
+        }
+        for (Future<SocketChannel> connection : connections) {
+            channels.add(connection.get());
+        }
+        connectors.shutdown();
+
+        for (int i = 0; i < READERS; i++) {
+            readers.add(new SessionReader());
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            readers.get(i % READERS).add(channels.get(i));
+        }
+        List<Thread> readerThreads = new ArrayList<Thread>();
+        for (SessionReader reader : readers) {
+            Thread thread = new Thread(reader, "load-reader");
+            thread.setDaemon(true);
+            thread.start();
+            readerThreads.add(thread);
+        }
+        System.out.println("All sessions joined. Sending " + RATE + " messages per second for " + SECONDS
+                + " seconds (" + WARMUP_SECONDS + " seconds of warm-up)...");
+
+        // Send as many messages as are due every millisecond, so the rate holds without a timer per message.
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long end = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastDelivered = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (!isMeasuring && now >= measureStart) {
+                isMeasuring = true;
+            }
+            long due = (now - start) * RATE / TimeUnit.SECONDS.toNanos(1);
+            while (sent.get() < due) {
+                send(sent.getAndIncrement());
+            }
+            if (now >= nextReport) {
+                long delivered = delivered();
+                System.out.println("Sent " + sent.get() + ", delivered " + (delivered - lastDelivered) + "/s");
+                lastDelivered = delivered;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            Thread.sleep(1);
+        }
+        // Give the last messages time to arrive before they are counted.
+        Thread.sleep(1000);
+        isRunning = false;
+        for (Thread thread : readerThreads) {
+            thread.join();
+        }
+        report(Math.max(1, System.nanoTime() - 1000_000_000L - measureStart));
+        for (SocketChannel channel : channels) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                System.err.println("Exception when closing the socket");
+            }
+        }
+    }
+
+    /**
+     * Open one session and complete the username handshake.
+     *
+     * @param name the username of the session
+     * @param port the port number of the server
+     * @return SocketChannel which is in the lobby, in non-blocking mode
+     * @throws IOException if the server refuses the session
+     */
+    private SocketChannel connect(String name, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(HOST, port));
+        InputStream in = channel.socket().getInputStream();
+        OutputStream out = channel.socket().getOutputStream();
+        String line;
+        while ((line = ClientProtocol.readRawLine(in)) != null) {
+            if (line.startsWith(ClientProtocol.WELCOME)) {
+                out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            else if (line.startsWith(ClientProtocol.ACCEPT)) {
+                channel.configureBlocking(false);
+                return channel;
+            }
+        }
+        channel.close();
+        throw new EOFException("The server closed the session " + name + " during the handshake.");
+    }
+
+    /**
+     * Send one message from the next session in turn.
+     *
+     * @param sequence the number of the message
+     */
+    private void send(long sequence) {
+        SocketChannel channel = channels.get((int) (sequence % channels.size()));
+        StringBuilder message = new StringBuilder(MARKER).append(System.nanoTime()).append(' ');
+        while (message.length() < MESSAGE_BYTES) {
+            message.append('x');
+        }
+        ByteBuffer data = ByteBuffer.wrap(message.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+        try {
+            write(channel, data);
+        }
+        catch (IOException e) {
+            System.err.println("Exception in send():" + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a whole line to a session. The sender and the reader of the session may both write to it.
+     *
+     * @param channel the channel of the session
+     * @param data the line
+     * @throws IOException if an I/O error occurs
+     */
+    private static void write(SocketChannel channel, ByteBuffer data) throws IOException {
+        synchronized (channel) {
+            // The channel is non-blocking because its reader shares it; a line this short nearly always fits at once.
+            while (data.hasRemaining()) {
+                if (channel.write(data) == 0) {
+                    Thread.yield();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of messages delivered to all the sessions since the warm-up.
+     *
+     * @return long
+     */
+    private long delivered() {
+        long delivered = 0;
+        for (SessionReader reader : readers) {
+            delivered += reader.delivered;
+        }
+        return delivered;
+    }
+
+    /**
+     * Print the throughput and the latency percentiles.
+     *
+     * @param nanos the time over which the deliveries were counted
+     */
+    private void report(long nanos) {
+        LatencyHistogram total = new LatencyHistogram(1);
+        for (SessionReader reader : readers) {
+            total.add(reader.latencies);
+        }
+        long delivered = delivered();
+        System.out.println("------ Load report ------");
+        System.out.println("Sessions: " + channels.size());
+        System.out.println("Messages sent: " + sent.get());
+        System.out.println("Messages delivered: " + delivered);
+        System.out.printf("Delivered per second: %.1f%n", delivered * 1e9 / nanos);
+        System.out.printf("Latency p50: %.3f ms%n", total.percentile(50) / 1e3);
+        System.out.printf("Latency p99: %.3f ms%n", total.percentile(99) / 1e3);
+        System.out.printf("Latency p999: %.3f ms%n", total.percentile(99.9) / 1e3);
+        System.out.printf("Latency max: %.3f ms%n", total.max() / 1e3);
+    }
+
+    /**
+     * SessionReader is one thread which reads many sessions with a selector and records the latency of every
+     * message delivered to them.
+     * <br>It contains members: selector, pending, readBuffer, latencies, delivered,
+     * and methods: add(SocketChannel channel), run(), read(SelectionKey key).
+     */
+    private class SessionReader implements Runnable {
+
+        /**
+         * The selector of the sessions of this reader.
+         */
+        private final Selector selector;
+
+        /**
+         * The channels which have not been registered with the selector yet.
+         */
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+        /**
+         * The buffer shared by the sessions of this reader.
+         */
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+        /**
+         * The latencies measured by this reader. Only this reader writes to it.
+         */
+        final LatencyHistogram latencies = new LatencyHistogram(1);
+
+        /**
+         * The number of messages delivered to the sessions of this reader since the warm-up.
+         */
+        volatile long delivered = 0;
+
+        /**
+         * The constructor of SessionReader class.
+         *
+         * @throws IOException if the selector can not be opened
+         */
+        SessionReader() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Give a session to this reader. It is registered by the reader itself, so it may be added while the reader runs.
+         *
+         * @param channel the channel of the session
+         */
+        void add(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Read the sessions until the load generator stops.
+         */
+        public void run() {
+            try {
+                while (isRunning) {
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        channel.register(selector, SelectionKey.OP_READ, new StringBuilder());
+                    }
+                    selector.select(100);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        read(key);
+                    }
+                }
+            }
+            catch (IOException e) {
+                System.err.println("IOException in LoadGenerator:\n" + e.getMessage());
+            }
+        }
+
+        /**
+         * Read what has arrived for one session and record the messages with a time stamp.
+         *
+         * @param key the key of the session
+         * @throws IOException if the selector fails
+         */
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            StringBuilder line = (StringBuilder) key.attachment();
+            readBuffer.clear();
+            int count;
+            try {
+                count = channel.read(readBuffer);
+            }
+            catch (IOException e) {
+                count = -1;
+            }
+            if (count < 0) {
+                key.cancel();
+                channel.close();
+                return;
+            }
+            long now = System.nanoTime();
+            // The server only sends ASCII around the time stamp, so the bytes can be taken as characters.
+            byte[] bytes = readBuffer.array();
+            for (int i = 0; i < count; i++) {
+                if (bytes[i] == '\r') {
+                    continue;
+                }
+                if (bytes[i] != '\n') {
+                    line.append((char) bytes[i]);
+                    continue;
+                }
+                if (line.length() == ClientProtocol.HEARTBEAT.length() && line.toString().equals(ClientProtocol.HEARTBEAT)) {
+                    try {
+                        write(channel, ByteBuffer.wrap((ClientProtocol.HEARTBEAT_REPLY + "\n").getBytes(StandardCharsets.UTF_8)));
+                    }
+                    catch (IOException e) {
+                        // The next read finds the closed session.
+                    }
+                }
+                int marker = line.indexOf(MARKER);
+                if (marker >= 0 && isMeasuring) {
+                    int from = marker + MARKER.length();
+                    int to = line.indexOf(" ", from);
+                    long sentAt = Long.parseLong(line.substring(from, to < 0 ? line.length() : to));
+                    latencies.record((now - sentAt) / 1000);
+                    delivered++;
+                }
+                line.setLength(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,519 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MessageLog is the append-only log of all broadcast messages on disk. It lets the server show history
+ * to clients, also after a restart.
+ * <br>The log is split into segment files of SEGMENT_BYTES which are memory-mapped. Every record is written as
+ * [length][room][frame][length], so the newest records can be found by walking back from the end of a segment,
+ * and a frame can be sent to a client as a slice of the mapping without being copied into the heap.
+ * <br>Appends only copy into the mapping; a background thread forces the active segment to disk every
+ * SYNC_MILLIS, so many appends share one fsync. Old segments are deleted when the log grows over
+ * RETENTION_BYTES or a segment gets older than RETENTION_MILLIS.
+ * <br>Additional feature: Every record has a sequence number, its end position in the whole log. A segment file is
+ * named after its creation time and the position where it starts, so the numbers go on across restarts and a
+ * reconnecting client can get only the messages after the last number it saw.
+ * <br>It contains members: DIRECTORY, SEGMENT_BYTES, SYNC_MILLIS, RETENTION_BYTES, RETENTION_MILLIS, MAX_HISTORY,
+ * MAX_ROOM_BYTES, directory, segments, appendLock, isDirty, isClosed,
+ * and methods: open(), open(Path directory), append(String room, ByteBuffer frame), last(String room, int n),
+ * since(String room, long sequence, int n), end(), sync(), close().
+ *
+ * @author Zhiyong Liu
+ */
+class MessageLog {
+
+    /**
+     * The directory of the log. An empty value turns the log off.
+     */
+    static final String DIRECTORY = System.getProperty("chatroom.logDir", "chatlog");
+
+    /**
+     * The size of one segment file.
+     */
+    static final int SEGMENT_BYTES = Integer.getInteger("chatroom.logSegmentBytes", 16 * 1024 * 1024);
+
+    /**
+     * The time between two forces of the active segment to disk.
+     */
+    static final long SYNC_MILLIS = Long.getLong("chatroom.logSyncMillis", 100);
+
+    /**
+     * The largest total size of the segments which are kept.
+     */
+    static final long RETENTION_BYTES = Long.getLong("chatroom.logRetentionBytes", 1024L * 1024 * 1024);
+
+    /**
+     * The longest time a segment is kept after it has been filled.
+     */
+    static final long RETENTION_MILLIS = Long.getLong("chatroom.logRetentionHours", 7 * 24) * 60 * 60 * 1000;
+
+    /**
+     * The largest number of messages which can be asked for at once.
+     */
+    static final int MAX_HISTORY = 500;
+
+    /**
+     * The longest name of a room in bytes which a record can hold, because its length is written as a short.
+     * The messages of a room with a longer name are not logged.
+     */
+    static final int MAX_ROOM_BYTES = Short.MAX_VALUE;
+
+    /**
+     * The bytes of the header and the trailer of a record.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 2 + 4;
+
+    /**
+     * The directory of the segment files.
+     */
+    private final Path directory;
+
+    /**
+     * The segments from the oldest to the newest. The last one is written to.
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+
+    /**
+     * The lock of appending and rolling.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    /**
+     * To denote whether the active segment has records which are not forced to disk.
+     */
+    private volatile boolean isDirty = false;
+
+    /**
+     * To denote whether the log has been closed.
+     */
+    private volatile boolean isClosed = false;
+
+    /**
+     * The constructor of MessageLog class.
+     *
+     * @param directory the directory of the segment files
+     */
+    private MessageLog(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Open the log in DIRECTORY and start the thread which forces it to disk.
+     *
+     * @return MessageLog or null if the log is turned off
+     * @throws IOException if the log can not be opened
+     */
+    static MessageLog open() throws IOException {
+        if (DIRECTORY.isEmpty()) {
+            return null;
+        }
+        return open(Paths.get(DIRECTORY));
+    }
+
+    /**
+     * Open the log in a directory and start the thread which forces it to disk.
+     *
+     * @param directory the directory of the segment files
+     * @return MessageLog
+     * @throws IOException if the log can not be opened
+     */
+    static MessageLog open(Path directory) throws IOException {
+        MessageLog log = new MessageLog(directory);
+        log.recover();
+        Thread syncThread = new Thread(new Runnable() {
+            public void run() {
+                while (!log.isClosed) {
+                    try {
+                        Thread.sleep(SYNC_MILLIS);
+                        log.sync();
+                        log.enforceRetention();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    catch (IOException e) {
+                        System.err.println("IOException in MessageLog:\n" + e.getMessage());
+                    }
+                }
+            }
+        }, "message-log-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+        return log;
+    }
+
+    /**
+     * Map the existing segments and find the end of the newest one.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        long base = 0;
+        for (int i = 0; i < files.size(); i++) {
+            Segment segment = new Segment(files.get(i), i == files.size() - 1, base);
+            segments.add(segment);
+            base = segment.base + segment.end;
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+    }
+
+    /**
+     * Append one broadcast frame to the log.
+     *
+     * @param room the room of the frame, or "" for a message to everyone
+     * @param frame the encoded frame; it is not modified
+     * @return long the sequence number of the record, or -1 if it is not logged, e.g. the name of the room is longer
+     * than MAX_ROOM_BYTES
+     */
+    long append(String room, ByteBuffer frame) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + roomBytes.length + frame.remaining();
+        if (roomBytes.length > MAX_ROOM_BYTES || length + 8 > SEGMENT_BYTES || isClosed) {
+            return -1;
+        }
+        appendLock.lock();
+        try {
+            Segment active = segments.get(segments.size() - 1);
+            if (active.end + length + 8 > SEGMENT_BYTES) {
+                roll();
+                active = segments.get(segments.size() - 1);
+            }
+            MappedByteBuffer map = active.map;
+            int position = active.end;
+            map.putInt(position, length);
+            map.putShort(position + 4, (short) roomBytes.length);
+            map.position(position + 6);
+            map.put(roomBytes);
+            map.put(frame.duplicate());
+            map.putInt(position + 4 + length, length);
+            // Readers only look below end, so the record becomes visible when it is complete.
+            active.end = position + length + 8;
+            isDirty = true;
+            return active.base + active.end;
+        }
+        catch (IOException e) {
+            System.err.println("IOException in MessageLog.append():\n" + e.getMessage());
+            return -1;
+        }
+        finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Close the active segment and start a new one. It is called with appendLock held.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void roll() throws IOException {
+        long name = System.currentTimeMillis();
+        long base = 0;
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            last.map.force();
+            last.seal();
+            name = Math.max(name, last.createdMillis + 1);
+            base = last.base + last.end;
+        }
+        segments.add(new Segment(directory.resolve(String.format("%016d-%016d.log", name, base)), true, base));
+    }
+
+    /**
+     * Delete the oldest segments while the log is too large or they are too old.
+     * The active segment is never deleted.
+     */
+    private void enforceRetention() {
+        appendLock.lock();
+        try {
+            long total = (long) segments.size() * SEGMENT_BYTES;
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                // A segment was filled when the next one was created.
+                long filledMillis = segments.get(1).createdMillis;
+                if (total <= RETENTION_BYTES && System.currentTimeMillis() - filledMillis <= RETENTION_MILLIS) {
+                    break;
+                }
+                segments.remove(0);
+                total -= SEGMENT_BYTES;
+                oldest.delete();
+            }
+        }
+        finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Get the last messages of a room, straight from the mapped segments.
+     *
+     * @param room the room, messages to everyone are included too
+     * @param n the number of messages, at most MAX_HISTORY
+     * @return List of read-only slices of the segments, from the oldest to the newest
+     */
+    List<ByteBuffer> last(String room, int n) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        n = Math.min(n, MAX_HISTORY);
+        LinkedList<ByteBuffer> frames = new LinkedList<ByteBuffer>();
+        List<Segment> snapshot = segments;
+        for (int i = snapshot.size() - 1; i >= 0 && frames.size() < n; i--) {
+            Segment segment = snapshot.get(i);
+            ByteBuffer view = segment.map.duplicate();
+            view.clear();
+            int position = segment.end;
+            while (position > 0 && frames.size() < n) {
+                int length = view.getInt(position - 4);
+                int start = position - 8 - length;
+                position = start;
+                int roomLength = view.getShort(start + 4);
+                if (roomLength == 0 || sameRoom(view, start + 6, roomLength, roomBytes)) {
+                    view.limit(start + 4 + length).position(start + 6 + roomLength);
+                    frames.addFirst(view.slice().asReadOnlyBuffer());
+                    view.clear();
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Get the messages of a room which were logged after the given sequence number, straight from the mapped segments.
+     * <br>The walk goes back from the end and stops at the sequence number, so it only costs as much as the log grew
+     * since then.
+     *
+     * @param room the room, messages to everyone are included too
+     * @param sequence the sequence number of the last message the client has
+     * @param n the largest number of messages, the newest ones are kept
+     * @return List of the messages from the oldest to the newest
+     */
+    List<Message> since(String room, long sequence, int n) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        LinkedList<Message> messages = new LinkedList<Message>();
+        List<Segment> snapshot = segments;
+        for (int i = snapshot.size() - 1; i >= 0 && messages.size() < n; i--) {
+            Segment segment = snapshot.get(i);
+            ByteBuffer view = segment.map.duplicate();
+            view.clear();
+            int position = segment.end;
+            while (position > 0 && messages.size() < n && segment.base + position > sequence) {
+                long recordSequence = segment.base + position;
+                int length = view.getInt(position - 4);
+                int start = position - 8 - length;
+                position = start;
+                int roomLength = view.getShort(start + 4);
+                if (roomLength == 0 || sameRoom(view, start + 6, roomLength, roomBytes)) {
+                    view.limit(start + 4 + length).position(start + 6 + roomLength);
+                    messages.addFirst(new Message(recordSequence, view.slice().asReadOnlyBuffer()));
+                    view.clear();
+                }
+            }
+            if (segment.base + position <= sequence) {
+                break;
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Get the sequence number of the newest record.
+     *
+     * @return long
+     */
+    long end() {
+        Segment active = segments.get(segments.size() - 1);
+        return active.base + active.end;
+    }
+
+    /**
+     * Test whether the room of a record is the given room.
+     *
+     * @param view the view of the segment
+     * @param from the start of the room in the record
+     * @param length the length of the room in the record
+     * @param room the room to compare with
+     * @return boolean
+     */
+    private static boolean sameRoom(ByteBuffer view, int from, int length, byte[] room) {
+        if (length != room.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (view.get(from + i) != room[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Force the records of the active segment to disk if there are new ones.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void sync() throws IOException {
+        if (!isDirty) {
+            return;
+        }
+        isDirty = false;
+        segments.get(segments.size() - 1).map.force();
+    }
+
+    /**
+     * Force the log to disk and stop appending.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    void close() throws IOException {
+        appendLock.lock();
+        try {
+            isClosed = true;
+            isDirty = true;
+            sync();
+        }
+        finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Message is one logged frame with its sequence number.
+     * <br>It contains members: sequence, frame.
+     */
+    static final class Message {
+
+        /**
+         * The sequence number of the record.
+         */
+        final long sequence;
+
+        /**
+         * The read-only slice of the frame.
+         */
+        final ByteBuffer frame;
+
+        /**
+         * The constructor of Message class.
+         *
+         * @param sequence the sequence number of the record
+         * @param frame the read-only slice of the frame
+         */
+        Message(long sequence, ByteBuffer frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * Segment is one memory-mapped file of the log.
+     * <br>It contains members: path, createdMillis, base, channel, map, end,
+     * and methods: seal(), delete().
+     */
+    private static class Segment {
+
+        /**
+         * The path of the segment file.
+         */
+        final Path path;
+
+        /**
+         * The time when the segment was created, which is also its file name.
+         */
+        final long createdMillis;
+
+        /**
+         * The position of the segment in the whole log, which is added to the positions of its records
+         * to get their sequence numbers.
+         */
+        final long base;
+
+        /**
+         * The channel of the segment file. It is closed when the segment is sealed.
+         */
+        private FileChannel channel;
+
+        /**
+         * The mapping of the whole segment file.
+         */
+        final MappedByteBuffer map;
+
+        /**
+         * The end of the last complete record.
+         */
+        volatile int end = 0;
+
+        /**
+         * The constructor of Segment class. It maps the file and finds the end of its records.
+         *
+         * @param path the path of the segment file
+         * @param isActive whether records will be appended to the segment
+         * @param base the position of the segment if its name does not have one, like the segments of older servers
+         * @throws IOException if an I/O error occurs
+         */
+        Segment(Path path, boolean isActive, long base) throws IOException {
+            this.path = path;
+            String name = path.getFileName().toString();
+            String[] parts = name.substring(0, name.length() - ".log".length()).split("-");
+            this.createdMillis = Long.parseLong(parts[0]);
+            this.base = parts.length > 1 ? Long.parseLong(parts[1]) : base;
+            if (isActive) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+            }
+            else {
+                try (FileChannel readChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    map = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                }
+            }
+            int position = 0;
+            while (position + RECORD_OVERHEAD <= map.limit()) {
+                int length = map.getInt(position);
+                if (length <= 2 || position + length + 8 > map.limit() || map.getInt(position + 4 + length) != length) {
+                    break;
+                }
+                position += length + 8;
+            }
+            end = position;
+        }
+
+        /**
+         * Stop writing to the segment.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        void seal() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+
+        /**
+         * Delete the segment file. The mapping stays readable until it is collected.
+         */
+        void delete() {
+            try {
+                seal();
+                Files.deleteIfExists(path);
+            }
+            catch (IOException e) {
+                System.err.println("Exception when deleting " + path + ":\n" + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * RateLimiter keeps one client from flooding the chat room. It is a pair of token buckets, one for messages and one
+ * for bytes: every message takes one message token and its size in byte tokens, and the buckets refill at a fixed
+ * rate up to their burst size.
+ * <br>A limiter belongs to one session and is only used by the thread which handles that session, so it needs no
+ * lock and no atomic; a check is a few arithmetic operations on primitive fields and allocates nothing.
+ * <br>A message which does not fit is dropped. A client which has more than MAX_STRIKES messages dropped within
+ * STRIKE_WINDOW_MILLIS is a repeat offender and is disconnected.
+ * <br>It contains members: MESSAGES_PER_SECOND, MESSAGE_BURST, BYTES_PER_SECOND, BYTE_BURST, MAX_STRIKES,
+ * STRIKE_WINDOW_MILLIS, messageTokens, byteTokens, lastRefillNanos, strikes, strikeWindowStart,
+ * and methods: tryAcquire(String message), strikes(), isOffender(), utf8Length(String text).
+ *
+ * @author Zhiyong Liu
+ */
+class RateLimiter {
+
+    /**
+     * The number of messages a client may send per second in the long run. Zero turns the limiter off.
+     */
+    static final double MESSAGES_PER_SECOND = Double.parseDouble(System.getProperty("chatroom.rateMessagesPerSecond", "10"));
+
+    /**
+     * The number of messages a client may send at once after being quiet.
+     */
+    static final double MESSAGE_BURST = Double.parseDouble(System.getProperty("chatroom.rateMessageBurst", "20"));
+
+    /**
+     * The number of bytes a client may send per second in the long run.
+     */
+    static final double BYTES_PER_SECOND = Double.parseDouble(System.getProperty("chatroom.rateBytesPerSecond", "16384"));
+
+    /**
+     * The number of bytes a client may send at once after being quiet.
+     */
+    static final double BYTE_BURST = Double.parseDouble(System.getProperty("chatroom.rateByteBurst", "65536"));
+
+    /**
+     * The number of dropped messages within STRIKE_WINDOW_MILLIS after which the client is disconnected.
+     * Zero never disconnects.
+     */
+    static final int MAX_STRIKES = Integer.getInteger("chatroom.rateMaxStrikes", 50);
+
+    /**
+     * The time over which dropped messages are counted.
+     */
+    static final long STRIKE_WINDOW_MILLIS = Long.getLong("chatroom.rateStrikeWindowMillis", 10 * 1000);
+
+    /**
+     * The message tokens left.
+     */
+    private double messageTokens = MESSAGE_BURST;
+
+    /**
+     * The byte tokens left.
+     */
+    private double byteTokens = BYTE_BURST;
+
+    /**
+     * The time when the buckets were last refilled.
+     */
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * The number of messages dropped in the current strike window.
+     */
+    private int strikes = 0;
+
+    /**
+     * The start of the current strike window.
+     */
+    private long strikeWindowStart = 0;
+
+    /**
+     * Take the tokens for one message if there are enough of them.
+     *
+     * @param message the message the client sent
+     * @return boolean whether the message may be handled; if not, it is counted as a strike
+     */
+    boolean tryAcquire(String message) {
+        if (MESSAGES_PER_SECOND <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        double seconds = (now - lastRefillNanos) / 1e9;
+        lastRefillNanos = now;
+        messageTokens = Math.min(MESSAGE_BURST, messageTokens + seconds * MESSAGES_PER_SECOND);
+        byteTokens = Math.min(BYTE_BURST, byteTokens + seconds * BYTES_PER_SECOND);
+        int bytes = utf8Length(message);
+        if (messageTokens >= 1 && (byteTokens >= bytes || BYTES_PER_SECOND <= 0)) {
+            messageTokens -= 1;
+            byteTokens -= bytes;
+            return true;
+        }
+        if (strikes == 0 || now - strikeWindowStart > STRIKE_WINDOW_MILLIS * 1000000L) {
+            strikeWindowStart = now;
+            strikes = 0;
+        }
+        strikes++;
+        return false;
+    }
+
+    /**
+     * Get the number of messages dropped in the current strike window.
+     *
+     * @return int
+     */
+    int strikes() {
+        return strikes;
+    }
+
+    /**
+     * Test whether the client has had too many messages dropped and has to be disconnected.
+     *
+     * @return boolean
+     */
+    boolean isOffender() {
+        return MAX_STRIKES > 0 && strikes > MAX_STRIKES;
+    }
+
+    /**
+     * Get the number of bytes of the text in UTF-8 without encoding it.
+     *
+     * @param text the text
+     * @return int
+     */
+    static int utf8Length(String text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (Character.isSurrogate(c)) {
+                // A surrogate pair is four bytes, two for each half.
+                bytes += 1;
+            }
+            else if (c >= 0x800) {
+                bytes += 2;
+            }
+            else if (c >= 0x80) {
+                bytes += 1;
+            }
+        }
+        return bytes;
+    }
+}
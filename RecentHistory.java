@@ -0,0 +1,122 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * RecentHistory keeps the last CAPACITY broadcast frames of a room in memory, so a client which enters the room
+ * can catch up without reading the message log.
+ * <br>It is a ring of slots indexed by a sequence number. A writer claims the next number with one atomic increment
+ * and publishes its slot with compareAndSet; a reader copies the range of numbers it wants and skips slots which
+ * have already been overwritten. Nobody takes a lock, and the memory is bounded by CAPACITY frames whatever the
+ * traffic is.
+ * <br>It contains members: CAPACITY, slots, next, lastAddMillis,
+ * and methods: add(ByteBuffer frame), recent(), lastAddMillis().
+ *
+ * @author Zhiyong Liu
+ */
+class RecentHistory {
+
+    /**
+     * The number of frames kept for each room. Zero turns the catch-up off.
+     */
+    static final int CAPACITY = Integer.getInteger("chatroom.recentHistory", 50);
+
+    /**
+     * The slots of the ring.
+     */
+    private final AtomicReferenceArray<Slot> slots = new AtomicReferenceArray<Slot>(Math.max(1, CAPACITY));
+
+    /**
+     * The sequence number of the next frame.
+     */
+    private final AtomicLong next = new AtomicLong(0);
+
+    /**
+     * The time when the last frame was added, or when the ring was created. SessionRegistry drops the rings
+     * which have been quiet the longest first.
+     */
+    private volatile long lastAddMillis = System.currentTimeMillis();
+
+    /**
+     * Add a frame to the ring, replacing the oldest one.
+     *
+     * @param frame the encoded frame; it is not modified
+     */
+    void add(ByteBuffer frame) {
+        if (CAPACITY == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now != lastAddMillis) {
+            lastAddMillis = now;
+        }
+        long sequence = next.getAndIncrement();
+        int index = (int) (sequence % CAPACITY);
+        Slot slot = new Slot(sequence, frame);
+        while (true) {
+            Slot old = slots.get(index);
+            // A slower writer must not overwrite a newer frame which went into the same slot.
+            if ((old != null && old.sequence > sequence) || slots.compareAndSet(index, old, slot)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the frames in the ring from the oldest to the newest.
+     *
+     * @return List of read-only views of the frames
+     */
+    List<ByteBuffer> recent() {
+        List<ByteBuffer> frames = new ArrayList<ByteBuffer>();
+        if (CAPACITY == 0) {
+            return frames;
+        }
+        long end = next.get();
+        for (long sequence = Math.max(0, end - CAPACITY); sequence < end; sequence++) {
+            Slot slot = slots.get((int) (sequence % CAPACITY));
+            if (slot != null && slot.sequence == sequence) {
+                frames.add(slot.frame.duplicate());
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Get the time when the last frame was added, or when the ring was created.
+     *
+     * @return long
+     */
+    long lastAddMillis() {
+        return lastAddMillis;
+    }
+
+    /**
+     * Slot is one frame in the ring with its sequence number.
+     */
+    private static final class Slot {
+
+        /**
+         * The sequence number of the frame.
+         */
+        final long sequence;
+
+        /**
+         * The encoded frame.
+         */
+        final ByteBuffer frame;
+
+        /**
+         * The constructor of Slot class.
+         *
+         * @param sequence the sequence number of the frame
+         * @param frame the encoded frame
+         */
+        Slot(long sequence, ByteBuffer frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+}
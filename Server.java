@@ -1,11 +1,22 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.text.SimpleDateFormat;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 
 /**
- * public Server is used to act as chat room server. It contains members: ss, PORT_NUMBER, serverStartTime, clientNameSet,
- * clientWriterSet, WELCOME, ACCEPT, commands, emoji, and methods: start(), shutDown(), broadcast(String message).
+ * public Server is used to act as chat room server. It contains members: ss, PORT_NUMBER, serverStartTime, sessions,
+ * cluster, WELCOME, ACCEPT, RESUME, TOKEN, commands, emoji, emojiSelection, and methods: start(), shutDown(), broadcast(String message),
+ * broadcast(SessionRegistry.Room room, byte type, String message), broadcast(String roomName, byte type, String message),
+ * deliver(String roomName, byte type, String line), sendPrivate(String from, String to, String message), deliverPrivate(String to, String line), onlineCount(),
+ * createCommands().
  * 
  * @author Zhiyong Liu
  */
@@ -17,9 +28,63 @@ public class Server {
     private ServerSocket ss;
 
     /**
-     * The port number of server.
+     * The port number of server. Several servers on one machine, e.g. the nodes of a test cluster, need different ones.
      */
-    private static final int PORT_NUMBER = 4396;
+    private static final int PORT_NUMBER = Integer.getInteger("chatroom.port", 4396);
+
+    /**
+     * The backlog of pending connections in nio mode.
+     */
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    /**
+     * The number of event loops in nio mode.
+     */
+    private static final int EVENT_LOOPS = Integer.getInteger("chatroom.eventLoops", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The time a new client has to send an acceptable username before it is disconnected. Zero turns it off.
+     */
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = Long.getLong("chatroom.handshakeTimeoutMillis", 30 * 1000);
+
+    /**
+     * The quiet time after which the server sends a heartbeat to a client. Zero turns heartbeats off.
+     */
+    private static final long HEARTBEAT_MILLIS = Long.getLong("chatroom.heartbeatMillis", 30 * 1000);
+
+    /**
+     * The quiet time after which a client is disconnected. Zero turns it off.
+     * It should be a few heartbeats long, so a live client has time to answer.
+     */
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("chatroom.idleTimeoutMillis", 90 * 1000);
+
+    /**
+     * The longest time the shutdown waits for the queued data of the clients to be written.
+     */
+    private static final long SHUTDOWN_DRAIN_MILLIS = Long.getLong("chatroom.shutdownDrainMillis", 5 * 1000);
+
+    /**
+     * The longest time the shutdown waits for the clients to close their connections after the server closed its side.
+     */
+    private static final long SHUTDOWN_CLOSE_MILLIS = Long.getLong("chatroom.shutdownCloseMillis", 1000);
+
+    /**
+     * The longest time the thread of a session which ends waits for the last lines to be written to its client,
+     * e.g. the notice of a flood disconnect.
+     */
+    private static final long QUIT_DRAIN_MILLIS = Long.getLong("chatroom.quitDrainMillis", 1000);
+
+    /**
+     * The longest chat or private message in UTF-8 bytes. With the time, the username and the room in front of it,
+     * a message still fits into one frame of FrameCodec, which is also the largest frame between cluster nodes.
+     */
+    static final int MAX_MESSAGE_BYTES = Integer.getInteger("chatroom.maxMessageBytes", 16 * 1024);
+
+    /**
+     * The execution mode of server: "thread" (one thread per client), "virtual" (one virtual thread per client)
+     * or "nio" (selector event loops).
+     */
+    private final String mode;
 
     /**
      * The start time of server.
@@ -27,14 +92,46 @@ public class Server {
     private long serverStartTime;
 
     /**
-     * Store all the client names.
+     * Store all the clients in the chat room, keyed by username.
+     */
+    final SessionRegistry sessions = new SessionRegistry();
+
+    /**
+     * The log of all the broadcast messages on disk. It is null if the log is turned off or can not be opened.
+     */
+    private MessageLog messageLog;
+
+    /**
+     * The formatter of the time printed before each broadcast message.
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    /**
+     * The time text of the current second. It is replaced at most once per second, so broadcasts in the
+     * same second do not format the time again.
+     */
+    private volatile CachedTime cachedTime = new CachedTime(-1, "");
+
+    /**
+     * To denote whether the server is shutting down. Messages are not accepted any more, and leaving clients
+     * are not announced.
+     */
+    private final AtomicBoolean isShuttingDown = new AtomicBoolean(false);
+
+    /**
+     * The timer of the heartbeats and timeouts of all the sessions.
+     */
+    private final TimerWheel timers = new TimerWheel();
+
+    /**
+     * The node of this server in a cluster of servers. It is null if the cluster is turned off.
      */
-    private HashSet<String> clientNameSet = new HashSet<String>();
+    private ClusterNode cluster = null;
 
     /**
-     * Store all the output streams.
+     * The executor which runs the tasks draining the outbound queues of clients in thread and virtual mode.
      */
-    private HashSet<PrintWriter> clientWriterSet = new HashSet<PrintWriter>();
+    private ExecutorService writerExecutor;
 
     /**
      * The information of welcome.
@@ -47,15 +144,65 @@ public class Server {
     private static final String ACCEPT = "Your username is accepted. Please type messages";
 
     /**
-     * The list of commands available to clients.
+     * The request of a client which wants to resume its session after a reconnect, followed by its token and
+     * the sequence number of the last message it got. Without them the client only asks for tokens.
+     */
+    private static final String RESUME = "\\resume";
+
+    /**
+     * The answer to a client which asked for tokens.
+     */
+    private static final String RESUME_ACCEPT = "Your session can be resumed after a reconnect.";
+
+    /**
+     * The answer to a client whose session can not be resumed.
+     */
+    private static final String RESUME_REFUSED = "Sorry, your session can not be resumed.";
+
+    /**
+     * The line which gives a client its token and the sequence number it has caught up to.
+     */
+    private static final String TOKEN = "\\token";
+
+    /**
+     * The heartbeat sent to a quiet client.
+     */
+    private static final String HEARTBEAT = "\\ping";
+
+    /**
+     * The answer of a client to a heartbeat.
+     */
+    private static final String HEARTBEAT_REPLY = "\\pong";
+
+    /**
+     * The heartbeat line for text clients, shared by all of them.
+     */
+    private static final ByteBuffer TEXT_HEARTBEAT = ByteBuffer.wrap((HEARTBEAT + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    /**
+     * The heartbeat frame for binary clients, shared by all of them.
+     */
+    private static final ByteBuffer BINARY_HEARTBEAT = FrameCodec.encode(FrameCodec.SYSTEM, HEARTBEAT).asReadOnlyBuffer();
+
+    /**
+     * The commands available to clients, keyed by name. \\help lists them in the order they are registered.
      */
-    private String[] commands = {"\\help: List all the commands that can be sent", "\\quit: Quit the chat room", "\\serverTime: Server total runtime", "\\clientTime: The time you have been in the chat room", "\\serverIP: Server IP adderss", "\\clientNumber: Total number of clients currently in the chat room","\\emoji: The emoji you can send"};
+    private final CommandRegistry<HandleSession> commands = createCommands();
 
     /**
      * The list of emoji available to clients.
      */
     private String[] emoji = {"~^o^~", "\\(╯-╰)/", "//(ㄒoㄒ)//", "(^_^)/~~"};
 
+    /**
+     * The step of the emoji menu which waits for the number of the emoji. It asks again until the number is valid.
+     */
+    private final CommandRegistry.Conversation<HandleSession> emojiSelection = new CommandRegistry.Conversation<HandleSession>() {
+        public CommandRegistry.Conversation<HandleSession> next(HandleSession session, String line) {
+            return session.selectEmoji(line) ? null : this;
+        }
+    };
+
     /**
      * The entry of Server program.
      * 
@@ -63,8 +210,20 @@ public class Server {
      * @throws IOException if an I/O error occurs
      */
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("keystore")) {
+            // java Server keystore [path]: create a self-signed key store for local TLS tests.
+            String path = args.length > 1 ? args[1] : TlsContext.KEY_STORE;
+            TlsContext.generateKeyStore(path);
+            System.out.println("The test key store is written to " + path + ", its password is " + TlsContext.PASSWORD);
+            return;
+        }
         try{
-            Server server = new Server();
+            String mode = args.length > 0 ? args[0] : System.getProperty("chatroom.mode", "thread");
+            if (TlsContext.ENABLED && !mode.equals("nio")) {
+                System.out.println("TLS is served by the event loops, the server runs in nio mode.");
+                mode = "nio";
+            }
+            Server server = new Server(mode);
             server.start();
         }
         catch (BindException e) {
@@ -73,27 +232,230 @@ public class Server {
         }
     }
 
+    /**
+     * The constructor of Server class.
+     * 
+     * @param mode the execution mode, "thread", "virtual" or "nio"
+     */
+    Server(String mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Create the commands available to clients.
+     * <br>Most of them only touch the session and are answered at once. \\history and \\stats read the message log
+     * and every session, so their work is offloaded and an event loop goes on serving the other clients meanwhile.
+     * \\emoji asks for the selection as a Conversation instead of waiting for the next line.
+     *
+     * @return CommandRegistry
+     */
+    private CommandRegistry<HandleSession> createCommands() {
+        CommandRegistry<HandleSession> registry = new CommandRegistry<HandleSession>();
+        registry.register("\\help", "\\help: List all the commands that can be sent", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                for (String usage : registry.help()) {
+                    session.out.println("Command " + usage);
+                }
+                session.out.println("------ case sensitive ------");
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\quit", "\\quit: Quit the chat room", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                session.isQuitting = true;
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\serverTime", "\\serverTime: Server total runtime", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                long serverRunTime = (System.currentTimeMillis()-serverStartTime)/1000/60;
+                session.out.println("server has run for " + serverRunTime + " minutes");
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\clientTime", "\\clientTime: The time you have been in the chat room", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                long clientRunTime = (System.currentTimeMillis()-session.entry.startTime)/1000/60;
+                session.out.println("you has been in chat room for " + clientRunTime + " minutes");
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\serverIP", "\\serverIP: Server IP adderss", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                InetAddress ip = session.socket.getLocalAddress();
+                session.out.println("server IP: " + ip);
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\clientNumber", "\\clientNumber: Total number of clients currently in the chat room", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                session.out.println("client numbers: " + onlineCount());
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\emoji", "\\emoji: The emoji you can send", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                session.sendEmoji();
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\join", "\\join <room>: Join or create a chat room", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                session.joinRoom(argument);
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\leave", "\\leave: Leave the current room and go back to the lobby", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                if (session.entry.room != null && session.entry.room.name.equals(SessionRegistry.LOBBY)) {
+                    session.out.println("You are already in the lobby");
+                }
+                else {
+                    session.joinRoom(SessionRegistry.LOBBY);
+                }
+                return CommandRegistry.done();
+            }
+        });
+        registry.register("\\history", "\\history [n]: The last n messages of the current room (default 20)", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                return session.queryHistory(argument);
+            }
+        });
+        registry.register("\\stats", "\\stats: The metrics of the server", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                return session.queryStats();
+            }
+        });
+        registry.register("\\msg", "\\msg <user> <message>: Send a private message to one user", new CommandRegistry.Command<HandleSession>() {
+            public CompletableFuture<Consumer<HandleSession>> execute(HandleSession session, String argument) {
+                session.sendPrivateMessage(argument);
+                return CommandRegistry.done();
+            }
+        });
+        return registry;
+    }
+
     /**
      * Start the chat room server.
      * 
      * @throws IOException if an I/O error occurs
      */
     private void start() throws IOException {
+        if (mode.equals("nio")) {
+            startEventLoops();
+            return;
+        }
         ss = new ServerSocket(PORT_NUMBER);
         serverStartTime = System.currentTimeMillis();
+        openMessageLog();
+        ServerMetrics.start(sessions);
+        timers.start();
+        addShutdownHook();
+        cluster = ClusterNode.start(this);
         System.out.println("Server at "+InetAddress.getLocalHost()+" is waiting for connection...\nInput \\quit to close the chat room server.");
         Socket socket;
         Thread thread;
+        ExecutorService virtualThreads = mode.equals("virtual") ? newVirtualThreadExecutor() : null;
+        writerExecutor = virtualThreads != null ? virtualThreads : Executors.newCachedThreadPool();
         waitQuit();
         try {
             while (true) {
                 socket = ss.accept();
+                ServerMetrics.ACCEPTS.increment();
+                if (virtualThreads != null) {
+                    virtualThreads.execute(new HandleSession(socket));
+                    continue;
+                }
                 thread = new Thread(new HandleSession(socket));
                 thread.start();
             }
         }
         catch (Exception e) {
-            System.out.println(e.getMessage());
+            // The server socket is closed on purpose when the server shuts down.
+            if (!isShuttingDown.get()) {
+                System.out.println(e.getMessage());
+            }
+        }
+        finally {
+            shutDown();
+        }
+    }
+
+    /**
+     * Open the message log. The server still runs without history if it can not be opened.
+     */
+    private void openMessageLog() {
+        try {
+            messageLog = MessageLog.open();
+        }
+        catch (IOException e) {
+            System.err.println("The message log can not be opened, history is not available:\n" + e.getMessage());
+        }
+    }
+
+    /**
+     * Create the executor which starts one virtual thread for each session.
+     * <br>It is looked up by reflection so the server still compiles and runs on a JDK without virtual threads;
+     * in that case it falls back to one platform thread for each session.
+     * 
+     * @return ExecutorService
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not supported by this JDK, one thread is used for each client.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Start the chat room server on a fixed set of selector event loops.
+     * <br>Additional feature: A few threads can serve tens of thousands of idle clients,
+     * because no thread is parked in readLine() for each of them.
+     * 
+     * @throws IOException if an I/O error occurs
+     */
+    private void startEventLoops() throws IOException {
+        if (TlsContext.ENABLED) {
+            // A key store which can not be used stops the server before it accepts anybody.
+            TlsContext.serverContext();
+        }
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(PORT_NUMBER), ACCEPT_BACKLOG);
+        ss = serverChannel.socket();
+        serverStartTime = System.currentTimeMillis();
+        openMessageLog();
+        ServerMetrics.start(sessions);
+        timers.start();
+        addShutdownHook();
+        cluster = ClusterNode.start(this);
+        EventLoop[] loops = new EventLoop[Math.max(1, EVENT_LOOPS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this);
+            Thread loopThread = new Thread(loops[i], "event-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+        System.out.println("Server at "+InetAddress.getLocalHost()+" is waiting for connection on " + loops.length + " event loops...\nInput \\quit to close the chat room server.");
+        waitQuit();
+        int next = 0;
+        try {
+            while (true) {
+                // Every accepted channel is handed over to one event loop for its whole life.
+                SocketChannel channel = serverChannel.accept();
+                ServerMetrics.ACCEPTS.increment();
+                channel.configureBlocking(false);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+        catch (Exception e) {
+            // The server socket is closed on purpose when the server shuts down.
+            if (!isShuttingDown.get()) {
+                System.out.println(e.getMessage());
+            }
         }
         finally {
             shutDown();
@@ -112,9 +474,13 @@ public class Server {
                 try{
                     while(in != null) {
                         quitCommand = in.readLine();
+                        if (quitCommand == null) {
+                            // There is no console, e.g. the server runs in the background; it is stopped by a signal.
+                            return;
+                        }
                         if (quitCommand.equals("\\quit")) {
-                            broadcast("The server is shut down.");
-                            System.exit(0);
+                            shutDown();
+                            return;
                         }
                         else {
                             System.out.println("command input wrong.");
@@ -130,167 +496,1147 @@ public class Server {
     }
 
     /**
-     * Shut down the chat room server.
+     * Shut down the chat room server and exit.
      */
     private void shutDown() {
+        if (drainAndClose()) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Make sure a server stopped by a signal, e.g. in a rolling restart, shuts down as gracefully as by \\quit.
+     */
+    private void addShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                drainAndClose();
+            }
+        }, "server-shutdown"));
+    }
+
+    /**
+     * Shut down the chat room server in phases, so the clients get every message which was accepted.
+     * <br>Additional feature:
+     * <br>1. New connections are refused and new messages are answered with a notice instead of being broadcast.
+     * <br>2. The clients are told that the server shuts down, and the queues of all clients are written out,
+     * for at most SHUTDOWN_DRAIN_MILLIS.
+     * <br>3. The message log is forced to disk.
+     * <br>4. The server closes its side of every connection at once, so the clients read all the data before
+     * the end of the stream, and waits at most SHUTDOWN_CLOSE_MILLIS for them to close theirs.
+     * <br>5. The remaining connections are closed and the server log is written out.
+     *
+     * @return boolean whether this call shut the server down; false if another one already did
+     */
+    private boolean drainAndClose() {
+        if (!isShuttingDown.compareAndSet(false, true)) {
+            return false;
+        }
         try {
             ss.close();
-            System.out.println("The server has shut down.");
-            System.exit(0);
-        } 
-        catch (Exception e) {
+        }
+        catch (IOException e) {
             System.out.println("Problem with shutting down the server.");
             System.out.println(e.getMessage());
         }
+        broadcast("The server is shut down.");
+
+        long deadline = System.currentTimeMillis() + SHUTDOWN_DRAIN_MILLIS;
+        while (!isDrained() && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        if (messageLog != null) {
+            try {
+                messageLog.close();
+            }
+            catch (IOException e) {
+                System.err.println("IOException when closing the message log:\n" + e.getMessage());
+            }
+        }
+
+        sessions.entries().parallelStream().forEach(client -> client.outbound.shutdownOutput());
+        deadline = System.currentTimeMillis() + SHUTDOWN_CLOSE_MILLIS;
+        while (sessions.size() > 0 && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        sessions.entries().parallelStream().forEach(client -> client.outbound.abort());
+        System.out.println("The server has shut down.");
+        ServerLog.close();
+        return true;
+    }
+
+    /**
+     * Test whether the queues of all the clients have been written out.
+     *
+     * @return boolean
+     */
+    private boolean isDrained() {
+        for (SessionRegistry.Entry client : sessions.entries()) {
+            if (!client.outbound.isDrained()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Wait a little during the shutdown.
+     *
+     * @param millis the time to wait
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
      * Broadcast the message to all clients.
-     * <br>Additional feature: It will print the time when the message
-     * is broadcast or someone enter the chat room.
+     * <br>Additional feature: It will log the time when the message
+     * is broadcast or someone enter the chat room. The log is written by ServerLog in the background.
+     * <br>Every writer only puts the message into the outbound queue of its client, so a slow client
+     * can not block the sender; the queue applies its overflow policy instead.
      * 
      * @param message the message to broadcast
      */
     private void broadcast(String message) {
-        SimpleDateFormat df = new SimpleDateFormat("HH:mm:ss");
-        for (PrintWriter writer : clientWriterSet) {
-            writer.println("(Time: " + df.format(new Date()) + ") " + message);
-        }
-        System.out.println("(Time: " + df.format(new Date()) + ") " + message);
+        String line = "(Time: " + currentTime() + ") " + message;
+        ByteBuffer frame = encodeFrame(line);
+        long sequence = messageLog != null ? messageLog.append("", frame) : -1;
+        long start = System.nanoTime();
+        sendToAll(sessions.entries(), true, FrameCodec.SYSTEM, frame, sequence);
+        ServerMetrics.FANOUT_NANOS.record(System.nanoTime() - start);
+        ServerLog.info(line);
     }
 
     /**
-     * HandleSession is an inner class of Server. It contains members: clientName, clientStartName, socket, in, out,
-     * and methods: run(), createStreams(), getClientUsername(), listenClientMessage(), processClientRequest(String command),
-     * sendEmoji(), closeConnection().
+     * Broadcast the message to the clients in one room.
+     * <br>The cost only depends on the size of the room, not on the number of clients on the server.
+     * The message is logged at the debug level, so it can be turned off with -Dchatroom.logLevel=info.
+     * <br>In a cluster the line is also forwarded to the other nodes, which deliver it to their members of the room.
      * 
-     * @author Zhiyong Liu
+     * @param room the room to broadcast to, or null if the lobby has no members
+     * @param type the type of the message for binary clients, see FrameCodec
+     * @param message the message to broadcast
      */
-    class HandleSession implements Runnable {
-
-        /**
-         * The name of client in this session.
-         */
-        private String clientName;
-
-        /**
-         * The time when client enters the chat room.
-         */
-        private long clientStartTime;
-
-        /**
-         * The socket to connect to the client.
-         */
-        private Socket socket;
-
-        /**
-         * The input stream of server.
-         */
-        private BufferedReader in = null;
-
-        /**
-         * The output stream of server.
-         */
-        private PrintWriter out = null;
-
-        /**
-         * The constructor of HandleSession class.
-         * 
-         * @param socket the socket for the client
-         */
-        HandleSession(Socket socket) {
-            this.socket = socket;
+    void broadcast(SessionRegistry.Room room, byte type, String message) {
+        String line = "(Time: " + currentTime() + ") " + message;
+        String roomName = room != null ? room.name : SessionRegistry.LOBBY;
+        deliver(roomName, type, line);
+        if (cluster != null) {
+            cluster.forward(roomName, type, line);
         }
+    }
 
-        /**
-         * Configure and start the session with client.
-         */
-        public void run() {
-            try {
-                createStreams();
-                getClientUsername();
-                listenClientMessage();
-            }
-            catch (Exception e) {
-                System.err.println("Some Exception occurs:\n" + e.getMessage());
-            }
-            finally {
-                closeConnection();
-            }
+    /**
+     * Broadcast the message to the clients in a room given by its name.
+     * <br>The room is looked up when the line is delivered, so a room without members on this server gets the line
+     * into its history instead of the lobby getting it.
+     *
+     * @param roomName the name of the room
+     * @param type the type of the message for binary clients, see FrameCodec
+     * @param message the message to broadcast
+     */
+    void broadcast(String roomName, byte type, String message) {
+        String line = "(Time: " + currentTime() + ") " + message;
+        deliver(roomName, type, line);
+        if (cluster != null) {
+            cluster.forward(roomName, type, line);
         }
+    }
 
-        /**
-         * Create the input and output stream of server.
-         */
-        private void createStreams() {
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(),true);
-                System.out.println("One connetion is established");
+    /**
+     * Broadcast a line which another node of the cluster broadcast to the clients in one room of this server.
+     * <br>The line is put into the message log, the history of the room and the queues of its members. A room without
+     * members on this server may still have a history, which is kept up to date for the next member, and the line is
+     * logged either way, so a client which joins or resumes on this server later finds it.
+     * <br>The room is looked up under its read lock, so a client which is catching up on the room and joining it
+     * gets the line either with what it missed or in its queue, after that.
+     *
+     * @param roomName the name of the room
+     * @param type the type of the message for binary clients, see FrameCodec
+     * @param line the line to broadcast
+     */
+    void deliver(String roomName, byte type, String line) {
+        ByteBuffer frame = encodeFrame(line);
+        Lock lock = sessions.roomLock(roomName).readLock();
+        lock.lock();
+        try {
+            long sequence = messageLog != null ? messageLog.append(roomName, frame) : -1;
+            SessionRegistry.Room room = sessions.getRoom(roomName);
+            if (room != null) {
+                room.history.add(frame);
+                long start = System.nanoTime();
+                sendToAll(room.members, false, type, frame, sequence);
+                ServerMetrics.FANOUT_NANOS.record(System.nanoTime() - start);
             }
-            catch (IOException e) {
-                System.err.println("Exception in createStreams:\n" + e.getMessage());
+            else {
+                RecentHistory history = sessions.getHistory(roomName);
+                if (history != null) {
+                    history.add(frame);
+                }
             }
         }
+        finally {
+            lock.unlock();
+        }
+        if (ServerLog.isEnabled(ServerLog.DEBUG)) {
+            ServerLog.debug("[" + roomName + "] " + line);
+        }
+    }
+
+    /**
+     * Send a private message to one client. The recipient is found with one lookup in the session registry,
+     * and the message goes through its outbound queue like a broadcast.
+     * <br>In a cluster a recipient on another node gets the message through its node.
+     * <br>Private messages are not written to the message log, the history or the server log.
+     *
+     * @param from the username of the sender
+     * @param to the username of the recipient
+     * @param message the message
+     * @return boolean whether the recipient is online and the message is on its way
+     */
+    boolean sendPrivate(String from, String to, String message) {
+        String line = "(Time: " + currentTime() + ") " + from + " (private): " + message;
+        if (deliverPrivate(to, line)) {
+            return true;
+        }
+        return cluster != null && cluster.forwardPrivate(to, line);
+    }
+
+    /**
+     * Put a private message into the outbound queue of a client of this server.
+     *
+     * @param to the username of the recipient
+     * @param line the line to send
+     * @return boolean whether the recipient is in the chat room and the message is queued
+     */
+    boolean deliverPrivate(String to, String line) {
+        SessionRegistry.Entry recipient = sessions.get(to);
+        if (recipient == null || !recipient.isListening) {
+            return false;
+        }
+        ByteBuffer frame = encodeFrame(line);
+        return recipient.outbound.send(recipient.outbound.isBinary ? FrameCodec.wrapLine(FrameCodec.CHAT, frame) : frame);
+    }
+
+    /**
+     * Get the number of clients in the chat room, on all the nodes of the cluster.
+     *
+     * @return int
+     */
+    int onlineCount() {
+        return sessions.size() + (cluster != null ? cluster.remoteSize() : 0);
+    }
+
+    /**
+     * Put one encoded line into the outbound queues of the clients.
+     * <br>The binary frame is built at most once, when the first binary client is found, and is then
+     * shared in the same way as the text line.
+     * <br>The same holds for the frame compressed for the clients which asked for FrameCodec.DEFLATE_SHARED.
+     * <br>Additional feature: Clients which can resume their session get the line with its sequence number
+     * in front, see sequenced(ByteBuffer frame, long sequence). That variant is also built at most once.
+     * 
+     * @param clients the clients to send to
+     * @param isListeningOnly whether clients which have not been announced yet are skipped
+     * @param type the type of the message for binary clients
+     * @param frame the encoded line
+     * @param sequence the sequence number of the line in the message log, or -1 if it is not logged
+     */
+    private void sendToAll(Iterable<SessionRegistry.Entry> clients, boolean isListeningOnly, byte type, ByteBuffer frame, long sequence) {
+        // One slot per variant: text, binary and shared compressed, each without and with the sequence number.
+        ByteBuffer[] variants = new ByteBuffer[6];
+        for (SessionRegistry.Entry client : clients) {
+            if (isListeningOnly && !client.isListening) {
+                continue;
+            }
+            ClientOutbound outbound = client.outbound;
+            int slot = (outbound.isSequenced && sequence >= 0 ? 1 : 0)
+                    + (!outbound.isBinary ? 0 : outbound.compressor == FrameCompressor.SHARED ? 4 : 2);
+            ByteBuffer variant = variants[slot];
+            if (variant == null) {
+                ByteBuffer line = (slot & 1) == 0 ? frame : sequenced(frame, sequence);
+                if (slot < 2) {
+                    variant = line;
+                }
+                else {
+                    ByteBuffer binaryFrame = FrameCodec.wrapLine(type, line).asReadOnlyBuffer();
+                    variant = slot < 4 ? binaryFrame : FrameCompressor.compressShared(binaryFrame).asReadOnlyBuffer();
+                }
+                variants[slot] = variant;
+            }
+            outbound.send(variant.duplicate());
+        }
+    }
+
+    /**
+     * Put the sequence number in front of an encoded line, e.g. "#1234 (Time: 12:00:00) bob: hi".
+     * <br>The client keeps the last number it got and asks for the lines after it when it resumes its session.
+     *
+     * @param frame the encoded line; it is not modified
+     * @param sequence the sequence number of the line
+     * @return ByteBuffer
+     */
+    private static ByteBuffer sequenced(ByteBuffer frame, long sequence) {
+        byte[] prefix = ("#" + sequence + " ").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer line = ByteBuffer.allocate(prefix.length + frame.remaining());
+        line.put(prefix).put(frame.duplicate()).flip();
+        return line.asReadOnlyBuffer();
+    }
+
+    /**
+     * Encode the line which is sent to clients.
+     * <br>The line is encoded once; every client gets a view of the same read-only bytes.
+     * 
+     * @param line the line to encode
+     * @return ByteBuffer
+     */
+    private ByteBuffer encodeFrame(String line) {
+        return ByteBuffer.wrap((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the current time as HH:mm:ss.
+     * 
+     * @return String
+     */
+    String currentTime() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedTime cached = cachedTime;
+        if (cached.second != second) {
+            cached = new CachedTime(second, LocalTime.now().format(TIME_FORMAT));
+            cachedTime = cached;
+        }
+        return cached.text;
+    }
+
+    /**
+     * CachedTime keeps the time text of one second. It is immutable, so it can be shared between threads
+     * through one volatile field.
+     */
+    private static final class CachedTime {
 
         /**
-         * Get the username from client.
-         * <br>Additional feature: It can also test whether the input name is empty.
+         * The second since epoch.
          */
-        private void getClientUsername() {
-            while (true) {
-                out.println(WELCOME);
-                try {
-                    clientName = in.readLine();
+        final long second;
+
+        /**
+         * The time text of the second.
+         */
+        final String text;
+
+        /**
+         * The constructor of CachedTime class.
+         * 
+         * @param second the second since epoch
+         * @param text the time text of the second
+         */
+        CachedTime(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    /**
+     * HandleSession is an inner class of Server. It contains members: clientName, clientStartName, socket, in, out, state,
+     * lastReadMillis, timeout, owner, resumeRoom, resumeSequence, conversation, isQuitting, isReplyPending, deferred,
+     * and methods: run(), finishOutput(), greet(), checkTimeouts(), handleLine(String line), createStreams(), getClientUsername(String name),
+     * enterChat(String name, boolean isGranted), resume(String argument), sendToken(), sendMissed(String roomName, long sequence), listenClientMessage(String line),
+     * handleMessage(String line), converse(String line), processClientRequest(String command), finishReply(CompletableFuture reply),
+     * sendReply(CompletableFuture reply), queryHistory(String argument), queryStats(), sendPrivateMessage(String argument), isTooLong(String message), sendEmoji(), selectEmoji(String line),
+     * closeConnection().
+     * <br>The session reacts to one line at a time, so the same code is driven by its own thread in thread mode
+     * and by an EventLoop in nio mode.
+     *
+     * @author Zhiyong Liu
+     */
+    class HandleSession implements Runnable {
+
+        /**
+         * The state when the session waits for the username.
+         */
+        private static final int NAMING = 0;
+
+        /**
+         * The state when the client is allowed to chat.
+         */
+        private static final int CHATTING = 1;
+
+        /**
+         * The state when the username waits for the other nodes of the cluster to agree.
+         */
+        private static final int CLAIMING = 2;
+
+        /**
+         * The name of client in this session.
+         */
+        private String clientName;
+
+        /**
+         * The entry of client in the session registry. It is null until the username is accepted.
+         */
+        private SessionRegistry.Entry entry = null;
+
+        /**
+         * The socket to connect to the client.
+         */
+        private Socket socket;
+
+        /**
+         * The input stream of server. It is null when the session is driven by an EventLoop.
+         */
+        private BufferedReader in = null;
+
+        /**
+         * The output stream of server.
+         */
+        private PrintWriter out = null;
+
+        /**
+         * The outbound queue of the client. Broadcast messages are put into it directly.
+         */
+        private ClientOutbound outbound = null;
+
+        /**
+         * The current state of the session. It is also read by the timer wheel.
+         */
+        private volatile int state = NAMING;
+
+        /**
+         * The time when the session was created.
+         */
+        private final long connectedMillis = System.currentTimeMillis();
+
+        /**
+         * The time when the client sent the last line or frame.
+         */
+        private volatile long lastReadMillis = connectedMillis;
+
+        /**
+         * The limiter of the messages of the client. It is only used by the thread handling the session.
+         */
+        private final RateLimiter rateLimiter = new RateLimiter();
+
+        /**
+         * The next check of the timeouts of the session.
+         */
+        private volatile TimerWheel.Timeout timeout = null;
+
+        /**
+         * The executor which runs tasks on the thread driving the session. It is null in thread mode,
+         * where that thread waits for the tasks itself.
+         */
+        private Executor owner = null;
+
+        /**
+         * The binary input stream of server. It is used instead of in after the client asked for binary frames.
+         */
+        private DataInputStream binaryIn = null;
+
+        /**
+         * To denote whether the connection has been closed.
+         */
+        private final AtomicBoolean isClosed = new AtomicBoolean(false);
+
+        /**
+         * The room of the session which is being resumed, or null if the client enters the chat as usual.
+         */
+        private String resumeRoom = null;
+
+        /**
+         * The sequence number of the last message the resuming client got.
+         */
+        private long resumeSequence = -1;
+
+        /**
+         * The step of the command which waits for the next line of the client, e.g. the emoji menu,
+         * or null if the lines are chat messages and commands.
+         */
+        private CommandRegistry.Conversation<HandleSession> conversation = null;
+
+        /**
+         * To denote whether the client asked to quit.
+         */
+        private boolean isQuitting = false;
+
+        /**
+         * To denote whether the reply of a command is still being worked out off the event loop.
+         */
+        private boolean isReplyPending = false;
+
+        /**
+         * The messages of the client which arrived while a reply was pending. They are handled after the reply,
+         * in the order they arrived; each of them returns whether the client quits.
+         */
+        private final Queue<Callable<Boolean>> deferred = new ArrayDeque<Callable<Boolean>>();
+
+        /**
+         * The constructor of HandleSession class.
+         *
+         * @param socket the socket for the client
+         */
+        HandleSession(Socket socket) {
+            this.socket = socket;
+        }
+
+        /**
+         * The constructor of HandleSession class for a session driven by an EventLoop.
+         *
+         * @param socket the socket adaptor of the client channel
+         * @param outbound the outbound queue of the client channel
+         * @param owner the event loop driving the session
+         */
+        HandleSession(Socket socket, ClientOutbound outbound, Executor owner) {
+            this.socket = socket;
+            this.outbound = outbound;
+            this.owner = owner;
+            this.out = new PrintWriter(new ClientOutbound.OutboundWriter(outbound), false);
+        }
+
+        /**
+         * Configure and start the session with client.
+         */
+        public void run() {
+            try {
+                createStreams();
+                greet();
+                String line = null;
+                while (true) {
+                    if (isBinary()) {
+                        if (readFrame()) {
+                            finishOutput();
+                            break;
+                        }
+                        continue;
+                    }
+                    line = in.readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    if (handleLine(line)) {
+                        finishOutput();
+                        break;
+                    }
                 }
-                catch (IOException e) {
-                    System.err.println("Exception in getClientUsername:\n" + e.getMessage());
+            }
+            catch (EOFException e) {
+                // The binary client closed the connection.
+            }
+            catch (Exception e) {
+                if (!isShuttingDown.get()) {
+                    System.err.println("Some Exception occurs:\n" + e.getMessage());
                 }
-    
-                if (clientName == null) {
+            }
+            finally {
+                closeConnection();
+            }
+        }
+
+        /**
+         * Write out the last lines for a client which quits or is disconnected, e.g. the notice of a flood disconnect,
+         * and close the sending side, so the client reads them before the end of the stream.
+         * <br>The lines are written by the drain task of the queue, and the socket must not be closed before it is
+         * done. The thread waits at most QUIT_DRAIN_MILLIS, so a client which does not read can not hold it.
+         * The event loop needs none of this: it writes the queue itself before it closes a connection.
+         */
+        private void finishOutput() {
+            long deadline = System.currentTimeMillis() + QUIT_DRAIN_MILLIS;
+            while (!outbound.isDrained() && System.currentTimeMillis() < deadline) {
+                sleep(10);
+            }
+            outbound.shutdownOutput();
+        }
+
+        /**
+         * Ask the client for the username.
+         */
+        void greet() {
+            out.println(WELCOME);
+            out.flush();
+            checkTimeouts();
+        }
+
+        /**
+         * Disconnect the client if it did not finish the handshake or stayed quiet for too long,
+         * send a heartbeat if it has been quiet for a while, and schedule the next check.
+         * <br>Additional feature: A dead client which never sends anything again does not keep its session,
+         * its thread and its place in every broadcast forever.
+         * <br>It runs on the timer wheel, so it must not block.
+         */
+        private void checkTimeouts() {
+            if (isClosed.get()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (state == NAMING && HANDSHAKE_TIMEOUT_MILLIS > 0) {
+                if (now - connectedMillis >= HANDSHAKE_TIMEOUT_MILLIS) {
+                    evict("no username within " + HANDSHAKE_TIMEOUT_MILLIS + " ms");
                     return;
                 }
-                
-                if (clientName.equals("")) {
-                    out.println("Sorry, you can not set the name as empty");
-                    continue;
+                scheduleCheck(connectedMillis + HANDSHAKE_TIMEOUT_MILLIS - now);
+                return;
+            }
+            long idle = now - lastReadMillis;
+            if (IDLE_TIMEOUT_MILLIS > 0 && idle >= IDLE_TIMEOUT_MILLIS) {
+                evict("quiet for " + idle + " ms");
+                return;
+            }
+            long next = IDLE_TIMEOUT_MILLIS > 0 ? IDLE_TIMEOUT_MILLIS - idle : Long.MAX_VALUE;
+            if (HEARTBEAT_MILLIS > 0 && state != NAMING) {
+                if (idle >= HEARTBEAT_MILLIS) {
+                    sendHeartbeat();
+                    next = Math.min(next, HEARTBEAT_MILLIS);
                 }
-                
-                synchronized(clientNameSet){
-                    if (!clientNameSet.contains(clientName)) {
-                        clientNameSet.add(clientName);
-                        break;
+                else {
+                    next = Math.min(next, HEARTBEAT_MILLIS - idle);
+                }
+            }
+            else if (HEARTBEAT_MILLIS > 0) {
+                // The heartbeats start once the username is accepted.
+                next = Math.min(next, HEARTBEAT_MILLIS);
+            }
+            if (next != Long.MAX_VALUE) {
+                scheduleCheck(next);
+            }
+        }
+
+        /**
+         * Schedule the next check of the timeouts.
+         *
+         * @param delayMillis the delay of the check
+         */
+        private void scheduleCheck(long delayMillis) {
+            timeout = timers.schedule(new Runnable() {
+                public void run() {
+                    checkTimeouts();
+                }
+            }, delayMillis);
+        }
+
+        /**
+         * Send a heartbeat to the client. It is skipped when the queue of the client is full,
+         * because the timer wheel must not wait for room and the client has data to read anyway.
+         */
+        private void sendHeartbeat() {
+            if (outbound.size() < ClientOutbound.CAPACITY) {
+                outbound.send((isBinary() ? BINARY_HEARTBEAT : TEXT_HEARTBEAT).duplicate());
+            }
+        }
+
+        /**
+         * Disconnect the client. The connection is closed by its owner, which ends the session with closeConnection().
+         *
+         * @param reason the reason written to the log
+         */
+        private void evict(String reason) {
+            ServerLog.info("The connection of " + (clientName != null ? clientName : socket.getRemoteSocketAddress()) + " is evicted: " + reason);
+            outbound.abort();
+        }
+
+        /**
+         * Handle one line from client according to the state of the session.
+         * <br>The output stream is flushed once after the line is handled, so all the replies to one line
+         * (e.g. the whole \\help listing) reach the outbound queue as a single buffer.
+         * <br>Every line counts as a sign of life; an answer to a heartbeat is not handled any further.
+         *
+         * @param line the line client sent
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        boolean handleLine(String line) throws IOException {
+            ServerMetrics.MESSAGES_IN.increment();
+            lastReadMillis = System.currentTimeMillis();
+            if (line.equals(HEARTBEAT_REPLY)) {
+                return false;
+            }
+            try {
+                return dispatchLine(line);
+            }
+            finally {
+                out.flush();
+            }
+        }
+
+        /**
+         * Handle one frame from a binary client.
+         * <br>Before the client may chat, the text of every frame is handled like a line. After that, the type decides:
+         * a CHAT frame is always a chat message, even if it starts with a backslash. A CHAT frame with line breaks is
+         * handled one line at a time, so a text client never reads a line of the sender which is not prefixed with its name,
+         * and every line takes its own token of the rate limit.
+         *
+         * @param type the type of the frame, see FrameCodec
+         * @param text the text of the frame
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        boolean handleFrame(byte type, String text) throws IOException {
+            ServerMetrics.MESSAGES_IN.increment();
+            lastReadMillis = System.currentTimeMillis();
+            if (text.equals(HEARTBEAT_REPLY)) {
+                return false;
+            }
+            try {
+                if (state != CHATTING) {
+                    return dispatchLine(text);
+                }
+                if (type == FrameCodec.CHAT && FrameCodec.hasLineBreak(text)) {
+                    // Every line is broadcast on its own, so every line is charged like a line of a text client.
+                    for (String line : FrameCodec.splitLines(text)) {
+                        if (listenClientFrame(type, line)) {
+                            return true;
+                        }
                     }
+                    return false;
                 }
+                return listenClientFrame(type, text);
+            }
+            finally {
+                out.flush();
+            }
+        }
+
+        /**
+         * Handle one frame, or one line of a CHAT frame, of a binary client which may chat.
+         * <br>Like a line of a text client, it is checked against the rate limit and waits while the reply of a
+         * command is pending.
+         *
+         * @param type the type of the frame, see FrameCodec
+         * @param text the text of the frame, or one line of it
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        private boolean listenClientFrame(byte type, String text) throws IOException {
+            if (!isAllowed(text)) {
+                return rateLimiter.isOffender();
+            }
+            if (isReplyPending) {
+                deferred.add(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return handleChatFrame(type, text);
+                    }
+                });
+                return false;
+            }
+            return handleChatFrame(type, text);
+        }
+
+        /**
+         * Handle one frame of a binary client which may chat, after it passed the rate limit.
+         *
+         * @param type the type of the frame, see FrameCodec
+         * @param text the text of the frame, or one line of a CHAT frame
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        private boolean handleChatFrame(byte type, String text) throws IOException {
+            if (type != FrameCodec.CHAT && FrameCodec.hasLineBreak(text)) {
+                out.println("Sorry, a command can not contain a line break, it is ignored.");
+                return false;
+            }
+            if (conversation != null) {
+                converse(text);
+                return false;
+            }
+            switch (type) {
+                case FrameCodec.CHAT:
+                    sendChat(text);
+                    return false;
+                case FrameCodec.COMMAND:
+                    return processClientRequest(text.startsWith("\\") ? text : "\\" + text);
+                case FrameCodec.EMOJI:
+                    selectEmoji(text);
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Read and handle one frame from a binary client in thread mode.
+         *
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        private boolean readFrame() throws IOException {
+            int length = binaryIn.readInt();
+            byte type = binaryIn.readByte();
+            if (length < 0 || length > FrameCodec.MAX_PAYLOAD) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            byte[] payload = new byte[length];
+            binaryIn.readFully(payload);
+            return handleFrame(type, new String(payload, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Test whether the client asked for binary frames.
+         *
+         * @return boolean
+         */
+        boolean isBinary() {
+            return outbound.isBinary;
+        }
+
+        /**
+         * Handle one line according to the state of the session.
+         *
+         * @param line the line client sent
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        private boolean dispatchLine(String line) throws IOException {
+            switch (state) {
+                case NAMING:
+                    getClientUsername(line);
+                    return false;
+                case CLAIMING:
+                    out.println("Please wait, your username is being checked.");
+                    return false;
+                default:
+                    return listenClientMessage(line);
+            }
+        }
+
+        /**
+         * Create the input and output stream of server.
+         */
+        private void createStreams() {
+            try {
+                in = new BufferedReader(new InputStreamReader(new ServerMetrics.CountingInputStream(socket.getInputStream())));
+                // Everything written to the client goes through its bounded queue, so a slow client
+                // never blocks the thread which sends to it.
+                outbound = new ClientOutbound.SocketOutbound(socket, writerExecutor);
+                out = new PrintWriter(new ClientOutbound.OutboundWriter(outbound), false);
+                ServerLog.info("One connetion is established");
+            }
+            catch (IOException e) {
+                System.err.println("Exception in createStreams:\n" + e.getMessage());
+            }
+        }
+
+        /**
+         * Check the username from client.
+         * <br>Additional feature: It can also test whether the input name is empty.
+         * <br>In a cluster the name is also claimed from the other nodes, so it is unique in the whole cluster.
+         *
+         * @param name the username client sent
+         */
+        private void getClientUsername(String name) {
+            if ((name.equals(FrameCodec.BINARY_REQUEST) || name.startsWith(FrameCodec.BINARY_REQUEST + " ")) && !isBinary()) {
+                switchToBinary(name.substring(FrameCodec.BINARY_REQUEST.length()).trim());
+                return;
+            }
+            if ((name.equals(RESUME) || name.startsWith(RESUME + " ")) && resumeRoom == null) {
+                resume(name.substring(RESUME.length()).trim());
+                return;
+            }
+            if (name.equals("")) {
+                out.println("Sorry, you can not set the name as empty");
+                out.println(WELCOME);
+                return;
+            }
+            if (FrameCodec.hasLineBreak(name)) {
+                // Only a binary client can send one, and it would end the line of every notice with the name.
+                out.println("Sorry, the name can not contain a line break");
+                out.println(WELCOME);
+                return;
+            }
+
+            entry = sessions.reserve(name, outbound);
+            if (entry == null) {
                 out.println("Sorry, this usrename is unavailable");
+                out.println(WELCOME);
+                return;
+            }
+            if (cluster == null) {
+                enterChat(name, true);
+                return;
             }
+            state = CLAIMING;
+            CompletableFuture<Boolean> claim = cluster.claim(name);
+            if (owner == null) {
+                enterChat(name, claim.join());
+                return;
+            }
+            // The event loop must not wait for the other nodes; the answer is handled on it later.
+            claim.thenAccept(isGranted -> owner.execute(new Runnable() {
+                public void run() {
+                    enterChat(name, isGranted);
+                    out.flush();
+                }
+            }));
+        }
+
+        /**
+         * Let the client into the chat room once its username is reserved in the whole cluster.
+         * <br>The client catches up on its room and joins it under the write lock of the room, like joinRoom().
+         *
+         * @param name the username
+         * @param isGranted whether the other nodes of the cluster agreed to the username
+         */
+        private void enterChat(String name, boolean isGranted) {
+            if (isClosed.get()) {
+                // The client left while the name was claimed.
+                if (isGranted) {
+                    cluster.release(name);
+                }
+                return;
+            }
+            if (!isGranted) {
+                sessions.release(entry);
+                entry = null;
+                resumeRoom = null;
+                state = NAMING;
+                out.println("Sorry, this usrename is unavailable");
+                out.println(WELCOME);
+                return;
+            }
+            clientName = name;
+            state = CHATTING;
             out.println(ACCEPT);
-            clientStartTime = System.currentTimeMillis();
-            broadcast(clientName + " has entered the chat (Current online: " + clientNameSet.size() + ")");
-            clientWriterSet.add(out);
+            String roomName = resumeRoom != null ? resumeRoom : SessionRegistry.LOBBY;
+            // No line of the room may be delivered between the catch-up and the join, or the client would miss it.
+            Lock lock = sessions.roomLock(roomName).writeLock();
+            lock.lock();
+            try {
+                if (resumeRoom != null) {
+                    sendMissed(resumeRoom, resumeSequence);
+                    // The room may have no members left, so it is only found by its name.
+                    broadcast(resumeRoom, FrameCodec.SYSTEM, clientName + " is back (Current online: " + onlineCount() + ")");
+                }
+                else {
+                    sendRecent(SessionRegistry.LOBBY);
+                    broadcast(SessionRegistry.LOBBY, FrameCodec.SYSTEM, clientName + " has entered the chat (Current online: " + onlineCount() + ")");
+                }
+                sessions.joinRoom(entry, roomName);
+            }
+            finally {
+                lock.unlock();
+            }
+            resumeRoom = null;
+            entry.isListening = true;
+            sendToken();
         }
 
         /**
-         * Listen the message from client.
-         * 
-         * @throws IOException if an I/O error occurs
+         * Handle the request of a client to resume its session.
+         * <br>Without a token the client only asks for tokens: it gets the sequence numbers of the broadcasts
+         * and a new token whenever it enters a room. With a valid token the client gets its username back,
+         * returns to its room and gets the messages of the room it missed, instead of entering the chat again.
+         * A token issued by another node of the cluster is refused like an invalid one.
+         *
+         * @param argument the token and the sequence number of the last message the client got, or ""
          */
-        private void listenClientMessage() throws IOException {
-            String line = null;
-            while (true) {
-                line = in.readLine(); 
-                if(line == null){
-                    break;
+        private void resume(String argument) {
+            outbound.isSequenced = true;
+            if (argument.equals("")) {
+                out.println(RESUME_ACCEPT);
+                out.println(WELCOME);
+                return;
+            }
+            String[] parts = argument.split(" ");
+            String[] session = null;
+            long sequence = -1;
+            try {
+                if (parts.length == 2) {
+                    sequence = Long.parseLong(parts[1]);
+                    session = SessionTokens.verify(parts[0]);
                 }
-                if (line.startsWith("\\")) {
-                    if (processClientRequest(line)) {
-                        break;
+            }
+            catch (NumberFormatException e) {
+                session = null;
+            }
+            if (session == null) {
+                out.println(RESUME_REFUSED);
+                out.println(WELCOME);
+                return;
+            }
+            resumeRoom = session[1];
+            resumeSequence = sequence;
+            getClientUsername(session[0]);
+            if (entry == null) {
+                // The username is taken again, e.g. by a session the server has not found dead yet.
+                resumeRoom = null;
+            }
+        }
+
+        /**
+         * Give a client which can resume its session a token for its current room, with the sequence number
+         * of the newest logged message. The client has got everything before that number, either live or
+         * as recent messages.
+         */
+        private void sendToken() {
+            if (outbound.isSequenced) {
+                long sequence = messageLog != null ? messageLog.end() : 0;
+                out.println(TOKEN + " " + SessionTokens.issue(clientName, entry.room.name) + " " + sequence);
+            }
+        }
+
+        /**
+         * Send the messages of a room which a resuming client missed, with their sequence numbers.
+         *
+         * @param roomName the name of the room
+         * @param sequence the sequence number of the last message the client got
+         */
+        private void sendMissed(String roomName, long sequence) {
+            if (messageLog == null) {
+                return;
+            }
+            List<MessageLog.Message> messages = messageLog.since(roomName, sequence, MessageLog.MAX_HISTORY + 1);
+            if (messages.isEmpty()) {
+                return;
+            }
+            if (messages.size() > MessageLog.MAX_HISTORY) {
+                messages.remove(0);
+                out.println("------ Older missed messages are not shown ------");
+            }
+            out.println("------ Missed messages in " + roomName + " ------");
+            List<ByteBuffer> frames = new ArrayList<ByteBuffer>(messages.size());
+            for (MessageLog.Message message : messages) {
+                frames.add(sequenced(message.frame, message.sequence));
+            }
+            sendFrames(frames);
+        }
+
+        /**
+         * Handle one message from client.
+         * <br>While the reply of a command is pending, the message waits until the reply is sent, so the client
+         * sees the replies in the order of its commands and a conversation gets the lines meant for it.
+         *
+         * @param line the message client sent
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        private boolean listenClientMessage(String line) throws IOException {
+            if (!isAllowed(line)) {
+                return rateLimiter.isOffender();
+            }
+            if (isReplyPending) {
+                deferred.add(new Callable<Boolean>() {
+                    public Boolean call() throws IOException {
+                        return handleMessage(line);
                     }
+                });
+                return false;
+            }
+            return handleMessage(line);
+        }
+
+        /**
+         * Handle one message from client which passed the rate limit: the next step of a conversation,
+         * a command or a chat message.
+         *
+         * @param line the message client sent
+         * @throws IOException if an I/O error occurs
+         * @return boolean whether the client quits
+         */
+        private boolean handleMessage(String line) throws IOException {
+            if (conversation != null) {
+                converse(line);
+                return false;
+            }
+            if (line.startsWith("\\")) {
+                return processClientRequest(line);
+            }
+            sendChat(line);
+            return false;
+        }
+
+        /**
+         * Hand one line to the conversation the client is in.
+         *
+         * @param line the line client sent
+         */
+        private void converse(String line) {
+            conversation = conversation.next(this, line);
+        }
+
+        /**
+         * Check a message of the client against its rate limit, before it costs a broadcast.
+         * No message is accepted while the server shuts down, so a client never thinks a lost message was sent.
+         * <br>Additional feature: A client which floods the room only gets a notice on the first dropped message
+         * of a strike window, and a repeat offender is told why it is disconnected.
+         *
+         * @param message the message client sent
+         * @return boolean whether the message may be handled
+         */
+        private boolean isAllowed(String message) {
+            if (isShuttingDown.get()) {
+                out.println("The server is shutting down, your message was not sent.");
+                return false;
+            }
+            if (rateLimiter.tryAcquire(message)) {
+                return true;
+            }
+            ServerMetrics.RATE_LIMITED.increment();
+            if (rateLimiter.isOffender()) {
+                out.println("You are disconnected for sending too many messages.");
+                ServerLog.info("The connection of " + clientName + " is closed for flooding");
+            }
+            else if (rateLimiter.strikes() == 1) {
+                out.println("You are sending messages too fast, some of them are dropped.");
+            }
+            return false;
+        }
+
+        /**
+         * Test whether a message is longer than MAX_MESSAGE_BYTES, and tell the client it is not sent.
+         *
+         * @param message the message client sent
+         * @return boolean
+         */
+        private boolean isTooLong(String message) {
+            // A char is at most 3 bytes in UTF-8, so most messages are never encoded here.
+            if (message.length() * 3L <= MAX_MESSAGE_BYTES || message.getBytes(StandardCharsets.UTF_8).length <= MAX_MESSAGE_BYTES) {
+                return false;
+            }
+            out.println("Sorry, the message is longer than " + MAX_MESSAGE_BYTES + " bytes, it is not sent.");
+            return true;
+        }
+
+        /**
+         * Broadcast a chat message of client to its room.
+         *
+         * @param message the message client sent
+         */
+        private void sendChat(String message) {
+            if (isTooLong(message)) {
+                return;
+            }
+            entry.messageCount++;
+            broadcast(entry.room, FrameCodec.CHAT, clientName + ": " + message);
+        }
+
+        /**
+         * Switch the session to the binary protocol of FrameCodec.
+         * <br>The accept line is the last text line; the client sends nothing until it has read it,
+         * so no binary data can be left in the buffer of the text reader.
+         * <br>Additional feature: If the client asked for a compression the server knows, the accept line
+         * repeats it and everything sent after the line may be compressed. Otherwise the frames are not compressed.
+         *
+         * @param compression the compression the client asked for, or "" for none
+         */
+        private void switchToBinary(String compression) {
+            FrameCompressor compressor = FrameCompressor.create(compression);
+            out.println(compressor != null ? FrameCodec.BINARY_ACCEPT + " " + compression : FrameCodec.BINARY_ACCEPT);
+            out.flush();
+            outbound.isBinary = true;
+            if (compressor != null) {
+                outbound.startCompression(compressor);
+            }
+            if (in != null) {
+                try {
+                    binaryIn = new DataInputStream(new BufferedInputStream(new ServerMetrics.CountingInputStream(socket.getInputStream())));
                 }
-                else {
-                    broadcast(clientName + ": " + line);
+                catch (IOException e) {
+                    System.err.println("Exception in switchToBinary:\n" + e.getMessage());
                 }
             }
+            out.println(WELCOME);
         }
 
         /**
@@ -298,105 +1644,331 @@ public class Server {
          * <br>Additional feature:
          * <br>1. It can test if the command is valid.
          * <br>2. It can allow client to send four different emojis.
-         * 
+         * <br>3. It can send a private message to one user.
+         * <br>The command is looked up in the command registry. In thread mode the thread waits for the reply of the
+         * command; an event loop goes on with the other clients, and the reply is sent by finishReply() later.
+         *
          * @param command the command user input
          * @throws IOException if an I/O error occurs
          * @return boolean
          */
         private boolean processClientRequest(String command) throws IOException {
-            boolean isQuit = false;
-            switch (command) {
-                case "\\quit":
-                    isQuit = true;
-                    break;
-                case "\\help": 
-                    for (String c : commands) {
-                        out.println("Command " + c);
+            // A command may have one argument after the first space, e.g. "\join games".
+            int space = command.indexOf(' ');
+            String argument = space < 0 ? "" : command.substring(space + 1).trim();
+            if (space >= 0) {
+                command = command.substring(0, space);
+            }
+            CommandRegistry.Command<HandleSession> handler = commands.lookup(command);
+            if (handler == null) {
+                out.println("Invalid command");
+                return false;
+            }
+            CompletableFuture<Consumer<HandleSession>> reply = handler.execute(this, argument);
+            if (owner == null || reply.isDone()) {
+                sendReply(reply);
+                return isQuitting;
+            }
+            isReplyPending = true;
+            reply.whenComplete((result, error) -> owner.execute(new Runnable() {
+                public void run() {
+                    finishReply(reply);
+                }
+            }));
+            return isQuitting;
+        }
+
+        /**
+         * Send the reply of a command which was worked out off the event loop, and then handle the messages
+         * which arrived meanwhile. It runs on the event loop.
+         *
+         * @param reply the reply of the command, which is completed
+         */
+        private void finishReply(CompletableFuture<Consumer<HandleSession>> reply) {
+            isReplyPending = false;
+            if (isClosed.get()) {
+                deferred.clear();
+                return;
+            }
+            try {
+                sendReply(reply);
+                while (!isReplyPending && !deferred.isEmpty()) {
+                    // Like after every line read, what was printed reaches the queue before the next line broadcasts.
+                    out.flush();
+                    if (deferred.poll().call()) {
+                        // The client quit; the connection is closed by its owner.
+                        deferred.clear();
+                        outbound.abort();
+                        return;
                     }
-                    out.println("------ case sensitive ------");
-                    break;
-                case "\\serverTime":
-                    long serverRunTime = (System.currentTimeMillis()-serverStartTime)/1000/60;
-                    out.println("server has run for " + serverRunTime + " minutes");
-                    break;
-                case "\\clientTime":
-                    long clientRunTime = (System.currentTimeMillis()-clientStartTime)/1000/60;
-                    out.println("you has been in chat room for " + clientRunTime + " minutes");
-                    break;
-                case "\\serverIP":
-                    InetAddress ip = socket.getLocalAddress();
-                    out.println("server IP: " + ip);
-                    break;
-                case "\\clientNumber":
-                    out.println("client numbers: " + clientNameSet.size());
-                    break;
-                case "\\emoji":
-                    sendEmoji();
-                    break;
-                default:
-                    out.println("Invalid command");
+                }
+            }
+            catch (Exception e) {
+                System.err.println("Exception in finishReply:\n" + e.getMessage());
+                outbound.abort();
+            }
+            finally {
+                out.flush();
+            }
+        }
+
+        /**
+         * Wait for the reply of a command and send it. A command which failed is reported to the client.
+         *
+         * @param reply the reply of the command
+         */
+        private void sendReply(CompletableFuture<Consumer<HandleSession>> reply) {
+            Consumer<HandleSession> result;
+            try {
+                result = reply.join();
+            }
+            catch (CompletionException | CancellationException e) {
+                System.err.println("Exception in sendReply:\n" + e.getMessage());
+                out.println("Sorry, the command failed, please try again.");
+                return;
+            }
+            if (result != null) {
+                result.accept(this);
+            }
+        }
+
+        /**
+         * Send a private message to one user and tell the client whether it was sent.
+         *
+         * @param argument the username of the recipient and the message, separated by a space
+         */
+        private void sendPrivateMessage(String argument) {
+            int space = argument.indexOf(' ');
+            String message = space < 0 ? "" : argument.substring(space + 1).trim();
+            if (message.equals("")) {
+                out.println("Please give the username and the message, e.g. \\msg bob hello");
+                return;
+            }
+            String to = argument.substring(0, space);
+            if (to.equals(clientName)) {
+                out.println("You can not send a private message to yourself");
+                return;
+            }
+            if (isTooLong(message)) {
+                return;
+            }
+            if (sendPrivate(clientName, to, message)) {
+                out.println("Private message to " + to + " is sent.");
+            }
+            else {
+                out.println("Sorry, " + to + " is not online, the message is not sent.");
+            }
+        }
+
+        /**
+         * Move the client into another room.
+         * <br>The client gets the recent messages of the new room and joins it in one step under the write lock of the
+         * room, so a line broadcast meanwhile is neither lost nor sent twice.
+         * <br>The old room is told that the client left, and the new room is told that the client joined.
+         *
+         * @param roomName the name of the room
+         */
+        private void joinRoom(String roomName) {
+            if (roomName.equals("")) {
+                out.println("Please give the name of the room, e.g. \\join games");
+                return;
+            }
+            SessionRegistry.Room oldRoom = entry.room;
+            if (oldRoom != null && oldRoom.name.equals(roomName)) {
+                out.println("You are already in room " + roomName);
+                return;
+            }
+            SessionRegistry.Room newRoom;
+            // No line of the room may be delivered between the recent messages and the join, or the client would miss it.
+            Lock lock = sessions.roomLock(roomName).writeLock();
+            lock.lock();
+            try {
+                sendRecent(roomName);
+                newRoom = sessions.joinRoom(entry, roomName);
+            }
+            finally {
+                lock.unlock();
+            }
+            if (oldRoom != null) {
+                broadcast(oldRoom, FrameCodec.SYSTEM, clientName + " has left room " + oldRoom.name + ".");
+            }
+            broadcast(newRoom, FrameCodec.SYSTEM, clientName + " has joined room " + roomName + " (Members: " + newRoom.members.size() + ")");
+            sendToken();
+        }
+
+        /**
+         * Send the recent messages of a room to the client which enters it, so it can catch up.
+         *
+         * The history is kept after the last member left the room, so it is also sent to the first one entering it again.
+         *
+         * @param roomName the name of the room
+         */
+        private void sendRecent(String roomName) {
+            RecentHistory history = sessions.getHistory(roomName);
+            if (history == null) {
+                return;
+            }
+            List<ByteBuffer> frames = history.recent();
+            if (frames.isEmpty()) {
+                return;
+            }
+            out.println("------ Recent messages in " + roomName + " ------");
+            sendFrames(frames);
+        }
+
+        /**
+         * Look up the last messages of the current room for the client.
+         * <br>The messages are read off the event loop, and sent as slices of the message log, so they are not
+         * copied into the heap.
+         *
+         * @param argument the number of messages, or "" for the default
+         * @return CompletableFuture of the reply which sends the messages
+         */
+        private CompletableFuture<Consumer<HandleSession>> queryHistory(String argument) {
+            if (messageLog == null) {
+                out.println("History is not available on this server");
+                return CommandRegistry.done();
+            }
+            int n = 20;
+            try {
+                if (!argument.equals("")) {
+                    n = Integer.parseInt(argument);
+                }
+            }
+            catch (NumberFormatException e) {
+                n = -1;
+            }
+            if (n <= 0) {
+                out.println("Please give a positive number, e.g. \\history 20");
+                return CommandRegistry.done();
+            }
+            String roomName = entry.room.name;
+            int count = n;
+            return commands.offload(() -> messageLog.last(roomName, count)).thenApply(frames -> session -> session.sendHistory(frames));
+        }
+
+        /**
+         * Send the last messages of the current room to the client.
+         *
+         * @param frames the messages
+         */
+        private void sendHistory(List<ByteBuffer> frames) {
+            out.println("------ The last " + frames.size() + " messages ------");
+            sendFrames(frames);
+        }
+
+        /**
+         * Take a snapshot of the metrics of the server for the client. It walks every session, so it is taken
+         * off the event loop.
+         *
+         * @return CompletableFuture of the reply which sends the metrics
+         */
+        private CompletableFuture<Consumer<HandleSession>> queryStats() {
+            return commands.offload(() -> ServerMetrics.snapshot(sessions)).thenApply(metrics -> session -> session.sendStats(metrics));
+        }
+
+        /**
+         * Send the metrics of the server to the client, one per line.
+         *
+         * @param metrics the snapshot of the metrics
+         */
+        private void sendStats(Map<String, Long> metrics) {
+            out.println("------ Server metrics ------");
+            for (Map.Entry<String, Long> metric : metrics.entrySet()) {
+                out.println(metric.getKey() + ": " + metric.getValue());
+            }
+        }
+
+        /**
+         * Send encoded lines to the client, e.g. history. A binary client gets each of them as a SYSTEM frame,
+         * all in one buffer, so a compressing client gets the whole burst compressed together.
+         *
+         * @param frames the encoded lines
+         */
+        private void sendFrames(List<ByteBuffer> frames) {
+            // The text printed before must reach the queue first.
+            out.flush();
+            if (isBinary()) {
+                outbound.send(FrameCodec.wrapLines(FrameCodec.SYSTEM, frames));
+                return;
+            }
+            for (ByteBuffer frame : frames) {
+                outbound.send(frame);
             }
-            return isQuit;
         }
 
         /**
          * Process the request for sending emoji from client.
          * It is an additional command which allows client to send emoji.
-         * 
-         * @throws IOException if an I/O error occurs
+         * The selection itself arrives as the next line and is handled by the emojiSelection conversation.
          */
-        private void sendEmoji() throws IOException {
+        private void sendEmoji() {
             out.println("Please select the emoji you want to send: (enter the number)\n1. Greet\n2. Bored\n3. Sad\n4. Bye");
-            boolean isValid = false;
-            String line = null;
-            while (!isValid) {
-                line = in.readLine();
-                if(line == null){
-                    break;
-                }
-                if(line.equals("1")){
-                    broadcast(clientName + ": " + emoji[0]);
-                    isValid = true;
-                }
-                else if(line.equals("2")){
-                    broadcast(clientName + ": " + emoji[1]);
-                    isValid = true;
-                }
-                else if(line.equals("3")){
-                    broadcast(clientName + ": " + emoji[2]);
-                    isValid = true;
-                }
-                else if(line.equals("4")){
-                    broadcast(clientName + ": " + emoji[3]);
-                    isValid = true;
-                }
-                else{
-                    out.println("Invalid emoji, select again:");
-                }
+            conversation = emojiSelection;
+        }
+
+        /**
+         * Broadcast the emoji selected by client.
+         *
+         * @param line the number of emoji client selected
+         * @return boolean whether the number was valid
+         */
+        private boolean selectEmoji(String line) {
+            if(line.equals("1")){
+                broadcast(entry.room, FrameCodec.EMOJI, clientName + ": " + emoji[0]);
+            }
+            else if(line.equals("2")){
+                broadcast(entry.room, FrameCodec.EMOJI, clientName + ": " + emoji[1]);
+            }
+            else if(line.equals("3")){
+                broadcast(entry.room, FrameCodec.EMOJI, clientName + ": " + emoji[2]);
             }
+            else if(line.equals("4")){
+                broadcast(entry.room, FrameCodec.EMOJI, clientName + ": " + emoji[3]);
+            }
+            else{
+                out.println("Invalid emoji, select again:");
+                return false;
+            }
+            return true;
         }
 
         /**
          * Close the session with the client.
          */
-        private void closeConnection() {
-            if (clientName != null) {
-                clientNameSet.remove(clientName);
-                broadcast(clientName + " has left the chat.");
+        void closeConnection() {
+            if (!isClosed.compareAndSet(false, true)) {
+                return;
             }
-            if (out != null) {
-                clientWriterSet.remove(out);
+            TimerWheel.Timeout check = timeout;
+            if (check != null) {
+                check.cancel();
+            }
+            if (outbound != null) {
+                outbound.endCompression();
+            }
+            if (entry != null) {
+                SessionRegistry.Room room = entry.room;
+                sessions.release(entry);
+                // A client whose username is still being claimed has not entered the chat yet.
+                if (clientName != null && cluster != null) {
+                    cluster.release(clientName);
+                }
+                // When the server shuts down everybody leaves at once, nobody needs to be told.
+                if (clientName != null && !isShuttingDown.get()) {
+                    broadcast(room, FrameCodec.SYSTEM, clientName + " has left the chat.");
+                }
             }
 
             try {
                 socket.close();
-                System.out.println("The connection of " + clientName + " is closed" );
+                ServerLog.info("The connection of " + clientName + " is closed" );
             }
             catch (IOException e) {
                 System.err.println("Exception when closing the socket");
                 System.err.println(e.getMessage());
             }
         }
-        
+
     }// end of the HandleSession class
 }// end of the Server class
\ No newline at end of file
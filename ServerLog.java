@@ -0,0 +1,453 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ServerLog is the log of the chat room server. Logging never waits for the console or the disk.
+ * <br>A logging thread only puts the record into a lock-free queue. One background writer takes all the records
+ * queued so far, writes them with one call and flushes once, either to the console or to a log file which is rolled
+ * when it reaches FILE_BYTES. If the writer falls more than CAPACITY records behind, new records are dropped and
+ * counted instead of using more memory.
+ * <br>LEVEL decides what is logged: "error", "info" (connections and server events) or "debug" (also every
+ * broadcast message). "off" logs nothing, and a record below the level costs one comparison.
+ * <br>It contains members: OFF, ERROR, INFO, DEBUG, LEVEL, FILE, FILE_BYTES, FILE_COUNT, CAPACITY, queue, pending,
+ * dropped, writer, isWriterParked, isClosed,
+ * and methods: isEnabled(int level), error(String message), info(String message), debug(String message), close().
+ *
+ * @author Zhiyong Liu
+ */
+class ServerLog {
+
+    /**
+     * The level which logs nothing.
+     */
+    static final int OFF = 0;
+
+    /**
+     * The level of errors.
+     */
+    static final int ERROR = 1;
+
+    /**
+     * The level of connections and server events.
+     */
+    static final int INFO = 2;
+
+    /**
+     * The level of every broadcast message.
+     */
+    static final int DEBUG = 3;
+
+    /**
+     * The names of the levels.
+     */
+    private static final String[] LEVEL_NAMES = {"OFF", "ERROR", "INFO", "DEBUG"};
+
+    /**
+     * The most detailed level which is logged.
+     */
+    static final int LEVEL = parseLevel(System.getProperty("chatroom.logLevel", "debug"));
+
+    /**
+     * The log file. An empty value writes the log to the console.
+     */
+    static final String FILE = System.getProperty("chatroom.logFile", "");
+
+    /**
+     * The size at which the log file is rolled.
+     */
+    static final long FILE_BYTES = Long.getLong("chatroom.logFileBytes", 64L * 1024 * 1024);
+
+    /**
+     * The number of rolled log files which are kept.
+     */
+    static final int FILE_COUNT = Integer.getInteger("chatroom.logFileCount", 5);
+
+    /**
+     * The largest number of records waiting for the writer.
+     */
+    static final int CAPACITY = Integer.getInteger("chatroom.logQueue", 64 * 1024);
+
+    /**
+     * The format of the time of a record in the log file.
+     */
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
+            .withZone(ZoneId.systemDefault());
+
+    /**
+     * The records waiting for the writer.
+     */
+    private static final Queue<Record> queue = new ConcurrentLinkedQueue<Record>();
+
+    /**
+     * The number of records in the queue. The queue itself can not tell its size cheaply.
+     */
+    private static final AtomicInteger pending = new AtomicInteger(0);
+
+    /**
+     * The number of records dropped because the queue was full.
+     */
+    private static final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * To denote whether the writer is about to park or parked, so a logging thread has to wake it up.
+     */
+    private static volatile boolean isWriterParked = false;
+
+    /**
+     * To denote whether the server is exiting and the writer has to finish.
+     */
+    private static volatile boolean isClosed = false;
+
+    /**
+     * The background writer. It is not started when the level is off.
+     */
+    private static final Thread writer = LEVEL == OFF ? null : startWriter();
+
+    /**
+     * The constructor of ServerLog class. It is not used.
+     */
+    private ServerLog() {
+    }
+
+    /**
+     * Test whether records of a level are logged. It lets callers skip building a message which is not logged.
+     *
+     * @param level the level
+     * @return boolean
+     */
+    static boolean isEnabled(int level) {
+        return level <= LEVEL;
+    }
+
+    /**
+     * Log an error.
+     *
+     * @param message the message
+     */
+    static void error(String message) {
+        log(ERROR, message);
+    }
+
+    /**
+     * Log a connection or server event.
+     *
+     * @param message the message
+     */
+    static void info(String message) {
+        log(INFO, message);
+    }
+
+    /**
+     * Log a broadcast message.
+     *
+     * @param message the message
+     */
+    static void debug(String message) {
+        log(DEBUG, message);
+    }
+
+    /**
+     * Put a record into the queue and wake the writer up if it sleeps.
+     *
+     * @param level the level of the record
+     * @param message the message
+     */
+    private static void log(int level, String message) {
+        if (level > LEVEL || isClosed) {
+            return;
+        }
+        if (pending.incrementAndGet() > CAPACITY) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(new Record(System.currentTimeMillis(), level, message));
+        // The writer sets the flag before it checks the queue a last time, so either it sees this record or we see the flag.
+        if (isWriterParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Write the records which are still queued and stop the writer. It is called when the JVM exits.
+     */
+    static void close() {
+        if (writer == null || isClosed) {
+            return;
+        }
+        isClosed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(2));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get the level of a name.
+     *
+     * @param name the name of the level
+     * @return int
+     */
+    private static int parseLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        System.err.println("Unknown log level " + name + ", debug is used.");
+        return DEBUG;
+    }
+
+    /**
+     * Start the writer and make sure the records are written when the JVM exits, e.g. by System.exit().
+     *
+     * @return Thread
+     */
+    private static Thread startWriter() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "server-log");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "server-log-close"));
+        return thread;
+    }
+
+    /**
+     * The loop of the writer: take every queued record, write them as one batch, and park while nothing is queued.
+     */
+    private static void write() {
+        Sink sink = FILE.isEmpty() ? new ConsoleSink() : new FileSink(Paths.get(FILE));
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            Record record;
+            while ((record = queue.poll()) != null) {
+                pending.decrementAndGet();
+                sink.format(batch, record);
+                if (batch.length() >= 64 * 1024) {
+                    sink.write(batch);
+                }
+            }
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                sink.format(batch, new Record(System.currentTimeMillis(), ERROR, lost + " log records were dropped because the log could not keep up."));
+            }
+            if (batch.length() > 0) {
+                sink.write(batch);
+            }
+            if (isClosed && queue.isEmpty()) {
+                sink.close();
+                return;
+            }
+            isWriterParked = true;
+            if (queue.isEmpty() && !isClosed) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            isWriterParked = false;
+        }
+    }
+
+    /**
+     * Record is one message waiting to be written.
+     */
+    private static final class Record {
+
+        /**
+         * The time when the message was logged.
+         */
+        final long millis;
+
+        /**
+         * The level of the message.
+         */
+        final int level;
+
+        /**
+         * The message.
+         */
+        final String message;
+
+        /**
+         * The constructor of Record class.
+         *
+         * @param millis the time when the message was logged
+         * @param level the level of the message
+         * @param message the message
+         */
+        Record(long millis, int level, String message) {
+            this.millis = millis;
+            this.level = level;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Sink is where the writer puts the batches of records.
+     */
+    private abstract static class Sink {
+
+        /**
+         * Append one record to the batch.
+         *
+         * @param batch the batch
+         * @param record the record
+         */
+        abstract void format(StringBuilder batch, Record record);
+
+        /**
+         * Write the batch and empty it.
+         *
+         * @param batch the batch
+         */
+        abstract void write(StringBuilder batch);
+
+        /**
+         * Release the sink.
+         */
+        void close() {
+        }
+    }
+
+    /**
+     * ConsoleSink writes the messages to the standard output as they were printed before.
+     */
+    private static class ConsoleSink extends Sink {
+
+        void format(StringBuilder batch, Record record) {
+            batch.append(record.message).append(System.lineSeparator());
+        }
+
+        void write(StringBuilder batch) {
+            System.out.print(batch);
+            System.out.flush();
+            batch.setLength(0);
+        }
+    }
+
+    /**
+     * FileSink writes the records with their time and level to a log file. When the file reaches FILE_BYTES,
+     * it is renamed to FILE.1, the older files are shifted to FILE.2 and so on up to FILE_COUNT, and a new file
+     * is started.
+     */
+    private static class FileSink extends Sink {
+
+        /**
+         * The path of the log file.
+         */
+        private final Path path;
+
+        /**
+         * The stream of the log file, or null if it can not be opened.
+         */
+        private OutputStream out;
+
+        /**
+         * The size of the log file.
+         */
+        private long size;
+
+        /**
+         * The constructor of FileSink class.
+         *
+         * @param path the path of the log file
+         */
+        FileSink(Path path) {
+            this.path = path;
+            open();
+        }
+
+        void format(StringBuilder batch, Record record) {
+            batch.append(TIME_FORMAT.format(Instant.ofEpochMilli(record.millis))).append(' ')
+                    .append(LEVEL_NAMES[record.level]).append(' ').append(record.message).append(System.lineSeparator());
+        }
+
+        void write(StringBuilder batch) {
+            byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+            batch.setLength(0);
+            if (out == null) {
+                return;
+            }
+            try {
+                out.write(bytes);
+                out.flush();
+                size += bytes.length;
+                if (size >= FILE_BYTES) {
+                    roll();
+                }
+            }
+            catch (IOException e) {
+                System.err.println("IOException in ServerLog:\n" + e.getMessage());
+            }
+        }
+
+        void close() {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            }
+            catch (IOException e) {
+                System.err.println("IOException in ServerLog:\n" + e.getMessage());
+            }
+        }
+
+        /**
+         * Open the log file for appending.
+         */
+        private void open() {
+            try {
+                Path parent = path.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                size = Files.size(path);
+            }
+            catch (IOException e) {
+                System.err.println("The log file can not be opened, nothing is logged:\n" + e.getMessage());
+                out = null;
+            }
+        }
+
+        /**
+         * Shift the rolled files and start a new log file.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        private void roll() throws IOException {
+            out.close();
+            for (int i = FILE_COUNT - 1; i >= 1; i--) {
+                Path older = Paths.get(path + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (FILE_COUNT > 0) {
+                Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            else {
+                Files.delete(path);
+            }
+            open();
+        }
+    }
+}
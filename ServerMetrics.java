@@ -0,0 +1,341 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ServerMetrics keeps the counters and the fan-out latency of the chat room server.
+ * <br>The counters are LongAdders and the latency is a striped LatencyHistogram, so recording is one uncontended
+ * add even when many threads broadcast at the same time; the work of adding up is done by the reader.
+ * <br>The metrics are shown by the \stats command, registered as the JMX bean "chatroom:type=Server", and served
+ * as JSON on http://127.0.0.1:METRICS_PORT/metrics when METRICS_PORT is set.
+ * <br>It contains members: METRICS_PORT, ACCEPTS, MESSAGES_IN, MESSAGES_OUT, BYTES_IN, BYTES_OUT, DROPPED,
+ * RATE_LIMITED, COMPRESS_IN, COMPRESS_OUT, FANOUT_NANOS, acceptsPerSecond, messagesInPerSecond, messagesOutPerSecond,
+ * and methods: start(SessionRegistry sessions), snapshot(SessionRegistry sessions), toJson(SessionRegistry sessions).
+ *
+ * @author Zhiyong Liu
+ */
+class ServerMetrics {
+
+    /**
+     * The local port of the HTTP endpoint. Zero turns it off.
+     */
+    static final int METRICS_PORT = Integer.getInteger("chatroom.metricsPort", 0);
+
+    /**
+     * The number of connections accepted.
+     */
+    static final LongAdder ACCEPTS = new LongAdder();
+
+    /**
+     * The number of lines and frames received from clients.
+     */
+    static final LongAdder MESSAGES_IN = new LongAdder();
+
+    /**
+     * The number of buffers queued for clients.
+     */
+    static final LongAdder MESSAGES_OUT = new LongAdder();
+
+    /**
+     * The number of bytes received from clients.
+     */
+    static final LongAdder BYTES_IN = new LongAdder();
+
+    /**
+     * The number of bytes written to clients.
+     */
+    static final LongAdder BYTES_OUT = new LongAdder();
+
+    /**
+     * The number of buffers which were not delivered because a queue was full or its client was dropped.
+     */
+    static final LongAdder DROPPED = new LongAdder();
+
+    /**
+     * The number of messages dropped by the rate limits of clients.
+     */
+    static final LongAdder RATE_LIMITED = new LongAdder();
+
+    /**
+     * The number of bytes given to the deflaters of compressing clients.
+     */
+    static final LongAdder COMPRESS_IN = new LongAdder();
+
+    /**
+     * The number of bytes the deflaters of compressing clients turned them into.
+     */
+    static final LongAdder COMPRESS_OUT = new LongAdder();
+
+    /**
+     * The time one broadcast takes to put a message into the queues of all its recipients, in nanoseconds.
+     */
+    static final LatencyHistogram FANOUT_NANOS = new LatencyHistogram();
+
+    /**
+     * The connections accepted in the last second.
+     */
+    private static volatile long acceptsPerSecond = 0;
+
+    /**
+     * The messages received in the last second.
+     */
+    private static volatile long messagesInPerSecond = 0;
+
+    /**
+     * The messages queued in the last second.
+     */
+    private static volatile long messagesOutPerSecond = 0;
+
+    /**
+     * The constructor of ServerMetrics class. It is not used.
+     */
+    private ServerMetrics() {
+    }
+
+    /**
+     * Start measuring the rates, register the JMX bean and start the HTTP endpoint if it is turned on.
+     * <br>The server still runs if the bean or the endpoint can not be created.
+     *
+     * @param sessions the clients of the server
+     */
+    static void start(SessionRegistry sessions) {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sampler.scheduleAtFixedRate(new Runnable() {
+            private long accepts = 0;
+            private long messagesIn = 0;
+            private long messagesOut = 0;
+
+            public void run() {
+                long nowAccepts = ACCEPTS.sum();
+                long nowMessagesIn = MESSAGES_IN.sum();
+                long nowMessagesOut = MESSAGES_OUT.sum();
+                acceptsPerSecond = nowAccepts - accepts;
+                messagesInPerSecond = nowMessagesIn - messagesIn;
+                messagesOutPerSecond = nowMessagesOut - messagesOut;
+                accepts = nowAccepts;
+                messagesIn = nowMessagesIn;
+                messagesOut = nowMessagesOut;
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(sessions), new ObjectName("chatroom:type=Server"));
+        }
+        catch (JMException e) {
+            System.err.println("Exception when registering the metrics bean:\n" + e.getMessage());
+        }
+
+        if (METRICS_PORT > 0) {
+            try {
+                HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), METRICS_PORT), 0);
+                http.createContext("/metrics", new HttpHandler() {
+                    public void handle(HttpExchange exchange) throws IOException {
+                        byte[] body = toJson(sessions).getBytes(StandardCharsets.UTF_8);
+                        exchange.getResponseHeaders().set("Content-Type", "application/json");
+                        exchange.sendResponseHeaders(200, body.length);
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            out.write(body);
+                        }
+                    }
+                });
+                http.setExecutor(sampler);
+                http.start();
+                System.out.println("Metrics are served on http://127.0.0.1:" + METRICS_PORT + "/metrics");
+            }
+            catch (IOException e) {
+                System.err.println("The metrics endpoint can not be started:\n" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Read all the metrics at once.
+     *
+     * @param sessions the clients of the server
+     * @return Map of the metric names to their values, in a fixed order
+     */
+    static Map<String, Long> snapshot(SessionRegistry sessions) {
+        long queued = 0;
+        long maxQueued = 0;
+        for (SessionRegistry.Entry entry : sessions.entries()) {
+            int size = entry.outbound.size();
+            queued += size;
+            maxQueued = Math.max(maxQueued, size);
+        }
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("activeSessions", (long) sessions.size());
+        metrics.put("accepts", ACCEPTS.sum());
+        metrics.put("acceptsPerSecond", acceptsPerSecond);
+        metrics.put("messagesIn", MESSAGES_IN.sum());
+        metrics.put("messagesInPerSecond", messagesInPerSecond);
+        metrics.put("messagesOut", MESSAGES_OUT.sum());
+        metrics.put("messagesOutPerSecond", messagesOutPerSecond);
+        metrics.put("bytesIn", BYTES_IN.sum());
+        metrics.put("bytesOut", BYTES_OUT.sum());
+        metrics.put("dropped", DROPPED.sum());
+        metrics.put("rateLimited", RATE_LIMITED.sum());
+        metrics.put("compressInBytes", COMPRESS_IN.sum());
+        metrics.put("compressOutBytes", COMPRESS_OUT.sum());
+        metrics.put("queuedTotal", queued);
+        metrics.put("queuedMax", maxQueued);
+        metrics.put("fanoutCount", FANOUT_NANOS.count());
+        metrics.put("fanoutP50Nanos", FANOUT_NANOS.percentile(50));
+        metrics.put("fanoutP99Nanos", FANOUT_NANOS.percentile(99));
+        metrics.put("fanoutP999Nanos", FANOUT_NANOS.percentile(99.9));
+        metrics.put("fanoutMaxNanos", FANOUT_NANOS.max());
+        return metrics;
+    }
+
+    /**
+     * Write the metrics and the queue depth of every client as a JSON object.
+     *
+     * @param sessions the clients of the server
+     * @return String
+     */
+    static String toJson(SessionRegistry sessions) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Long> metric : snapshot(sessions).entrySet()) {
+            json.append('"').append(metric.getKey()).append("\":").append(metric.getValue()).append(',');
+        }
+        json.append("\"queueDepth\":{");
+        boolean isFirst = true;
+        for (SessionRegistry.Entry entry : sessions.entries()) {
+            if (!isFirst) {
+                json.append(',');
+            }
+            isFirst = false;
+            appendString(json, entry.name);
+            json.append(':').append(entry.outbound.size());
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * Append a JSON string, escaping the characters which are not allowed in it.
+     *
+     * @param json the JSON being built
+     * @param text the text of the string
+     */
+    private static void appendString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    /**
+     * CountingInputStream counts the bytes read from a client socket in blocking mode.
+     */
+    static class CountingInputStream extends FilterInputStream {
+
+        /**
+         * The constructor of CountingInputStream class.
+         *
+         * @param in the input stream of the socket
+         */
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                BYTES_IN.increment();
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                BYTES_IN.add(n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * MetricsBean shows every metric of snapshot() as a read-only JMX attribute.
+     */
+    private static class MetricsBean implements DynamicMBean {
+
+        /**
+         * The clients of the server.
+         */
+        private final SessionRegistry sessions;
+
+        /**
+         * The constructor of MetricsBean class.
+         *
+         * @param sessions the clients of the server
+         */
+        MetricsBean(SessionRegistry sessions) {
+            this.sessions = sessions;
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot(sessions).get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> metrics = snapshot(sessions);
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (metrics.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, metrics.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("The metrics are read-only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            for (String name : snapshot(sessions).keySet()) {
+                attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+            }
+            return new MBeanInfo(ServerMetrics.class.getName(), "Metrics of the chat room server",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SessionRegistry is used by Server to keep all the clients in the chat room, keyed by username.
+ * <br>A username is reserved with one atomic putIfAbsent, so two clients can never get the same name, and
+ * broadcast iterates the live map without locking or copying it.
+ * <br>Every client is in exactly one room. A room is created by its first member and removed with its last one.
+ * Its recent history is kept by name and outlives it, so a client which enters a room right after everybody
+ * left still catches up. At most MAX_HISTORIES of them are kept; the histories of rooms without members
+ * which have been quiet the longest are dropped first.
+ * <br>A client which enters a room gets what it missed and becomes a member under the write lock of the room, and
+ * every line is delivered to a room under its read lock, so no line falls between the catch-up and the membership.
+ * <br>It contains members: LOBBY, MAX_HISTORIES, ROOM_LOCKS, sessions, rooms, histories, roomLocks,
+ * and methods: reserve(String name, ClientOutbound outbound), release(Entry entry), get(String name), entries(), size(),
+ * joinRoom(Entry entry, String roomName), leaveRoom(Entry entry), getRoom(String roomName), getHistory(String roomName),
+ * roomLock(String roomName), historyOf(String roomName), trimHistories(), createRoomLocks().
+ *
+ * @author Zhiyong Liu
+ */
+class SessionRegistry {
+
+    /**
+     * The room every client enters first.
+     */
+    static final String LOBBY = "lobby";
+
+    /**
+     * The largest number of recent histories kept. The histories of rooms with members are never dropped,
+     * so more are kept only while more rooms than that have members.
+     */
+    static final int MAX_HISTORIES = Integer.getInteger("chatroom.recentHistoryRooms", 1000);
+
+    /**
+     * The number of room locks. Rooms whose names have the same hash share a lock.
+     */
+    private static final int ROOM_LOCKS = 64;
+
+    /**
+     * The sessions keyed by username.
+     */
+    private final ConcurrentHashMap<String, Entry> sessions = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The rooms keyed by name. Only rooms with members are kept.
+     */
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+
+    /**
+     * The recent histories of the rooms keyed by name, also of rooms which have no members any more.
+     */
+    private final ConcurrentHashMap<String, RecentHistory> histories = new ConcurrentHashMap<String, RecentHistory>();
+
+    /**
+     * The locks of the rooms, picked by the hash of the room name. They also cover rooms without members.
+     */
+    private final ReentrantReadWriteLock[] roomLocks = createRoomLocks();
+
+    /**
+     * Reserve the username for a client.
+     *
+     * @param name the username
+     * @param outbound the outbound queue of the client
+     * @return Entry or null if the username is used by another client
+     */
+    Entry reserve(String name, ClientOutbound outbound) {
+        Entry entry = new Entry(name, outbound);
+        return sessions.putIfAbsent(name, entry) == null ? entry : null;
+    }
+
+    /**
+     * Release the username of a client and take it out of its room.
+     * Only the entry which reserved the name can release it.
+     *
+     * @param entry the entry returned by reserve()
+     * @return boolean whether the entry was in the registry
+     */
+    boolean release(Entry entry) {
+        leaveRoom(entry);
+        return sessions.remove(entry.name, entry);
+    }
+
+    /**
+     * Get the entry of a username.
+     *
+     * @param name the username
+     * @return Entry or null if nobody uses the name
+     */
+    Entry get(String name) {
+        return sessions.get(name);
+    }
+
+    /**
+     * Get all the entries. The view is weakly consistent: it never throws ConcurrentModificationException
+     * and reflects joins and leaves which happen while it is iterated.
+     *
+     * @return Collection
+     */
+    Collection<Entry> entries() {
+        return sessions.values();
+    }
+
+    /**
+     * Get the number of clients in the chat room.
+     *
+     * @return int
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Move a client into a room, creating the room if it does not exist.
+     * <br>The client leaves its current room first.
+     *
+     * @param entry the entry of the client
+     * @param roomName the name of the room
+     * @return Room
+     */
+    Room joinRoom(Entry entry, String roomName) {
+        leaveRoom(entry);
+        RecentHistory history = historyOf(roomName);
+        // compute() runs atomically for the key, so a room which is being removed can not lose a joining member.
+        Room room = rooms.compute(roomName, (name, current) -> {
+            Room joined = current != null ? current : new Room(name, history);
+            joined.members.add(entry);
+            return joined;
+        });
+        entry.room = room;
+        return room;
+    }
+
+    /**
+     * Take a client out of its room. The room is removed when its last member leaves.
+     *
+     * @param entry the entry of the client
+     */
+    void leaveRoom(Entry entry) {
+        Room room = entry.room;
+        if (room == null) {
+            return;
+        }
+        entry.room = null;
+        rooms.computeIfPresent(room.name, (name, current) -> {
+            current.members.remove(entry);
+            return current.members.isEmpty() ? null : current;
+        });
+    }
+
+    /**
+     * Get a room by name.
+     *
+     * @param roomName the name of the room
+     * @return Room or null if the room has no members
+     */
+    Room getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    /**
+     * Get the recent history of a room, which is kept after its last member left.
+     *
+     * @param roomName the name of the room
+     * @return RecentHistory or null if the room has no history
+     */
+    RecentHistory getHistory(String roomName) {
+        return histories.get(roomName);
+    }
+
+    /**
+     * Get the lock of a room. A delivery to the room holds the read lock, so deliveries still run at the same time;
+     * a client which catches up and joins holds the write lock, so no line is delivered in between.
+     *
+     * @param roomName the name of the room
+     * @return ReadWriteLock
+     */
+    ReadWriteLock roomLock(String roomName) {
+        return roomLocks[(roomName.hashCode() & Integer.MAX_VALUE) % ROOM_LOCKS];
+    }
+
+    /**
+     * Get the recent history of a room, creating it if it does not exist.
+     *
+     * @param roomName the name of the room
+     * @return RecentHistory
+     */
+    private RecentHistory historyOf(String roomName) {
+        RecentHistory history = histories.get(roomName);
+        if (history != null) {
+            return history;
+        }
+        history = histories.computeIfAbsent(roomName, name -> new RecentHistory());
+        if (histories.size() > MAX_HISTORIES) {
+            trimHistories();
+        }
+        return history;
+    }
+
+    /**
+     * Drop the histories of rooms without members, the one which has been quiet the longest first,
+     * until at most MAX_HISTORIES are kept. It only runs when a new history is created.
+     */
+    private void trimHistories() {
+        while (histories.size() > MAX_HISTORIES) {
+            String quietest = null;
+            RecentHistory quietestHistory = null;
+            for (Map.Entry<String, RecentHistory> history : histories.entrySet()) {
+                if (rooms.containsKey(history.getKey())) {
+                    continue;
+                }
+                if (quietestHistory == null || history.getValue().lastAddMillis() < quietestHistory.lastAddMillis()) {
+                    quietest = history.getKey();
+                    quietestHistory = history.getValue();
+                }
+            }
+            if (quietest == null) {
+                // Every history belongs to a room with members.
+                return;
+            }
+            histories.remove(quietest, quietestHistory);
+        }
+    }
+
+    /**
+     * Create the room locks.
+     *
+     * @return ReentrantReadWriteLock[]
+     */
+    private static ReentrantReadWriteLock[] createRoomLocks() {
+        ReentrantReadWriteLock[] locks = new ReentrantReadWriteLock[ROOM_LOCKS];
+        for (int i = 0; i < ROOM_LOCKS; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        return locks;
+    }
+
+    /**
+     * Room is a named group of clients. A message sent to a room only goes to its members.
+     * <br>It contains members: name, members, history.
+     */
+    static class Room {
+
+        /**
+         * The name of the room.
+         */
+        final String name;
+
+        /**
+         * The clients in the room.
+         */
+        final Set<Entry> members = ConcurrentHashMap.newKeySet();
+
+        /**
+         * The last frames broadcast in the room. It is shared with the rooms of the same name created later.
+         */
+        final RecentHistory history;
+
+        /**
+         * The constructor of Room class.
+         *
+         * @param name the name of the room
+         * @param history the recent history of the room
+         */
+        Room(String name, RecentHistory history) {
+            this.name = name;
+            this.history = history;
+        }
+    }
+
+    /**
+     * Entry is the information of one client in the chat room.
+     * <br>It contains members: name, outbound, startTime, isListening, messageCount, room.
+     */
+    static class Entry {
+
+        /**
+         * The username of the client.
+         */
+        final String name;
+
+        /**
+         * The outbound queue of the client.
+         */
+        final ClientOutbound outbound;
+
+        /**
+         * The time when the client entered the chat room.
+         */
+        final long startTime = System.currentTimeMillis();
+
+        /**
+         * To denote whether the client receives broadcast messages. It is set after the client has been announced.
+         */
+        volatile boolean isListening = false;
+
+        /**
+         * The number of messages the client sent. It is only written by the session of the client.
+         */
+        volatile long messageCount = 0;
+
+        /**
+         * The room of the client. It is only changed by the session of the client.
+         */
+        volatile Room room = null;
+
+        /**
+         * The constructor of Entry class.
+         *
+         * @param name the username of the client
+         * @param outbound the outbound queue of the client
+         */
+        Entry(String name, ClientOutbound outbound) {
+            this.name = name;
+            this.outbound = outbound;
+        }
+    }
+}
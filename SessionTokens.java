@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * SessionTokens issues and checks the tokens a client uses to resume its session after a reconnect.
+ * <br>A token carries the username, the room, the node and the time it was issued, signed with HMAC-SHA256, so the
+ * server keeps nothing per token and a restarted server still accepts the tokens it issued before. The key is the
+ * chatroom.sessionSecret property; otherwise it is kept in a file next to the message log, which only its owner
+ * can read, or only in memory if there is no log.
+ * <br>The sequence number which comes with a token is an offset in the message log of the node which issued it, and
+ * means nothing in the log of another node. So a token is only accepted by the node with the same
+ * ClusterNode.NODE_ID; a client which reconnects to another node of a cluster is refused and logs in again.
+ * <br>It contains members: KEY_FILE, TOKEN_MILLIS, ALGORITHM, SECRET, ENCODER, DECODER,
+ * and methods: issue(String name, String room), issue(String name, String room, String node, long issuedMillis),
+ * verify(String token), sign(String payload), loadSecret().
+ *
+ * @author Zhiyong Liu
+ */
+final class SessionTokens {
+
+    /**
+     * The name of the key file in the directory of the message log.
+     */
+    private static final String KEY_FILE = "session.key";
+
+    /**
+     * The time a token can be used after it is issued.
+     */
+    static final long TOKEN_MILLIS = Long.getLong("chatroom.resumeTokenMillis", 24 * 60 * 60 * 1000L);
+
+    /**
+     * The algorithm of the signature.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * The key of the signature.
+     */
+    private static final byte[] SECRET = loadSecret();
+
+    /**
+     * The encoder of the parts of a token, which keeps the token free of spaces.
+     */
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    /**
+     * The decoder of the parts of a token.
+     */
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    /**
+     * The constructor of SessionTokens class. It is not used.
+     */
+    private SessionTokens() {
+    }
+
+    /**
+     * Issue a token for a client in a room.
+     *
+     * @param name the username
+     * @param room the room of the client
+     * @return String
+     */
+    static String issue(String name, String room) {
+        return issue(name, room, ClusterNode.NODE_ID, System.currentTimeMillis());
+    }
+
+    /**
+     * Issue a token for a client in a room as if it was issued by the given node at the given time.
+     *
+     * @param name the username
+     * @param room the room of the client
+     * @param node the NODE_ID of the node which issues the token
+     * @param issuedMillis the time the token is issued
+     * @return String
+     */
+    static String issue(String name, String room, String node, long issuedMillis) {
+        String payload = ENCODER.encodeToString(name.getBytes(StandardCharsets.UTF_8)) + "."
+                + ENCODER.encodeToString(room.getBytes(StandardCharsets.UTF_8)) + "."
+                + ENCODER.encodeToString(node.getBytes(StandardCharsets.UTF_8)) + "." + issuedMillis;
+        return payload + "." + sign(payload);
+    }
+
+    /**
+     * Check a token.
+     *
+     * @param token the token the client sent
+     * @return String[] the username and the room, or null if the token is invalid, expired or issued by another node
+     */
+    static String[] verify(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 5) {
+            return null;
+        }
+        try {
+            String payload = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
+            byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+            if (!MessageDigest.isEqual(expected, parts[4].getBytes(StandardCharsets.US_ASCII))) {
+                return null;
+            }
+            if (!new String(DECODER.decode(parts[2]), StandardCharsets.UTF_8).equals(ClusterNode.NODE_ID)) {
+                // The sequence number of the token belongs to the message log of another node.
+                return null;
+            }
+            long age = System.currentTimeMillis() - Long.parseLong(parts[3]);
+            if (age < 0 || age > TOKEN_MILLIS) {
+                return null;
+            }
+            return new String[] {new String(DECODER.decode(parts[0]), StandardCharsets.UTF_8),
+                    new String(DECODER.decode(parts[1]), StandardCharsets.UTF_8)};
+        }
+        catch (IllegalArgumentException e) {
+            // A broken number or base64 part.
+            return null;
+        }
+    }
+
+    /**
+     * Sign the payload of a token.
+     *
+     * @param payload the payload
+     * @return String the signature in base64
+     */
+    private static String sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(SECRET, ALGORITHM));
+            return ENCODER.encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Load the key of the signature, or create it.
+     * A new key file is created readable by its owner only, where the file system has POSIX permissions.
+     *
+     * @return byte[]
+     */
+    private static byte[] loadSecret() {
+        String secret = System.getProperty("chatroom.sessionSecret", "");
+        if (!secret.isEmpty()) {
+            return secret.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        if (MessageLog.DIRECTORY.isEmpty()) {
+            return key;
+        }
+        Path path = Paths.get(MessageLog.DIRECTORY, KEY_FILE);
+        try {
+            if (Files.exists(path)) {
+                return Files.readAllBytes(path);
+            }
+            Files.createDirectories(path.getParent());
+            // Anybody who can read the key can sign a token for any username, so only the owner may read it.
+            if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            else {
+                Files.createFile(path);
+            }
+            Files.write(path, key, StandardOpenOption.WRITE);
+        }
+        catch (IOException e) {
+            System.err.println("Exception in SessionTokens.loadSecret():\n" + e.getMessage());
+        }
+        return key;
+    }
+}
@@ -0,0 +1,247 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimerWheel runs delayed tasks for many connections on one thread, e.g. the heartbeat and timeout checks of every
+ * session.
+ * <br>The time is cut into ticks of TICK_MILLIS, and a task is put into the bucket of the tick in which it is due,
+ * modulo WHEEL_SIZE; a task further away than one turn of the wheel also counts the turns it has to wait. Scheduling
+ * and cancelling only add to a lock-free queue, and each tick only visits one bucket, so the cost does not grow with
+ * the number of timers the way a priority queue or one timer thread per connection does. A task runs up to one tick
+ * late, which is plenty for timeouts of seconds.
+ * <br>It contains members: TICK_MILLIS, WHEEL_SIZE, buckets, added, cancelled, startNanos, tick, thread,
+ * and methods: start(), schedule(Runnable task, long delayMillis), run().
+ *
+ * @author Zhiyong Liu
+ */
+class TimerWheel implements Runnable {
+
+    /**
+     * The length of one tick.
+     */
+    static final long TICK_MILLIS = Long.getLong("chatroom.timerTickMillis", 100);
+
+    /**
+     * The number of buckets, a power of two.
+     */
+    static final int WHEEL_SIZE = 512;
+
+    /**
+     * The first timeout of each bucket. Only the wheel thread touches the buckets.
+     */
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+
+    /**
+     * The timeouts scheduled since the last tick.
+     */
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The timeouts cancelled since the last tick.
+     */
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The time when the wheel started.
+     */
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * The number of ticks passed. Only the wheel thread touches it.
+     */
+    private long tick = 0;
+
+    /**
+     * Start the thread of the wheel.
+     *
+     * @return TimerWheel this wheel
+     */
+    TimerWheel start() {
+        Thread thread = new Thread(this, "timer-wheel");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Run a task after a delay on the thread of the wheel. The task must be short and must not block.
+     *
+     * @param task the task to run
+     * @param delayMillis the delay
+     * @return Timeout which can cancel the task
+     */
+    Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline);
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Advance the wheel one tick at a time until the JVM exits.
+     */
+    public void run() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+        while (true) {
+            long sleepNanos = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+            removeCancelled();
+            addScheduled(tickNanos);
+            expire(buckets[(int) (tick & (WHEEL_SIZE - 1))]);
+            tick++;
+        }
+    }
+
+    /**
+     * Put the newly scheduled timeouts into their buckets.
+     *
+     * @param tickNanos the length of one tick
+     */
+    private void addScheduled(long tickNanos) {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled) {
+                continue;
+            }
+            // A timeout which is already due goes into the current bucket and runs in this tick.
+            long dueTick = Math.max(tick, (timeout.deadline + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (dueTick - tick) / WHEEL_SIZE;
+            int index = (int) (dueTick & (WHEEL_SIZE - 1));
+            timeout.next = buckets[index];
+            if (timeout.next != null) {
+                timeout.next.previous = timeout;
+            }
+            buckets[index] = timeout;
+            timeout.bucket = index;
+        }
+    }
+
+    /**
+     * Take the cancelled timeouts out of their buckets, so they do not stay in memory until they are due.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    /**
+     * Run the timeouts of the current bucket which are due in this turn of the wheel.
+     *
+     * @param first the first timeout of the bucket
+     */
+    private void expire(Timeout first) {
+        Timeout timeout = first;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            }
+            else {
+                unlink(timeout);
+                if (!timeout.isCancelled) {
+                    try {
+                        timeout.task.run();
+                    }
+                    catch (RuntimeException e) {
+                        System.err.println("Exception in TimerWheel:\n" + e.getMessage());
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Take a timeout out of its bucket.
+     *
+     * @param timeout the timeout
+     */
+    private void unlink(Timeout timeout) {
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        }
+        else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * Timeout is one scheduled task. Its links are only used by the wheel thread.
+     */
+    class Timeout {
+
+        /**
+         * The task to run.
+         */
+        private final Runnable task;
+
+        /**
+         * The time when the task is due, in nanoseconds after the start of the wheel.
+         */
+        private final long deadline;
+
+        /**
+         * The turns of the wheel to wait before the task is due.
+         */
+        private long rounds;
+
+        /**
+         * The bucket of the timeout, or -1 if it is not in the wheel.
+         */
+        private int bucket = -1;
+
+        /**
+         * The previous timeout in the bucket.
+         */
+        private Timeout previous;
+
+        /**
+         * The next timeout in the bucket.
+         */
+        private Timeout next;
+
+        /**
+         * To denote whether the task has been cancelled.
+         */
+        private volatile boolean isCancelled = false;
+
+        /**
+         * The constructor of Timeout class.
+         *
+         * @param task the task to run
+         * @param deadline the time when the task is due
+         */
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task if it has not run yet.
+         */
+        void cancel() {
+            if (!isCancelled) {
+                isCancelled = true;
+                cancelled.add(this);
+            }
+        }
+    }
+}
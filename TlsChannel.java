@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/**
+ * TlsChannel encrypts one non-blocking client channel of an EventLoop with an SSLEngine.
+ * <br>It never blocks: a read unwraps what has arrived, a write wraps and writes what the socket buffer takes,
+ * and the steps of the handshake are done as the records of the peer arrive. Everything runs on the loop thread,
+ * including the delegated tasks of the engine, which are short for the EC key of the test key store.
+ * <br>The network buffers are taken from the pool of TlsContext only while a record is partly read or
+ * partly written, and the plain text is unwrapped into the read buffer shared by the loop.
+ * <br>Additional feature: The client uses it too, with an engine in client mode, on the channel of its I/O thread.
+ * <br>It contains members: EMPTY, engine, netIn, netOut,
+ * and methods: read(SocketChannel channel), unwrap(ByteBuffer dst), write(SocketChannel channel, ByteBuffer[] srcs, int offset, int length),
+ * flush(SocketChannel channel), hasPendingOutput(), isHandshaking(), close(SocketChannel channel).
+ *
+ * @author Zhiyong Liu
+ */
+class TlsChannel {
+
+    /**
+     * The empty plain text used to wrap handshake data.
+     */
+    private static final ByteBuffer[] EMPTY = {ByteBuffer.allocate(0)};
+
+    /**
+     * The engine of the connection.
+     */
+    private final SSLEngine engine;
+
+    /**
+     * The records read from the client which are not unwrapped yet, in write mode. It is null when there are none.
+     */
+    private ByteBuffer netIn = null;
+
+    /**
+     * The records wrapped for the client which are not written yet, in read mode. It is null when there are none.
+     */
+    private ByteBuffer netOut = null;
+
+    /**
+     * The constructor of TlsChannel class.
+     *
+     * @param engine the engine of the connection, in server mode, or in client mode for the client
+     */
+    TlsChannel(SSLEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Read the records which have arrived from the client.
+     *
+     * @param channel the channel of the client
+     * @return int the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if an I/O error occurs
+     */
+    int read(SocketChannel channel) throws IOException {
+        if (netIn == null) {
+            netIn = TlsContext.acquire();
+        }
+        int n = channel.read(netIn);
+        if (netIn.position() == 0) {
+            TlsContext.release(netIn);
+            netIn = null;
+        }
+        return n;
+    }
+
+    /**
+     * Unwrap the records read so far into the plain text buffer, and do the steps of the handshake on the way.
+     * <br>dst must have room for APPLICATION_SIZE bytes; when it is full, the caller handles it and calls again.
+     *
+     * @param dst the buffer for the plain text
+     * @return int the number of plain text bytes, 0 if no complete record is left, or -1 if the client closed TLS
+     * @throws SSLException if a record is invalid
+     */
+    int unwrap(ByteBuffer dst) throws SSLException {
+        int produced = 0;
+        if (netIn != null) {
+            netIn.flip();
+        }
+        try {
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    if (!wrap(EMPTY, 0, 0)) {
+                        // The handshake data waits until netOut has been written.
+                        return produced;
+                    }
+                    continue;
+                }
+                if (netIn == null || !netIn.hasRemaining() || dst.remaining() < TlsContext.APPLICATION_SIZE) {
+                    return produced;
+                }
+                SSLEngineResult result = engine.unwrap(netIn, dst);
+                produced += result.bytesProduced();
+                switch (result.getStatus()) {
+                    case OK:
+                        if (result.bytesConsumed() == 0 && !isHandshaking()) {
+                            return produced;
+                        }
+                        break;
+                    case CLOSED:
+                        return produced > 0 ? produced : -1;
+                    default:
+                        // BUFFER_UNDERFLOW: the rest of the record has not arrived yet.
+                        return produced;
+                }
+            }
+        }
+        finally {
+            if (netIn != null) {
+                netIn.compact();
+                if (netIn.position() == 0) {
+                    TlsContext.release(netIn);
+                    netIn = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Wrap the plain text and write the records, as far as the socket buffer allows.
+     * <br>Plain text is only wrapped after the handshake; before that it stays in srcs.
+     *
+     * @param channel the channel of the client
+     * @param srcs the plain text; the positions are moved past what was wrapped
+     * @param offset the first buffer
+     * @param length the number of buffers
+     * @return long the number of bytes written to the channel
+     * @throws IOException if an I/O error occurs
+     */
+    long write(SocketChannel channel, ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = flush(channel);
+        while (netOut == null && !isHandshaking() && hasRemaining(srcs, offset, length)) {
+            if (!wrap(srcs, offset, length)) {
+                break;
+            }
+            written += flush(channel);
+        }
+        return written;
+    }
+
+    /**
+     * Write the wrapped records, and wrap the handshake data the engine wants to send.
+     *
+     * @param channel the channel of the client
+     * @return long the number of bytes written to the channel
+     * @throws IOException if an I/O error occurs
+     */
+    long flush(SocketChannel channel) throws IOException {
+        long written = 0;
+        while (true) {
+            if (netOut != null) {
+                written += channel.write(netOut);
+                if (netOut.hasRemaining()) {
+                    return written;
+                }
+                TlsContext.release(netOut);
+                netOut = null;
+            }
+            if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP || !wrap(EMPTY, 0, 0)) {
+                return written;
+            }
+        }
+    }
+
+    /**
+     * Test whether wrapped records wait for the socket buffer.
+     *
+     * @return boolean
+     */
+    boolean hasPendingOutput() {
+        return netOut != null;
+    }
+
+    /**
+     * Test whether the handshake is going on.
+     *
+     * @return boolean
+     */
+    boolean isHandshaking() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * Send the close_notify alert if the socket buffer takes it, and give the buffers back to the pool.
+     * It does not close the channel.
+     *
+     * @param channel the channel of the client
+     */
+    void close(SocketChannel channel) {
+        engine.closeOutbound();
+        try {
+            flush(channel);
+        }
+        catch (IOException e) {
+            // The client is gone; there is nobody to tell.
+        }
+        if (netIn != null) {
+            TlsContext.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null) {
+            TlsContext.release(netOut);
+            netOut = null;
+        }
+    }
+
+    /**
+     * Wrap plain text or handshake data into netOut, which must not hold unwritten records.
+     *
+     * @param srcs the plain text
+     * @param offset the first buffer
+     * @param length the number of buffers
+     * @return boolean whether something was wrapped
+     * @throws SSLException if the engine fails
+     */
+    private boolean wrap(ByteBuffer[] srcs, int offset, int length) throws SSLException {
+        if (netOut != null) {
+            return false;
+        }
+        ByteBuffer buffer = TlsContext.acquire();
+        SSLEngineResult result = engine.wrap(srcs, offset, length, buffer);
+        if (result.bytesProduced() == 0) {
+            TlsContext.release(buffer);
+            return false;
+        }
+        buffer.flip();
+        netOut = buffer;
+        return true;
+    }
+
+    /**
+     * Run the delegated tasks of the engine, e.g. checking a signature, on the current thread.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Test whether some plain text is left.
+     *
+     * @param srcs the plain text
+     * @param offset the first buffer
+     * @param length the number of buffers
+     * @return boolean
+     */
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.*;
+
+/**
+ * TlsContext keeps the TLS set-up of the chat room: the key store of the server, the trust store of the client,
+ * and the pool of network buffers used by TlsChannel.
+ * <br>TLS is turned on with -Dchatroom.tls=true. The server then serves every client through an SSLEngine on its
+ * non-blocking event loops, and the client drives an SSLEngine on its own non-blocking channel, which checks
+ * the certificate and the host name.
+ * <br>The server keeps the sessions in a cache of SESSION_CACHE_SIZE for SESSION_TIMEOUT_SECONDS, and the client
+ * creates its engines with the host and port of the server, so a client which connects again resumes its session
+ * with a short handshake instead of a full one.
+ * <br>A network buffer is about 17 KB. A connection only holds one while a record is partly read or partly written,
+ * so thousands of idle connections do not hold any; the free buffers are kept in a pool of at most POOL_SIZE.
+ * <br>It contains members: ENABLED, KEY_STORE, PASSWORD, TRUST_STORE, SESSION_CACHE_SIZE, SESSION_TIMEOUT_SECONDS,
+ * POOL_SIZE, PACKET_SIZE, APPLICATION_SIZE, pool, pooled, serverContext, clientContext,
+ * and methods: serverEngine(), clientEngine(String host, int port), serverContext(), clientContext(),
+ * createServerContext(String keyStore), createClientContext(String trustStore), loadStore(String path),
+ * acquire(), release(ByteBuffer buffer), generateKeyStore(String path).
+ *
+ * @author Zhiyong Liu
+ */
+class TlsContext {
+
+    /**
+     * To denote whether the connections between the clients and the server use TLS.
+     */
+    static final boolean ENABLED = Boolean.getBoolean("chatroom.tls");
+
+    /**
+     * The PKCS12 key store with the key and certificate of the server.
+     */
+    static final String KEY_STORE = System.getProperty("chatroom.tlsKeyStore", "chatroom-test.p12");
+
+    /**
+     * The password of the key store and of the trust store.
+     */
+    static final String PASSWORD = System.getProperty("chatroom.tlsKeyStorePassword", "changeit");
+
+    /**
+     * The PKCS12 store with the certificates the client trusts. A self-signed test key store can be its own trust store.
+     */
+    static final String TRUST_STORE = System.getProperty("chatroom.tlsTrustStore", KEY_STORE);
+
+    /**
+     * The number of sessions the server keeps for resumption.
+     */
+    static final int SESSION_CACHE_SIZE = Integer.getInteger("chatroom.tlsSessionCacheSize", 20000);
+
+    /**
+     * The time a session can be resumed.
+     */
+    static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("chatroom.tlsSessionTimeoutSeconds", 24 * 3600);
+
+    /**
+     * The largest number of free network buffers kept in the pool.
+     */
+    static final int POOL_SIZE = Integer.getInteger("chatroom.tlsBufferPool", 1024);
+
+    /**
+     * The size of a network buffer, which holds the largest TLS record.
+     */
+    static final int PACKET_SIZE;
+
+    /**
+     * The size of the largest plain text of one TLS record.
+     */
+    static final int APPLICATION_SIZE;
+
+    static {
+        SSLSession session = null;
+        try {
+            // A plain text server does not pay for creating a context.
+            if (ENABLED) {
+                session = SSLContext.getDefault().createSSLEngine().getSession();
+            }
+        }
+        catch (GeneralSecurityException e) {
+            System.err.println("Exception in TlsContext:\n" + e.getMessage());
+        }
+        PACKET_SIZE = session != null ? session.getPacketBufferSize() : 18 * 1024;
+        APPLICATION_SIZE = session != null ? session.getApplicationBufferSize() : 17 * 1024;
+    }
+
+    /**
+     * The free network buffers.
+     */
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * The number of buffers in the pool.
+     */
+    private static final AtomicInteger pooled = new AtomicInteger(0);
+
+    /**
+     * The context of the server. It is created on first use.
+     */
+    private static SSLContext serverContext;
+
+    /**
+     * The context of the client. It is created on first use and keeps the sessions for resumption.
+     */
+    private static SSLContext clientContext;
+
+    /**
+     * The constructor of TlsContext class. It is not used.
+     */
+    private TlsContext() {
+    }
+
+    /**
+     * Create the engine for one client connection of the server.
+     *
+     * @return SSLEngine
+     * @throws IOException if the key store can not be loaded
+     */
+    static SSLEngine serverEngine() throws IOException {
+        SSLEngine engine = serverContext().createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Create the engine for the connection of the client, with the handshake begun. The handshake checks that
+     * the certificate of the server is trusted and was issued for the host name.
+     *
+     * @param host the address of the server
+     * @param port the port number of the server
+     * @return SSLEngine
+     * @throws IOException if the trust store can not be loaded
+     */
+    static SSLEngine clientEngine(String host, int port) throws IOException {
+        SSLEngine engine = clientContext().createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        engine.beginHandshake();
+        return engine;
+    }
+
+    /**
+     * Get the context of the server, loading the key store on first use.
+     *
+     * @return SSLContext
+     * @throws IOException if the key store can not be loaded
+     */
+    static synchronized SSLContext serverContext() throws IOException {
+        if (serverContext == null) {
+            serverContext = createServerContext(KEY_STORE);
+        }
+        return serverContext;
+    }
+
+    /**
+     * Get the context of the client, loading the trust store on first use.
+     *
+     * @return SSLContext
+     * @throws IOException if the trust store can not be loaded
+     */
+    static synchronized SSLContext clientContext() throws IOException {
+        if (clientContext == null) {
+            clientContext = createClientContext(TRUST_STORE);
+        }
+        return clientContext;
+    }
+
+    /**
+     * Create a server context with the key store and the session cache of the chat room.
+     *
+     * @param keyStore the path of the key store
+     * @return SSLContext
+     * @throws IOException if the key store can not be loaded
+     */
+    static SSLContext createServerContext(String keyStore) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(loadStore(keyStore), PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            return context;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("The key store " + keyStore + " can not be used: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Create a client context which trusts the certificates in the trust store.
+     *
+     * @param trustStore the path of the trust store
+     * @return SSLContext
+     * @throws IOException if the trust store can not be loaded
+     */
+    static SSLContext createClientContext(String trustStore) throws IOException {
+        try {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(loadStore(trustStore));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("The trust store " + trustStore + " can not be used: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Load a PKCS12 store.
+     *
+     * @param path the path of the store
+     * @return KeyStore
+     * @throws IOException if the store can not be read
+     * @throws GeneralSecurityException if the store is invalid
+     */
+    private static KeyStore loadStore(String path) throws IOException, GeneralSecurityException {
+        if (!Files.exists(Paths.get(path))) {
+            throw new FileNotFoundException(path + " does not exist; a test key store is created by: java Server keystore");
+        }
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        return store;
+    }
+
+    /**
+     * Take a network buffer from the pool, or allocate one if the pool is empty.
+     *
+     * @return ByteBuffer which is empty
+     */
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(PACKET_SIZE);
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Give a network buffer back to the pool.
+     *
+     * @param buffer the buffer, which must not be used any more
+     */
+    static void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() > POOL_SIZE) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.add(buffer);
+    }
+
+    /**
+     * Create a self-signed key store for local tests with the keytool of the running JDK.
+     * <br>The certificate is issued for localhost and 127.0.0.1 and uses an EC key, which makes full
+     * handshakes cheaper than an RSA key.
+     *
+     * @param path the path of the key store
+     * @throws IOException if keytool fails
+     */
+    static void generateKeyStore(String path) throws IOException {
+        if (Files.exists(Paths.get(path))) {
+            throw new IOException(path + " already exists");
+        }
+        String keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chatroom", "-keyalg", "EC",
+                "-groupname", "secp256r1", "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-validity", "365", "-storetype", "PKCS12", "-keystore", path,
+                "-storepass", PASSWORD, "-keypass", PASSWORD).inheritIO().start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed with exit code " + process.exitValue());
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for keytool", e);
+        }
+    }
+}
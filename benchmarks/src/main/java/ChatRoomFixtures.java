@@ -0,0 +1,156 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * ChatRoomFixtures sets up the parts of the chat room which the benchmarks measure.
+ * <br>The chat room is in the default package, which classes in a named package can not import, and JMH does not
+ * accept benchmarks in the default package. So the benchmarks look this class up by name once, and only call the
+ * standard functional interfaces it returns.
+ * <br>It contains methods: broadcaster(int roomSize), registry(), lineSplitter(), clock(), tlsContexts().
+ *
+ * @author Zhiyong Liu
+ */
+public class ChatRoomFixtures {
+
+    /**
+     * Get a task which broadcasts one chat message to a room of in-memory sinks.
+     * The sinks drain their queue on the broadcasting thread, so no socket is involved.
+     *
+     * @param roomSize the number of clients in the room
+     * @return Runnable
+     */
+    public static Runnable broadcaster(int roomSize) {
+        Server server = new Server("thread");
+        LongAdder bytesDrained = new LongAdder();
+        SessionRegistry.Room room = null;
+        for (int i = 0; i < roomSize; i++) {
+            SessionRegistry.Entry entry = server.sessions.reserve("client" + i, new SinkOutbound(bytesDrained));
+            entry.isListening = true;
+            room = server.sessions.joinRoom(entry, SessionRegistry.LOBBY);
+        }
+        SessionRegistry.Room lobby = room;
+        return new Runnable() {
+            public void run() {
+                server.broadcast(lobby, FrameCodec.CHAT, "client0: hello everyone in the room");
+            }
+        };
+    }
+
+    /**
+     * Get a test which makes one whole visit to a shared registry: reserve the username, enter the lobby,
+     * move to another room and release the name again.
+     * <br>One client stays in each room, so the rooms are not created and removed on every visit.
+     *
+     * @return Predicate which tells whether the username was released
+     */
+    public static Predicate<String> registry() {
+        SessionRegistry registry = new SessionRegistry();
+        registry.joinRoom(registry.reserve("lobbyKeeper", null), SessionRegistry.LOBBY);
+        registry.joinRoom(registry.reserve("roomKeeper", null), "room");
+        return new Predicate<String>() {
+            public boolean test(String name) {
+                SessionRegistry.Entry entry = registry.reserve(name, null);
+                registry.joinRoom(entry, SessionRegistry.LOBBY);
+                registry.joinRoom(entry, "room");
+                return registry.release(entry);
+            }
+        };
+    }
+
+    /**
+     * Get a task which splits a block of bytes into lines in the same way EventLoop does in nio mode.
+     *
+     * @return BiConsumer of the bytes and the consumer of the lines
+     * @throws java.io.IOException if the selector of the loop can not be opened
+     */
+    public static BiConsumer<byte[], Consumer<String>> lineSplitter() throws java.io.IOException {
+        EventLoop loop = new EventLoop(new Server("nio"));
+        return new BiConsumer<byte[], Consumer<String>>() {
+            public void accept(byte[] input, Consumer<String> lines) {
+                EventLoop.Connection c = loop.new Connection(null);
+                int start = 0;
+                for (int i = 0; i < input.length; i++) {
+                    if (input[i] == '\n') {
+                        lines.accept(c.takeLine(input, start, i));
+                        start = i + 1;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Get the time stamp which the server puts in front of every broadcast message.
+     *
+     * @return Supplier
+     */
+    public static Supplier<String> clock() {
+        Server server = new Server("thread");
+        return new Supplier<String>() {
+            public String get() {
+                return server.currentTime();
+            }
+        };
+    }
+
+    /**
+     * Get the TLS contexts of the server and of the client, with a self-signed key store created for the trial
+     * in a temporary directory.
+     *
+     * @return SSLContext[] the context of the server, then the context of the client
+     * @throws java.io.IOException if the key store can not be created or loaded
+     */
+    public static javax.net.ssl.SSLContext[] tlsContexts() throws java.io.IOException {
+        Path directory = Files.createTempDirectory("chatroom-tls");
+        Path keyStore = directory.resolve("chatroom-test.p12");
+        TlsContext.generateKeyStore(keyStore.toString());
+        try {
+            return new javax.net.ssl.SSLContext[] {
+                TlsContext.createServerContext(keyStore.toString()),
+                TlsContext.createClientContext(keyStore.toString())
+            };
+        }
+        finally {
+            Files.delete(keyStore);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * SinkOutbound is a ClientOutbound which throws its data away as soon as it is queued.
+     */
+    private static class SinkOutbound extends ClientOutbound {
+
+        /**
+         * The number of bytes thrown away by all the sinks.
+         */
+        private final LongAdder bytesDrained;
+
+        /**
+         * The constructor of SinkOutbound class.
+         *
+         * @param bytesDrained the counter of the bytes thrown away
+         */
+        SinkOutbound(LongAdder bytesDrained) {
+            this.bytesDrained = bytesDrained;
+        }
+
+        protected void scheduleDrain() {
+            do {
+                ByteBuffer data;
+                while ((data = poll()) != null) {
+                    bytesDrained.add(data.remaining());
+                }
+            } while (finishDrain());
+        }
+
+        protected void abortClient() {
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package chatroom.benchmarks;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * BroadcastBenchmark measures the fan-out of one chat message to every member of a room.
+ * <br>The members are in-memory sinks, so the result is the cost of Server.broadcast() itself: formatting, encoding
+ * and queueing, without any socket.
+ * <br>It contains members: roomSize, broadcaster, stdout,
+ * and methods: setUp(), tearDown(), broadcast().
+ *
+ * @author Zhiyong Liu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /**
+     * The number of clients in the room.
+     */
+    @Param({"10", "100", "1000", "10000"})
+    public int roomSize;
+
+    /**
+     * The task which broadcasts one message to the room.
+     */
+    private Runnable broadcaster;
+
+    /**
+     * The standard output of the JVM, which is replaced while the benchmark runs.
+     */
+    private PrintStream stdout;
+
+    /**
+     * Fill the room with sinks and silence the console output of broadcast().
+     *
+     * @throws Exception if the room can not be set up
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        broadcaster = Fixtures.create("broadcaster", new Class<?>[] {int.class}, roomSize);
+    }
+
+    /**
+     * Give the console back.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+    }
+
+    /**
+     * Broadcast one chat message to the room.
+     */
+    @Benchmark
+    public void broadcast() {
+        broadcaster.run();
+    }
+}
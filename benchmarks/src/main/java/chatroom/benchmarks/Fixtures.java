@@ -0,0 +1,39 @@
+package chatroom.benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Fixtures looks up the set-up methods of ChatRoomFixtures, which is in the default package like the chat room.
+ *
+ * @author Zhiyong Liu
+ */
+final class Fixtures {
+
+    /**
+     * The constructor of Fixtures class. It is not used.
+     */
+    private Fixtures() {
+    }
+
+    /**
+     * Call one static method of ChatRoomFixtures.
+     *
+     * @param name the name of the method
+     * @param types the parameter types of the method
+     * @param args the arguments
+     * @param <T> the type of the fixture
+     * @return the fixture returned by the method
+     * @throws Exception if the method can not be called or fails
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T create(String name, Class<?>[] types, Object... args) throws Exception {
+        Method method = Class.forName("ChatRoomFixtures").getMethod(name, types);
+        try {
+            return (T) method.invoke(null, args);
+        }
+        catch (InvocationTargetException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package chatroom.benchmarks;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * LineParsingBenchmark measures how fast the lines sent by clients are split and decoded.
+ * <br>It compares the BufferedReader of the blocking modes with the byte scan of EventLoop in nio mode, on the same
+ * block of input as it would come from a socket.
+ * <br>It contains members: LINES, lineLength, input, splitter,
+ * and methods: setUp(), bufferedReader(Blackhole blackhole), eventLoop(Blackhole blackhole).
+ *
+ * @author Zhiyong Liu
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineParsingBenchmark {
+
+    /**
+     * The number of lines in one block of input.
+     */
+    private static final int LINES = 256;
+
+    /**
+     * The number of characters in a line.
+     */
+    @Param({"16", "256"})
+    public int lineLength;
+
+    /**
+     * The block of input, lines ended by CRLF like a telnet client sends them.
+     */
+    private byte[] input;
+
+    /**
+     * The line splitter of EventLoop.
+     */
+    private BiConsumer<byte[], Consumer<String>> splitter;
+
+    /**
+     * Build the block of input.
+     *
+     * @throws Exception if the splitter can not be set up
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            for (int j = 0; j < lineLength; j++) {
+                text.append((char) ('a' + (i + j) % 26));
+            }
+            text.append("\r\n");
+        }
+        input = text.toString().getBytes(StandardCharsets.UTF_8);
+        splitter = Fixtures.create("lineSplitter", new Class<?>[0]);
+    }
+
+    /**
+     * Read the lines with a BufferedReader, as a session thread does.
+     *
+     * @param blackhole the sink of the lines
+     * @throws IOException never, the input is in memory
+     */
+    @Benchmark
+    public void bufferedReader(Blackhole blackhole) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            blackhole.consume(line);
+        }
+    }
+
+    /**
+     * Split the lines out of the bytes, as EventLoop does with what it reads from a channel.
+     *
+     * @param blackhole the sink of the lines
+     */
+    @Benchmark
+    public void eventLoop(Blackhole blackhole) {
+        splitter.accept(input, blackhole::consume);
+    }
+}
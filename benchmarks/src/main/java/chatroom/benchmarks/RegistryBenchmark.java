@@ -0,0 +1,79 @@
+package chatroom.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * RegistryBenchmark measures how many clients can join and leave the chat room at the same time.
+ * <br>Every operation is one whole visit to SessionRegistry: reserve a username, enter the lobby, move to another
+ * room and release the name again, which is what the handshake, \join and quit do.
+ * <br>It contains members: visitor, nextId,
+ * and methods: setUp(), joinAndLeave(ClientState client).
+ *
+ * @author Zhiyong Liu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RegistryBenchmark {
+
+    /**
+     * The visit to the registry shared by all the benchmark threads.
+     */
+    private Predicate<String> visitor;
+
+    /**
+     * The source of the usernames of the threads.
+     */
+    private final AtomicInteger nextId = new AtomicInteger(0);
+
+    /**
+     * Create the shared registry.
+     *
+     * @throws Exception if the registry can not be set up
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        visitor = Fixtures.create("registry", new Class<?>[0]);
+    }
+
+    /**
+     * Reserve a username, enter the lobby, move to another room and leave.
+     *
+     * @param client the state of the thread
+     * @return boolean whether the username was released
+     */
+    @Benchmark
+    public boolean joinAndLeave(ClientState client) {
+        return visitor.test(client.name);
+    }
+
+    /**
+     * ClientState is the username of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        /**
+         * The username of the thread.
+         */
+        String name;
+
+        /**
+         * Take a username which no other thread uses.
+         *
+         * @param benchmark the shared state
+         */
+        @Setup(Level.Trial)
+        public void setUp(RegistryBenchmark benchmark) {
+            name = "client" + benchmark.nextId.getAndIncrement();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package chatroom.benchmarks;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * TimestampBenchmark measures the time stamp put in front of every broadcast message.
+ * <br>It compares a new SimpleDateFormat for every message, which the server used to do, with the cached
+ * time of Server.currentTime().
+ * <br>It contains members: clock,
+ * and methods: setUp(), simpleDateFormat(), cachedTime().
+ *
+ * @author Zhiyong Liu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class TimestampBenchmark {
+
+    /**
+     * The cached time of a server which is never started.
+     */
+    private Supplier<String> clock;
+
+    /**
+     * Create the server.
+     *
+     * @throws Exception if the server can not be set up
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        clock = Fixtures.create("clock", new Class<?>[0]);
+    }
+
+    /**
+     * Format the time with a new SimpleDateFormat.
+     *
+     * @return String
+     */
+    @Benchmark
+    public String simpleDateFormat() {
+        SimpleDateFormat df = new SimpleDateFormat("HH:mm:ss");
+        return df.format(new Date());
+    }
+
+    /**
+     * Read the cached time of the server.
+     *
+     * @return String
+     */
+    @Benchmark
+    public String cachedTime() {
+        return clock.get();
+    }
+}
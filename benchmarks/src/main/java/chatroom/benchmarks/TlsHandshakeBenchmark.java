@@ -0,0 +1,71 @@
+package chatroom.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * TlsHandshakeBenchmark measures how many TLS handshakes one thread can do with the test key store of the chat room.
+ * <br>It compares a full handshake with a resumed one, where the client offers the session of an earlier connection
+ * to the same host and port. The engines talk through memory, so the TCP connect is not counted.
+ * <br>It contains members: serverContext, clientContext,
+ * and methods: setUp(), fullHandshake(), resumedHandshake().
+ *
+ * @author Zhiyong Liu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsHandshakeBenchmark {
+
+    /**
+     * The context of the server, with the session cache of the chat room.
+     */
+    private SSLContext serverContext;
+
+    /**
+     * The context of the client, which keeps the sessions for resumption.
+     */
+    private SSLContext clientContext;
+
+    /**
+     * Create the key store and the contexts, and do one handshake the resumed handshakes can resume.
+     *
+     * @throws Exception if the contexts can not be set up
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SSLContext[] contexts = Fixtures.create("tlsContexts", new Class<?>[0]);
+        serverContext = contexts[0];
+        clientContext = contexts[1];
+        new TlsPair(serverContext, clientContext, true).handshake();
+    }
+
+    /**
+     * Do a full handshake with a client which does not offer any session.
+     *
+     * @return SSLSession
+     * @throws SSLException if the handshake fails
+     */
+    @Benchmark
+    public SSLSession fullHandshake() throws SSLException {
+        return new TlsPair(serverContext, clientContext, false).handshake();
+    }
+
+    /**
+     * Do a handshake which resumes the session of an earlier connection.
+     *
+     * @return SSLSession
+     * @throws SSLException if the handshake fails
+     */
+    @Benchmark
+    public SSLSession resumedHandshake() throws SSLException {
+        return new TlsPair(serverContext, clientContext, true).handshake();
+    }
+}
@@ -0,0 +1,150 @@
+package chatroom.benchmarks;
+
+import java.nio.ByteBuffer;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TlsPair connects a client engine and a server engine through two in-memory buffers instead of a socket,
+ * so the benchmarks measure the cost of TLS itself.
+ * <br>It contains members: EMPTY, client, server, toServer, toClient, plain,
+ * and methods: handshake(), send(ByteBuffer message), step(SSLEngine engine, ByteBuffer out, ByteBuffer in),
+ * runTasks(SSLEngine engine).
+ *
+ * @author Zhiyong Liu
+ */
+final class TlsPair {
+
+    /**
+     * The empty plain text used to wrap handshake data.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * The engine of the client.
+     */
+    private final SSLEngine client;
+
+    /**
+     * The engine of the server.
+     */
+    private final SSLEngine server;
+
+    /**
+     * The records on their way to the server, in write mode.
+     */
+    private final ByteBuffer toServer;
+
+    /**
+     * The records on their way to the client, in write mode.
+     */
+    private final ByteBuffer toClient;
+
+    /**
+     * The plain text unwrapped by either side.
+     */
+    private final ByteBuffer plain;
+
+    /**
+     * The constructor of TlsPair class.
+     *
+     * @param serverContext the context of the server
+     * @param clientContext the context of the client
+     * @param isResumable whether the client engine is created with the host and port, which lets it resume a session
+     */
+    TlsPair(SSLContext serverContext, SSLContext clientContext, boolean isResumable) {
+        client = isResumable ? clientContext.createSSLEngine("localhost", 4396) : clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        int packetSize = client.getSession().getPacketBufferSize();
+        toServer = ByteBuffer.allocate(4 * packetSize);
+        toClient = ByteBuffer.allocate(4 * packetSize);
+        plain = ByteBuffer.allocate(2 * client.getSession().getApplicationBufferSize());
+    }
+
+    /**
+     * Run the handshake until neither side has anything more to send, including the session ticket of the server.
+     *
+     * @return SSLSession the session of the client
+     * @throws SSLException if the handshake fails
+     */
+    SSLSession handshake() throws SSLException {
+        client.beginHandshake();
+        server.beginHandshake();
+        boolean isProgressing = true;
+        while (isProgressing) {
+            isProgressing = step(client, toServer, toClient);
+            isProgressing |= step(server, toClient, toServer);
+        }
+        return client.getSession();
+    }
+
+    /**
+     * Wrap one message on the client and unwrap it on the server.
+     *
+     * @param message the plain text; its position is moved to the end
+     * @return int the number of plain text bytes the server got
+     * @throws SSLException if a record is invalid
+     */
+    int send(ByteBuffer message) throws SSLException {
+        while (message.hasRemaining()) {
+            client.wrap(message, toServer);
+        }
+        toServer.flip();
+        plain.clear();
+        while (toServer.hasRemaining()) {
+            server.unwrap(toServer, plain);
+        }
+        toServer.clear();
+        return plain.position();
+    }
+
+    /**
+     * Let one side send what the handshake wants to send and read what the other side sent.
+     *
+     * @param engine the engine of the side
+     * @param out the records the side sends
+     * @param in the records the side receives
+     * @return boolean whether anything was wrapped or unwrapped
+     * @throws SSLException if the handshake fails
+     */
+    private boolean step(SSLEngine engine, ByteBuffer out, ByteBuffer in) throws SSLException {
+        boolean isProgressing = false;
+        while (true) {
+            runTasks(engine);
+            if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP
+                    || engine.wrap(EMPTY, out).bytesProduced() == 0) {
+                break;
+            }
+            isProgressing = true;
+        }
+        in.flip();
+        while (in.hasRemaining()) {
+            plain.clear();
+            SSLEngineResult result = engine.unwrap(in, plain);
+            runTasks(engine);
+            if (result.bytesConsumed() == 0) {
+                break;
+            }
+            isProgressing = true;
+        }
+        in.compact();
+        return isProgressing;
+    }
+
+    /**
+     * Run the delegated tasks of the engine on the current thread.
+     *
+     * @param engine the engine
+     */
+    private static void runTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
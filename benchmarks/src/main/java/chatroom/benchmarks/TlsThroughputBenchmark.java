@@ -0,0 +1,99 @@
+package chatroom.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * TlsThroughputBenchmark measures the cost TLS adds to every message the chat room sends.
+ * <br>It compares encrypting a message on the client and decrypting it on the server with copying the plain text
+ * into a buffer and out of it again, which is what a plain text connection does with the socket buffers.
+ * A short message is one chat line; a long one is a full TLS record, like a batch of a gathering write.
+ * <br>It contains members: messageSize, message, pair, network, received,
+ * and methods: setUp(), plainText(), tls().
+ *
+ * @author Zhiyong Liu
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TlsThroughputBenchmark {
+
+    /**
+     * The number of bytes of one message.
+     */
+    @Param({"128", "16384"})
+    public int messageSize;
+
+    /**
+     * The plain text of the message.
+     */
+    private ByteBuffer message;
+
+    /**
+     * The client and the server after their handshake.
+     */
+    private TlsPair pair;
+
+    /**
+     * The buffer standing for the socket buffers of a plain text connection.
+     */
+    private ByteBuffer network;
+
+    /**
+     * The buffer the plain text is read into.
+     */
+    private ByteBuffer received;
+
+    /**
+     * Create the message and do the handshake.
+     *
+     * @throws Exception if the contexts can not be set up
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        byte[] text = new byte[messageSize];
+        Arrays.fill(text, (byte) 'x');
+        message = ByteBuffer.wrap(text);
+        network = ByteBuffer.allocateDirect(messageSize);
+        received = ByteBuffer.allocate(messageSize);
+        SSLContext[] contexts = Fixtures.create("tlsContexts", new Class<?>[0]);
+        pair = new TlsPair(contexts[0], contexts[1], false);
+        pair.handshake();
+    }
+
+    /**
+     * Copy the message into the buffer and out of it again.
+     *
+     * @return int the number of bytes received
+     */
+    @Benchmark
+    public int plainText() {
+        message.clear();
+        network.clear();
+        network.put(message);
+        network.flip();
+        received.clear();
+        received.put(network);
+        return received.position();
+    }
+
+    /**
+     * Encrypt the message on the client and decrypt it on the server.
+     *
+     * @return int the number of bytes received
+     * @throws SSLException if a record is invalid
+     */
+    @Benchmark
+    public int tls() throws SSLException {
+        message.clear();
+        return pair.send(message);
+    }
+}
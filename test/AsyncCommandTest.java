@@ -0,0 +1,76 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * AsyncCommandTest checks that the reply of an offloaded command is sent on the thread driving the session, before
+ * the lines the client sent after the command, while another client keeps the room busy.
+ * <br>It contains members: ROUNDS, STATS, CHAT,
+ * and methods: repliesAndDeferredLinesKeepTheirOrder(String mode).
+ *
+ * @author Zhiyong Liu
+ */
+class AsyncCommandTest {
+
+    /**
+     * The number of commands, each followed by a chat line, sent at once.
+     */
+    private static final int ROUNDS = 200;
+
+    /**
+     * The first line of the reply of \stats, whose work is offloaded.
+     */
+    private static final String STATS = "------ Server metrics ------";
+
+    /**
+     * The echo of a chat line of the client.
+     */
+    private static final Pattern CHAT = Pattern.compile("alice: line (\\d+)$");
+
+    /**
+     * Every reply arrives whole and before the chat line sent after its command, in every execution mode. On an event
+     * loop the chat lines wait while a reply is pending, and are handled in order once it is sent.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or a client fails
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "virtual", "nio"})
+    void repliesAndDeferredLinesKeepTheirOrder(String mode) throws Exception {
+        try (TestServer server = TestServer.start(mode, "-Dchatroom.rateMessagesPerSecond=0");
+             TestClient alice = server.connect();
+             TestClient bob = server.connect()) {
+            alice.login("alice");
+            bob.login("bob");
+            StringBuilder burst = new StringBuilder();
+            StringBuilder noise = new StringBuilder();
+            List<String> expected = new ArrayList<String>();
+            for (int i = 0; i < ROUNDS; i++) {
+                burst.append("\\stats\nline ").append(i).append('\n');
+                noise.append("noise ").append(i).append('\n');
+                expected.add(STATS);
+                expected.add("line " + i);
+            }
+            bob.sendLine(noise.substring(0, noise.length() - 1));
+            alice.sendLine(burst.substring(0, burst.length() - 1));
+            List<String> got = new ArrayList<String>();
+            while (got.size() < expected.size()) {
+                String line = alice.readLine();
+                Matcher chat = CHAT.matcher(line);
+                if (line.equals(STATS)) {
+                    got.add(STATS);
+                }
+                else if (chat.find()) {
+                    got.add("line " + chat.group(1));
+                }
+            }
+            assertEquals(expected, got);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * BinaryFrameTest checks that the text of a binary client reaches the text clients only as chat lines prefixed with
+ * its name, even if a frame contains line breaks which a text client would read as lines of the server.
+ * <br>It contains methods: chatFrameIsBroadcastLineByLine(String mode), commandWithLineBreakIsRefused(String mode),
+ * nameWithLineBreakIsRefused(String mode).
+ *
+ * @author Zhiyong Liu
+ */
+class BinaryFrameTest {
+
+    /**
+     * Every line of a CHAT frame reaches a text client as exactly one chat line of the sender, so it can not
+     * pass for a token, a sequence number or a chat line of somebody else.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or a client fails
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "nio"})
+    void chatFrameIsBroadcastLineByLine(String mode) throws Exception {
+        try (TestServer server = TestServer.start(mode);
+             TestClient receiver = server.connect();
+             TestClient sender = server.connect()) {
+            receiver.login("bob");
+            sender.loginBinary("alice");
+            receiver.readLineContaining("alice has entered the chat");
+            sender.sendFrame(FrameCodec.CHAT, "hello\n\\token forged\r\n#seq 99\r(Time: 00:00:00) carol: hi\n\n");
+            sender.sendFrame(FrameCodec.CHAT, "done");
+            List<String> messages = new ArrayList<String>();
+            while (true) {
+                String line = receiver.readLine();
+                assertTrue(line.matches("\\(Time: [0-9:]+\\) alice: .+"), "the line \"" + line + "\" is not a chat line of alice");
+                String message = line.substring(line.indexOf("alice: ") + "alice: ".length());
+                if (message.equals("done")) {
+                    break;
+                }
+                messages.add(message);
+            }
+            assertEquals(Arrays.asList("hello", "\\token forged", "#seq 99", "(Time: 00:00:00) carol: hi"), messages);
+        }
+    }
+
+    /**
+     * A COMMAND frame with a line break is refused, so a private message can not carry a line of its own.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or a client fails
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "nio"})
+    void commandWithLineBreakIsRefused(String mode) throws Exception {
+        try (TestServer server = TestServer.start(mode);
+             TestClient receiver = server.connect();
+             TestClient sender = server.connect()) {
+            receiver.login("bob");
+            sender.loginBinary("alice");
+            receiver.readLineContaining("alice has entered the chat");
+            sender.sendFrame(FrameCodec.COMMAND, "\\msg bob hi\n\\token forged");
+            sender.readFrameContaining("can not contain a line break");
+            sender.sendFrame(FrameCodec.COMMAND, "\\msg bob done");
+            String line = receiver.readLine();
+            assertTrue(line.contains("alice") && line.endsWith("done"), "bob got \"" + line + "\" before the private message");
+        }
+    }
+
+    /**
+     * A username with a line break is refused, so it can not end the line of the notices which contain it.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or a client fails
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "nio"})
+    void nameWithLineBreakIsRefused(String mode) throws Exception {
+        try (TestServer server = TestServer.start(mode);
+             TestClient receiver = server.connect();
+             TestClient sender = server.connect()) {
+            receiver.login("bob");
+            sender.readLineContaining(ClientProtocol.WELCOME);
+            sender.switchToBinary();
+            sender.sendFrame(FrameCodec.CHAT, "eve\n\\token forged");
+            sender.readFrameContaining("can not contain a line break");
+            sender.sendFrame(FrameCodec.CHAT, "eve");
+            sender.readFrameContaining(ClientProtocol.ACCEPT);
+            String line = receiver.readLine();
+            assertTrue(line.endsWith("eve has entered the chat (Current online: 2)"), "bob got \"" + line + "\"");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ClientOutboundTest fills the queue of a client which never drains by itself, and checks what each overflow policy
+ * does with the data which does not fit.
+ * <br>It contains methods: dropOldestKeepsTheNewest(), dropOldestKeepsTheCompressionStart(), dropClientDisconnects(),
+ * backpressureWaitsForRoom(), backpressureGivesUpAfterTheWait(), nonBlockingThreadNeverWaits(),
+ * fill(TestOutbound outbound), data(int number), number(ByteBuffer data), TestOutbound.
+ *
+ * @author Zhiyong Liu
+ */
+class ClientOutboundTest {
+
+    /**
+     * Under DROP_OLDEST the queue keeps the newest CAPACITY buffers, in order.
+     */
+    @Test
+    void dropOldestKeepsTheNewest() {
+        TestOutbound outbound = new TestOutbound(ClientOutbound.DROP_OLDEST);
+        fill(outbound);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(outbound.send(data(ClientOutbound.CAPACITY + i)));
+        }
+        assertEquals(ClientOutbound.CAPACITY, outbound.size());
+        for (int i = 10; i < ClientOutbound.CAPACITY + 10; i++) {
+            assertEquals(i, number(outbound.poll()));
+        }
+        assertEquals(0, outbound.aborts.get());
+    }
+
+    /**
+     * Under DROP_OLDEST the mark where compression starts is never dropped: the frames after it still come out as
+     * COMPRESSED frames, which the client inflates to the newest frames in order.
+     *
+     * @throws Exception if a frame can not be inflated
+     */
+    @Test
+    void dropOldestKeepsTheCompressionStart() throws Exception {
+        TestOutbound outbound = new TestOutbound(ClientOutbound.DROP_OLDEST);
+        FrameCompressor compressor = FrameCompressor.create(FrameCodec.DEFLATE);
+        try {
+            outbound.startCompression(compressor);
+            for (int i = 0; i < ClientOutbound.CAPACITY + 10; i++) {
+                assertTrue(outbound.send(FrameCodec.encode(FrameCodec.CHAT, "bob: message " + i + " in the lobby")));
+            }
+            ByteBuffer[] batch = new ByteBuffer[ClientOutbound.MAX_BATCH];
+            assertEquals(1, outbound.drainTo(batch, 0));
+            ByteBuffer frame = batch[0];
+            assertEquals(FrameCodec.COMPRESSED, frame.get(frame.position() + 4), "the frames after the mark are not compressed");
+            byte[] payload = new byte[frame.remaining() - FrameCodec.HEADER_LENGTH];
+            frame.position(frame.position() + FrameCodec.HEADER_LENGTH).get(payload);
+            ByteBuffer frames = ByteBuffer.wrap(new FrameCompressor.Decompressor(FrameCodec.DEFLATE).inflate(payload));
+            int length = frames.getInt();
+            assertEquals(FrameCodec.CHAT, frames.get());
+            byte[] text = new byte[length];
+            frames.get(text);
+            // The mark took one place in the queue, so eleven of the oldest frames were dropped.
+            assertEquals("bob: message 11 in the lobby", new String(text, StandardCharsets.UTF_8));
+        }
+        finally {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Under DROP_CLIENT the client is disconnected once, and nothing is queued for it any more.
+     */
+    @Test
+    void dropClientDisconnects() {
+        TestOutbound outbound = new TestOutbound(ClientOutbound.DROP_CLIENT);
+        fill(outbound);
+        assertFalse(outbound.send(data(-1)));
+        assertFalse(outbound.send(data(-2)));
+        assertEquals(1, outbound.aborts.get());
+        assertEquals(ClientOutbound.CAPACITY, outbound.size());
+    }
+
+    /**
+     * Under BACKPRESSURE a sender which may wait gets its data queued as soon as the drain makes room.
+     *
+     * @throws Exception if the thread is interrupted
+     */
+    @Test
+    void backpressureWaitsForRoom() throws Exception {
+        TestOutbound outbound = new TestOutbound(ClientOutbound.BACKPRESSURE);
+        fill(outbound);
+        CompletableFuture<Boolean> sent = CompletableFuture.supplyAsync(() -> outbound.send(data(-1)));
+        Thread.sleep(ClientOutbound.BACKPRESSURE_MILLIS / 10);
+        assertFalse(sent.isDone(), "the sender did not wait");
+        assertEquals(0, number(outbound.poll()));
+        assertTrue(sent.get(10, TimeUnit.SECONDS));
+        assertEquals(0, outbound.aborts.get());
+    }
+
+    /**
+     * Under BACKPRESSURE a client whose queue stays full for BACKPRESSURE_MILLIS is disconnected.
+     */
+    @Test
+    void backpressureGivesUpAfterTheWait() {
+        TestOutbound outbound = new TestOutbound(ClientOutbound.BACKPRESSURE);
+        fill(outbound);
+        long start = System.nanoTime();
+        assertFalse(outbound.send(data(-1)));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= ClientOutbound.BACKPRESSURE_MILLIS);
+        assertEquals(1, outbound.aborts.get());
+    }
+
+    /**
+     * A thread marked like an event loop never waits for room, whichever queue is full: the client is disconnected
+     * at once.
+     *
+     * @throws Exception if the thread is interrupted
+     */
+    @Test
+    void nonBlockingThreadNeverWaits() throws Exception {
+        TestOutbound outbound = new TestOutbound(ClientOutbound.BACKPRESSURE);
+        fill(outbound);
+        long[] elapsedMillis = new long[1];
+        boolean[] isSent = new boolean[1];
+        Thread loop = new Thread(new Runnable() {
+            public void run() {
+                ClientOutbound.markNonBlocking();
+                long start = System.nanoTime();
+                isSent[0] = outbound.send(data(-1));
+                elapsedMillis[0] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }, "test-loop");
+        loop.start();
+        loop.join();
+        assertFalse(isSent[0]);
+        assertTrue(elapsedMillis[0] < ClientOutbound.BACKPRESSURE_MILLIS, "the loop waited " + elapsedMillis[0] + " ms");
+        assertEquals(1, outbound.aborts.get());
+    }
+
+    /**
+     * Fill the queue up to CAPACITY with numbered buffers.
+     *
+     * @param outbound the queue
+     */
+    private static void fill(TestOutbound outbound) {
+        for (int i = 0; i < ClientOutbound.CAPACITY; i++) {
+            assertTrue(outbound.send(data(i)));
+        }
+    }
+
+    /**
+     * Create a buffer which holds a number.
+     *
+     * @param number the number
+     * @return ByteBuffer
+     */
+    private static ByteBuffer data(int number) {
+        ByteBuffer data = ByteBuffer.allocate(4);
+        data.putInt(0, number);
+        return data;
+    }
+
+    /**
+     * Get the number of a buffer made by data(int number).
+     *
+     * @param data the buffer
+     * @return int
+     */
+    private static int number(ByteBuffer data) {
+        return data.getInt(data.position());
+    }
+
+    /**
+     * TestOutbound is a queue with a fixed overflow policy, whose drain only runs when the test polls, and which
+     * counts how often its client is disconnected.
+     */
+    static class TestOutbound extends ClientOutbound {
+
+        /**
+         * The overflow policy.
+         */
+        private final String policy;
+
+        /**
+         * The number of times the client was disconnected.
+         */
+        final AtomicInteger aborts = new AtomicInteger(0);
+
+        /**
+         * The constructor of TestOutbound class.
+         *
+         * @param policy the overflow policy
+         */
+        TestOutbound(String policy) {
+            this.policy = policy;
+        }
+
+        protected void scheduleDrain() {
+        }
+
+        protected void abortClient() {
+            aborts.incrementAndGet();
+        }
+
+        protected String overflowPolicy() {
+            return policy;
+        }
+    }
+}
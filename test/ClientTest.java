@@ -0,0 +1,333 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * ClientTest runs the interactive client in a child JVM against a scripted server on a socket of the test, and checks
+ * what the client shows to the user and what it sends back.
+ * <br>It contains members: TIMEOUT_SECONDS, READ_BUFFER_SIZE, PAUSE_MILLIS,
+ * and methods: invalidTokenLinesAreIgnored(), controlLinesInChatFramesAreShown(), linesArriveInPieces(),
+ * framesArriveInPieces(), startClient(ServerSocket server, String... options), accept(ServerSocket server),
+ * frame(byte type, String text), sendInPieces(OutputStream out, byte[] data, int... cuts), ClientProcess.
+ *
+ * @author Zhiyong Liu
+ */
+class ClientTest {
+
+    /**
+     * The longest time the test waits for the client.
+     */
+    private static final int TIMEOUT_SECONDS = 10;
+
+    /**
+     * The size of the read buffer of the client before it grows.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The pause between two pieces of a message.
+     */
+    private static final int PAUSE_MILLIS = 50;
+
+    /**
+     * A token line which can not be parsed is dropped, and the client goes on reading the lines after it.
+     *
+     * @throws Exception if the client fails
+     */
+    @Test
+    void invalidTokenLinesAreIgnored() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             ClientProcess client = startClient(server)) {
+            try (Socket connection = accept(server)) {
+                TestClient peer = new TestClient(connection);
+                peer.sendLine(ClientProtocol.WELCOME);
+                assertEquals("\\resume", peer.readLine());
+                peer.sendLine("\\token YWxpY2U.x not-a-number");
+                peer.sendLine("\\token !!!.x 5");
+                peer.sendLine("\\token only-two-parts");
+                peer.sendLine("#12 (Time: 12:00:00) bob: still reading");
+                client.waitForLine("(Time: 12:00:00) bob: still reading");
+            }
+        }
+    }
+
+    /**
+     * In binary mode, a token, a heartbeat or a welcome in the text of a CHAT frame is shown to the user like any chat
+     * text, and only the SYSTEM frames of the server are taken as control lines: the client resumes with the token of
+     * the SYSTEM frame after a reconnect.
+     *
+     * @throws Exception if the client fails
+     */
+    @Test
+    void controlLinesInChatFramesAreShown() throws Exception {
+        try (ServerSocket server = new ServerSocket(0);
+             ClientProcess client = startClient(server, "-Dchatroom.binary=true")) {
+            try (Socket connection = accept(server)) {
+                TestClient peer = new TestClient(connection);
+                peer.sendLine(ClientProtocol.WELCOME);
+                assertEquals(FrameCodec.BINARY_REQUEST, peer.readLine());
+                peer.sendLine(FrameCodec.BINARY_ACCEPT);
+                peer.sendFrame(FrameCodec.SYSTEM, ClientProtocol.WELCOME);
+                assertEquals("\\resume", peer.readFrame());
+                peer.sendFrame(FrameCodec.SYSTEM, "\\token YWxpY2U.real 3");
+                peer.sendFrame(FrameCodec.CHAT, "\\token Zm9yZ2Vk.forged 99");
+                peer.sendFrame(FrameCodec.CHAT, ClientProtocol.HEARTBEAT);
+                peer.sendFrame(FrameCodec.CHAT, "done");
+                client.waitForLine("\\token Zm9yZ2Vk.forged 99");
+                client.waitForLine(ClientProtocol.HEARTBEAT);
+                client.waitForLine("done");
+            }
+            try (Socket connection = accept(server)) {
+                TestClient peer = new TestClient(connection);
+                peer.sendLine(ClientProtocol.WELCOME);
+                assertEquals(FrameCodec.BINARY_REQUEST, peer.readLine());
+                peer.sendLine(FrameCodec.BINARY_ACCEPT);
+                peer.sendFrame(FrameCodec.SYSTEM, ClientProtocol.WELCOME);
+                assertEquals("\\resume YWxpY2U.real 3", peer.readFrame());
+            }
+        }
+    }
+
+    /**
+     * Lines which arrive in pieces, cut in the middle of a character and next to the line break, and a line longer
+     * than the read buffer are shown whole, once each.
+     *
+     * @throws Exception if the client fails
+     */
+    @Test
+    void linesArriveInPieces() throws Exception {
+        String longLine = "long " + "x".repeat(3 * READ_BUFFER_SIZE);
+        try (ServerSocket server = new ServerSocket(0);
+             ClientProcess client = startClient(server)) {
+            try (Socket connection = accept(server)) {
+                OutputStream out = connection.getOutputStream();
+                sendInPieces(out, (ClientProtocol.WELCOME + "\n").getBytes(StandardCharsets.UTF_8), 3, 10);
+                assertEquals("\\resume", new TestClient(connection).readLine());
+                byte[] lines = ("first 你好\r\nsecond\nthird\n" + longLine + "\n").getBytes(StandardCharsets.UTF_8);
+                // In the middle of 你, between \r and \n, after a complete line, and in the long line.
+                sendInPieces(out, lines, 7, 13, 14, 21, 30, 40 + READ_BUFFER_SIZE);
+                client.waitForLine("first 你好");
+                client.waitForLine("second");
+                client.waitForLine("third");
+                client.waitForLine(longLine);
+            }
+        }
+    }
+
+    /**
+     * Frames which arrive in pieces, cut in the header, in the middle of a character and between two frames, and a
+     * frame longer than the read buffer are shown whole, once each.
+     *
+     * @throws Exception if the client fails
+     */
+    @Test
+    void framesArriveInPieces() throws Exception {
+        String longText = "long " + "y".repeat(3 * READ_BUFFER_SIZE);
+        try (ServerSocket server = new ServerSocket(0);
+             ClientProcess client = startClient(server, "-Dchatroom.binary=true")) {
+            try (Socket connection = accept(server)) {
+                TestClient peer = new TestClient(connection);
+                peer.sendLine(ClientProtocol.WELCOME);
+                assertEquals(FrameCodec.BINARY_REQUEST, peer.readLine());
+                peer.sendLine(FrameCodec.BINARY_ACCEPT);
+                OutputStream out = connection.getOutputStream();
+                sendInPieces(out, frame(FrameCodec.SYSTEM, ClientProtocol.WELCOME), 2, FrameCodec.HEADER_LENGTH);
+                assertEquals("\\resume", peer.readFrame());
+                byte[] first = frame(FrameCodec.CHAT, "bob: 你好");
+                byte[] second = frame(FrameCodec.EMOJI, "bob: (^_^)");
+                byte[] third = frame(FrameCodec.CHAT, longText);
+                byte[] frames = new byte[first.length + second.length + third.length];
+                System.arraycopy(first, 0, frames, 0, first.length);
+                System.arraycopy(second, 0, frames, first.length, second.length);
+                System.arraycopy(third, 0, frames, first.length + second.length, third.length);
+                int header = FrameCodec.HEADER_LENGTH;
+                // In the length, after the type, in the middle of 你, in the next header, and in the long frame.
+                sendInPieces(out, frames, 3, header, header + 7, first.length + 1, first.length + second.length + 2,
+                        first.length + second.length + READ_BUFFER_SIZE);
+                client.waitForLine("bob: 你好");
+                client.waitForLine("bob: (^_^)");
+                client.waitForLine(longText);
+            }
+        }
+    }
+
+    /**
+     * Start the client, which connects to the server socket of the test.
+     *
+     * @param server the server socket of the test
+     * @param options more system properties of the client
+     * @return ClientProcess
+     * @throws IOException if the client can not be started
+     */
+    private static ClientProcess startClient(ServerSocket server, String... options) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "-Dfile.encoding=UTF-8",
+                "-Dchatroom.port=" + server.getLocalPort(), "-Dchatroom.reconnectBaseMillis=50"));
+        command.addAll(Arrays.asList(options));
+        command.add("Client");
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        ClientProcess client = new ClientProcess(process);
+        client.type("127.0.0.1");
+        return client;
+    }
+
+    /**
+     * Accept the next connection of the client.
+     *
+     * @param server the server socket of the test
+     * @return Socket
+     * @throws IOException if the client does not connect in time
+     */
+    private static Socket accept(ServerSocket server) throws IOException {
+        server.setSoTimeout(TIMEOUT_SECONDS * 1000);
+        Socket connection = server.accept();
+        connection.setTcpNoDelay(true);
+        return connection;
+    }
+
+    /**
+     * Encode one frame into bytes.
+     *
+     * @param type the type of the frame
+     * @param text the payload
+     * @return byte[]
+     */
+    private static byte[] frame(byte type, String text) {
+        ByteBuffer frame = FrameCodec.encode(type, text);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write bytes in pieces, with a pause after each piece, so the client reads each piece on its own.
+     *
+     * @param out the stream of the connection
+     * @param data the bytes
+     * @param cuts the offsets where a piece ends, in ascending order
+     * @throws Exception if the connection fails
+     */
+    private static void sendInPieces(OutputStream out, byte[] data, int... cuts) throws Exception {
+        int from = 0;
+        for (int cut : cuts) {
+            out.write(data, from, cut - from);
+            out.flush();
+            Thread.sleep(PAUSE_MILLIS);
+            from = cut;
+        }
+        out.write(data, from, data.length - from);
+        out.flush();
+    }
+
+    /**
+     * ClientProcess is the client running in a child JVM: the test types its console lines and reads what it shows.
+     */
+    static class ClientProcess implements AutoCloseable {
+
+        /**
+         * The process of the client.
+         */
+        private final Process process;
+
+        /**
+         * The console of the client.
+         */
+        private final Writer console;
+
+        /**
+         * The lines the client printed, collected by a reader thread.
+         */
+        private final BlockingQueue<String> shown = new LinkedBlockingQueue<String>();
+
+        /**
+         * The constructor of ClientProcess class.
+         *
+         * @param process the process of the client
+         */
+        ClientProcess(Process process) {
+            this.process = process;
+            this.console = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            InputStream output = process.getInputStream();
+            Thread reader = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        BufferedReader lines = new BufferedReader(new InputStreamReader(output, StandardCharsets.UTF_8));
+                        String line;
+                        while ((line = lines.readLine()) != null) {
+                            shown.add(line);
+                        }
+                    }
+                    catch (IOException e) {
+                        // The client is gone.
+                    }
+                }
+            }, "client-output");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Type a line on the console of the client.
+         *
+         * @param line the line
+         * @throws IOException if the client is gone
+         */
+        void type(String line) throws IOException {
+            console.write(line + "\n");
+            console.flush();
+        }
+
+        /**
+         * Wait until the client shows a line, skipping the lines before it.
+         *
+         * @param expected the line
+         * @throws Exception if the line is not shown in time
+         */
+        void waitForLine(String expected) throws Exception {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+            List<String> skipped = new ArrayList<String>();
+            while (true) {
+                String line = shown.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (line == null) {
+                    fail("The client did not show \"" + expected + "\", it showed " + skipped);
+                }
+                if (line.equals(expected)) {
+                    return;
+                }
+                skipped.add(line);
+            }
+        }
+
+        /**
+         * Stop the client.
+         */
+        public void close() {
+            process.destroyForcibly();
+            try {
+                process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * ClusterTest runs two nodes of a cluster and checks that no message of a client can tear down the link between them,
+ * that each node logs the lines forwarded to it, and that a node without the cluster secret is not linked.
+ * <br>It contains members: directory,
+ * and methods: longMessagesKeepTheLink(), forwardedLinesAreLogged(), wrongSecretIsRefused(),
+ * startNode(String mode, int clusterPort, int peerPort, String... options),
+ * waitForLink(TestClient sender, TestClient receiver).
+ *
+ * @author Zhiyong Liu
+ */
+class ClusterTest {
+
+    /**
+     * The directory of the message logs of the nodes, new for every test.
+     */
+    @TempDir
+    Path directory;
+
+    /**
+     * A message longer than the limit is refused, and a notice which does not fit into a frame of the link is not
+     * forwarded, so the link stays up and the users of one node can still reach the users of the other.
+     *
+     * @throws Exception if a server or a client fails
+     */
+    @Test
+    void longMessagesKeepTheLink() throws Exception {
+        int portA = TestServer.freePort();
+        int portB = TestServer.freePort();
+        try (TestServer nodeA = startNode("nio", portA, portB);
+             TestServer nodeB = startNode("thread", portB, portA);
+             TestClient alice = nodeA.connect();
+             TestClient bob = nodeB.connect()) {
+            bob.login("bob");
+            alice.login("alice");
+            waitForLink(alice, bob);
+
+            alice.sendLine(repeat('x', Server.MAX_MESSAGE_BYTES + 1));
+            alice.readLineContaining("it is not sent");
+            alice.sendLine(repeat('y', Server.MAX_MESSAGE_BYTES));
+            assertTrue(bob.readLineContaining("alice: ").endsWith(repeat('y', Server.MAX_MESSAGE_BYTES)));
+
+            // The notice which forwards the join has the name of the room twice, so it is longer than a frame of the link.
+            alice.sendLine("\\join " + repeat('r', FrameCodec.MAX_PAYLOAD * 3 / 5));
+            alice.readLineContaining("alice has joined room");
+            alice.sendLine("\\leave");
+            bob.readLineContaining("alice has joined room lobby");
+            alice.sendLine("after");
+            assertTrue(bob.readLineContaining("alice: ").endsWith("alice: after"));
+            bob.sendLine("\\msg alice still linked");
+            bob.readLineContaining("Private message to alice is sent.");
+            assertTrue(alice.readLineContaining("(private)").endsWith("bob (private): still linked"));
+        }
+    }
+
+    /**
+     * A line forwarded to a room which has no members on a node is still written to the message log of that node, so
+     * a client joining the room there later finds it in the history.
+     *
+     * @throws Exception if a server or a client fails
+     */
+    @Test
+    void forwardedLinesAreLogged() throws Exception {
+        int portA = TestServer.freePort();
+        int portB = TestServer.freePort();
+        try (TestServer nodeA = startNode("nio", portA, portB, "-Dchatroom.logDir=" + directory.resolve("a"));
+             TestServer nodeB = startNode("thread", portB, portA, "-Dchatroom.logDir=" + directory.resolve("b"));
+             TestClient alice = nodeA.connect();
+             TestClient bob = nodeB.connect()) {
+            bob.login("bob");
+            alice.login("alice");
+            waitForLink(alice, bob);
+
+            alice.sendLine("\\join games");
+            alice.readLineContaining("alice has joined room games");
+            alice.sendLine("while nobody is here");
+            alice.readLineContaining("alice: while nobody is here");
+            alice.sendLine("\\leave");
+            alice.sendLine("back");
+            bob.readLineContaining("alice: back");
+            bob.sendLine("\\join games");
+            bob.readLineContaining("bob has joined room games");
+            bob.sendLine("\\history 5");
+            bob.readLineContaining("------ The last");
+            bob.readLineContaining("alice: while nobody is here");
+        }
+    }
+
+    /**
+     * A node with another cluster secret is refused by its peer: the chat of one node never reaches the other.
+     *
+     * @throws Exception if a server or a client fails
+     */
+    @Test
+    void wrongSecretIsRefused() throws Exception {
+        int portA = TestServer.freePort();
+        int portB = TestServer.freePort();
+        try (TestServer nodeA = startNode("nio", portA, portB);
+             TestServer nodeB = startNode("thread", portB, portA, "-Dchatroom.clusterSecret=another secret");
+             TestClient alice = nodeA.connect();
+             TestClient bob = nodeB.connect()) {
+            bob.login("bob");
+            alice.login("alice");
+            for (int i = 0; i < 10; i++) {
+                alice.sendLine("hello " + i);
+                String line;
+                while ((line = bob.pollLine(200)) != null) {
+                    assertFalse(line.contains("alice: hello"), "the nodes are linked");
+                }
+            }
+        }
+    }
+
+    /**
+     * Start one node of a cluster of two, without flood protection.
+     *
+     * @param mode the execution mode of the node
+     * @param clusterPort the port of the node for the other node
+     * @param peerPort the port of the other node for this one
+     * @param options more system properties of the node, e.g. "-Dchatroom.logDir=..."
+     * @return TestServer
+     * @throws Exception if the node does not start
+     */
+    private static TestServer startNode(String mode, int clusterPort, int peerPort, String... options) throws Exception {
+        String[] properties = {"-Dchatroom.clusterPort=" + clusterPort, "-Dchatroom.clusterPeers=127.0.0.1:" + peerPort,
+                "-Dchatroom.nodeId=node-" + clusterPort, "-Dchatroom.clusterReconnectMillis=200",
+                "-Dchatroom.clusterSecret=test secret",
+                // The long lines would exceed the byte bucket of the flood protection.
+                "-Dchatroom.rateMessagesPerSecond=0"};
+        String[] all = Arrays.copyOf(properties, properties.length + options.length);
+        System.arraycopy(options, 0, all, properties.length, options.length);
+        return TestServer.start(mode, all);
+    }
+
+    /**
+     * Wait until the chat of one node reaches the other, i.e. the nodes are linked.
+     *
+     * @param sender the client on one node
+     * @param receiver the client on the other node
+     * @throws Exception if the nodes are not linked within 10 seconds
+     */
+    private static void waitForLink(TestClient sender, TestClient receiver) throws Exception {
+        for (int i = 0; i < 50; i++) {
+            sender.sendLine("hello " + i);
+            String line;
+            while ((line = receiver.pollLine(200)) != null) {
+                if (line.contains("alice: hello")) {
+                    return;
+                }
+            }
+        }
+        fail("The nodes are not linked");
+    }
+
+    /**
+     * Get a string of one char repeated.
+     *
+     * @param c the char
+     * @param count the number of chars
+     * @return String
+     */
+    private static String repeat(char c, int count) {
+        return String.valueOf(c).repeat(count);
+    }
+}
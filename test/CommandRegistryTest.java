@@ -0,0 +1,80 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * CommandRegistryTest checks that the registry finds the commands and lists their usage in order, and that offloaded
+ * work runs on the command threads and reports its failure to the reply.
+ * <br>It contains methods: commandsAreFoundAndListedInOrder(), offloadRunsOffTheSessionThread(),
+ * offloadReportsTheFailure(), command(String name).
+ *
+ * @author Zhiyong Liu
+ */
+class CommandRegistryTest {
+
+    /**
+     * A command is found by its name, registering it again replaces it, and \help lists the usages in the order the
+     * commands were first registered.
+     */
+    @Test
+    void commandsAreFoundAndListedInOrder() {
+        CommandRegistry<StringBuilder> registry = new CommandRegistry<StringBuilder>();
+        registry.register("\\a", "\\a: first", command("a"));
+        registry.register("\\b", "\\b: second", command("b"));
+        CommandRegistry.Command<StringBuilder> replacement = command("c");
+        registry.register("\\a", "\\a: replaced", replacement);
+        assertSame(replacement, registry.lookup("\\a"));
+        assertNull(registry.lookup("\\c"));
+        assertEquals(List.of("\\a: replaced", "\\b: second"), List.copyOf(registry.help()));
+    }
+
+    /**
+     * Offloaded work runs on a command thread, not on the thread driving the session.
+     *
+     * @throws Exception if the work does not complete in time
+     */
+    @Test
+    void offloadRunsOffTheSessionThread() throws Exception {
+        CommandRegistry<StringBuilder> registry = new CommandRegistry<StringBuilder>();
+        Thread session = Thread.currentThread();
+        Thread worker = registry.offload(() -> Thread.currentThread()).get(10, TimeUnit.SECONDS);
+        assertNotSame(session, worker);
+        assertTrue(worker.getName().startsWith("command-"), worker.getName());
+        assertTrue(worker.isDaemon(), "a command thread would keep the server alive");
+    }
+
+    /**
+     * Work which throws completes the reply with its exception, so the session can tell the client.
+     */
+    @Test
+    void offloadReportsTheFailure() {
+        CommandRegistry<StringBuilder> registry = new CommandRegistry<StringBuilder>();
+        CompletableFuture<String> reply = registry.offload(() -> {
+            throw new IOException("This exception is expected by the test.");
+        });
+        ExecutionException e = assertThrows(ExecutionException.class, () -> reply.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+
+    /**
+     * Create a command which appends its name to the session.
+     *
+     * @param name the name
+     * @return Command
+     */
+    private static CommandRegistry.Command<StringBuilder> command(String name) {
+        return new CommandRegistry.Command<StringBuilder>() {
+            public CompletableFuture<Consumer<StringBuilder>> execute(StringBuilder session, String argument) {
+                session.append(name);
+                return CommandRegistry.done();
+            }
+        };
+    }
+}
@@ -0,0 +1,189 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * FrameCompressorTest compresses batches of frames like a drain of an outbound queue does, and checks that the
+ * Decompressor of the client gets exactly the same frames back, with one stream per client and with shared frames.
+ * <br>It contains members: LINES,
+ * and methods: streamRoundTrip(), streamGetsSmallerWithRepeatedWords(), smallBatchIsNotCompressed(),
+ * sharedFramesStandAlone(), sharedFramesAreKeptInABatch(), frames(String room, int from, int count), bytes(ByteBuffer... buffers),
+ * inflate(FrameCompressor.Decompressor decompressor, ByteBuffer compressed).
+ *
+ * @author Zhiyong Liu
+ */
+class FrameCompressorTest {
+
+    /**
+     * The number of chat lines in one batch.
+     */
+    private static final int LINES = 20;
+
+    /**
+     * Batches compressed into one deflate stream come back unchanged, one COMPRESSED frame for each batch.
+     *
+     * @throws Exception if a frame can not be inflated
+     */
+    @Test
+    void streamRoundTrip() throws Exception {
+        FrameCompressor compressor = FrameCompressor.create(FrameCodec.DEFLATE);
+        FrameCompressor.Decompressor decompressor = new FrameCompressor.Decompressor(FrameCodec.DEFLATE);
+        try {
+            for (int round = 0; round < 5; round++) {
+                ByteBuffer[] batch = frames("games", round * LINES, LINES);
+                byte[] expected = bytes(batch);
+                assertEquals(1, compressor.compress(batch, 0, batch.length));
+                assertEquals(FrameCodec.COMPRESSED, batch[0].get(batch[0].position() + 4));
+                assertTrue(batch[0].remaining() < expected.length, "the batch did not get smaller");
+                assertArrayEquals(expected, inflate(decompressor, batch[0]));
+            }
+        }
+        finally {
+            compressor.end();
+        }
+    }
+
+    /**
+     * A batch the stream has seen before compresses better the second time, which is what the stream is for.
+     *
+     * @throws Exception if a frame can not be inflated
+     */
+    @Test
+    void streamGetsSmallerWithRepeatedWords() throws Exception {
+        FrameCompressor compressor = FrameCompressor.create(FrameCodec.DEFLATE);
+        FrameCompressor.Decompressor decompressor = new FrameCompressor.Decompressor(FrameCodec.DEFLATE);
+        try {
+            ByteBuffer[] first = frames("music", 0, LINES);
+            ByteBuffer[] second = frames("music", 0, LINES);
+            byte[] expected = bytes(second);
+            compressor.compress(first, 0, first.length);
+            compressor.compress(second, 0, second.length);
+            assertTrue(second[0].remaining() < first[0].remaining() / 2, "the stream does not use the earlier frames");
+            inflate(decompressor, first[0]);
+            assertArrayEquals(expected, inflate(decompressor, second[0]));
+        }
+        finally {
+            compressor.end();
+        }
+    }
+
+    /**
+     * Less than THRESHOLD bytes are left as they are, in both modes.
+     */
+    @Test
+    void smallBatchIsNotCompressed() {
+        ByteBuffer frame = FrameCodec.encode(FrameCodec.CHAT, "hi");
+        assertTrue(frame.remaining() < FrameCompressor.THRESHOLD);
+        FrameCompressor compressor = FrameCompressor.create(FrameCodec.DEFLATE);
+        try {
+            ByteBuffer[] batch = {frame};
+            assertEquals(1, compressor.compress(batch, 0, 1));
+            assertSame(frame, batch[0]);
+        }
+        finally {
+            compressor.end();
+        }
+        assertSame(frame, FrameCompressor.compressShared(frame));
+    }
+
+    /**
+     * A shared frame stands alone: one decompressor inflates shared frames in any order, and the frame which was
+     * compressed is not modified, so it can still be sent to the clients without compression.
+     *
+     * @throws Exception if a frame can not be inflated
+     */
+    @Test
+    void sharedFramesStandAlone() throws Exception {
+        ByteBuffer first = ByteBuffer.wrap(bytes(frames("news", 0, LINES)));
+        ByteBuffer second = ByteBuffer.wrap(bytes(frames("news", LINES, LINES)));
+        ByteBuffer compressedFirst = FrameCompressor.compressShared(first);
+        ByteBuffer compressedSecond = FrameCompressor.compressShared(second);
+        assertEquals(FrameCodec.COMPRESSED, compressedFirst.get(compressedFirst.position() + 4));
+        assertEquals(0, first.position());
+        FrameCompressor.Decompressor decompressor = new FrameCompressor.Decompressor(FrameCodec.DEFLATE_SHARED);
+        assertArrayEquals(bytes(second), inflate(decompressor, compressedSecond));
+        assertArrayEquals(bytes(first), inflate(decompressor, compressedFirst));
+        assertArrayEquals(bytes(first), inflate(decompressor, FrameCompressor.compressShared(first)));
+    }
+
+    /**
+     * In a drain of a DEFLATE_SHARED client, a broadcast which was compressed once for everybody is sent as it is,
+     * and the frames around it are compressed on their own.
+     *
+     * @throws Exception if a frame can not be inflated
+     */
+    @Test
+    void sharedFramesAreKeptInABatch() throws Exception {
+        FrameCompressor compressor = FrameCompressor.create(FrameCodec.DEFLATE_SHARED);
+        ByteBuffer[] before = frames("lobby", 0, LINES);
+        ByteBuffer broadcast = FrameCompressor.compressShared(ByteBuffer.wrap(bytes(frames("lobby", LINES, LINES))));
+        ByteBuffer[] after = frames("lobby", 2 * LINES, LINES);
+        ByteBuffer[] batch = new ByteBuffer[2 * LINES + 1];
+        System.arraycopy(before, 0, batch, 0, LINES);
+        batch[LINES] = broadcast;
+        System.arraycopy(after, 0, batch, LINES + 1, LINES);
+        byte[] expectedBefore = bytes(before);
+        byte[] expectedBroadcast = bytes(frames("lobby", LINES, LINES));
+        byte[] expectedAfter = bytes(after);
+        assertEquals(3, compressor.compress(batch, 0, batch.length));
+        assertSame(broadcast, batch[1]);
+        assertNull(batch[3]);
+        FrameCompressor.Decompressor decompressor = new FrameCompressor.Decompressor(FrameCodec.DEFLATE_SHARED);
+        assertArrayEquals(expectedBefore, inflate(decompressor, batch[0]));
+        assertArrayEquals(expectedBroadcast, inflate(decompressor, batch[1]));
+        assertArrayEquals(expectedAfter, inflate(decompressor, batch[2]));
+    }
+
+    /**
+     * Create chat frames like the broadcasts of a room.
+     *
+     * @param room the name of the room, which is part of the text
+     * @param from the number of the first message
+     * @param count the number of frames
+     * @return ByteBuffer[] the frames
+     */
+    private static ByteBuffer[] frames(String room, int from, int count) {
+        ByteBuffer[] frames = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = FrameCodec.encode(FrameCodec.CHAT, "(Time: 12:00:" + (10 + i % 50) + ") user" + (from + i) % 7
+                    + ": message " + (from + i) + " in " + room + " 你好");
+        }
+        return frames;
+    }
+
+    /**
+     * Get the bytes of buffers one after another, without moving their positions.
+     *
+     * @param buffers the buffers
+     * @return byte[]
+     */
+    private static byte[] bytes(ByteBuffer... buffers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer data = buffer.duplicate();
+            byte[] copy = new byte[data.remaining()];
+            data.get(copy);
+            out.write(copy, 0, copy.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflate a COMPRESSED frame like the client does.
+     *
+     * @param decompressor the decompressor of the client
+     * @param compressed the COMPRESSED frame
+     * @return byte[] the frames in it
+     * @throws Exception if the frame can not be inflated
+     */
+    private static byte[] inflate(FrameCompressor.Decompressor decompressor, ByteBuffer compressed) throws Exception {
+        byte[] frame = bytes(compressed);
+        assertEquals(frame.length - FrameCodec.HEADER_LENGTH, ByteBuffer.wrap(frame).getInt(), "the length in the header is wrong");
+        byte[] payload = new byte[frame.length - FrameCodec.HEADER_LENGTH];
+        System.arraycopy(frame, FrameCodec.HEADER_LENGTH, payload, 0, payload.length);
+        return decompressor.inflate(payload);
+    }
+}
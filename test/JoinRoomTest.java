@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * JoinRoomTest checks that a client which enters a busy room gets every line of the room once and in order: the
+ * newest ones as recent messages, and the rest live, also when a line is broadcast while it joins.
+ * <br>It contains members: LINES, LINES_PER_VISIT, CHAT,
+ * and methods: joinMissesNoLineOfABusyRoom(String mode).
+ *
+ * @author Zhiyong Liu
+ */
+class JoinRoomTest {
+
+    /**
+     * The number of lines sent to the room at once.
+     */
+    private static final int LINES = 5000;
+
+    /**
+     * The number of lines the client reads in the room before it goes back to the lobby.
+     */
+    private static final int LINES_PER_VISIT = 30;
+
+    /**
+     * A line of the busy room.
+     */
+    private static final Pattern CHAT = Pattern.compile("carol: line (\\d+)$");
+
+    /**
+     * The client goes in and out of a room while lines are broadcast to it. In every visit the lines go up by one,
+     * from the recent messages to the live lines, without a gap and without a line twice.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or a client fails
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "virtual", "nio"})
+    void joinMissesNoLineOfABusyRoom(String mode) throws Exception {
+        // The queue of the client holds the whole burst, so no line is dropped because the client reads slowly.
+        try (TestServer server = TestServer.start(mode, "-Dchatroom.rateMessagesPerSecond=0",
+                "-Dchatroom.outboundCapacity=" + 2 * LINES);
+             TestClient carol = server.connect();
+             TestClient alice = server.connect()) {
+            carol.login("carol");
+            alice.login("alice");
+            carol.sendLine("\\join games");
+            carol.readLineContaining("carol has joined room games");
+            StringBuilder burst = new StringBuilder();
+            for (int i = 0; i < LINES; i++) {
+                burst.append("line ").append(i).append('\n');
+            }
+            // The end of the burst is seen in the room and in the lobby alike.
+            burst.append("\\join lobby");
+            carol.sendLine(burst.toString());
+            alice.sendLine("\\join games");
+            int last = -1;
+            int visitLines = 0;
+            while (true) {
+                String line = alice.readLine();
+                if (line.contains("carol has left room games") || line.contains("carol has joined room lobby")) {
+                    break;
+                }
+                if (line.startsWith("------ Recent messages in games")) {
+                    last = -1;
+                    visitLines = 0;
+                    continue;
+                }
+                Matcher chat = CHAT.matcher(line);
+                if (!chat.find()) {
+                    continue;
+                }
+                int number = Integer.parseInt(chat.group(1));
+                if (last >= 0) {
+                    assertEquals(last + 1, number, "a line of the room was lost or sent twice");
+                }
+                last = number;
+                visitLines++;
+                if (visitLines == LINES_PER_VISIT) {
+                    alice.sendLine("\\join lobby");
+                    alice.sendLine("\\join games");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * MessageLogTest checks that MessageLog.since() replays exactly the messages a resuming client missed: those of its
+ * room and those to everyone, after its sequence number, in order, also after a restart and across segments.
+ * <br>It contains members: directory,
+ * and methods: sinceReturnsTheNewerMessagesOfTheRoom(), sinceKeepsTheNewest(), sequencesGoOnAfterReopen(),
+ * sinceReadsAcrossSegments(), longRoomNameIsNotLogged(), append(MessageLog log, String room, String text),
+ * texts(List messages).
+ *
+ * @author Zhiyong Liu
+ */
+class MessageLogTest {
+
+    /**
+     * The directory of the log, new for every test.
+     */
+    @TempDir
+    Path directory;
+
+    /**
+     * Only the messages after the sequence number are replayed, with the messages to everyone and without the
+     * messages of the other rooms.
+     *
+     * @throws Exception if the log fails
+     */
+    @Test
+    void sinceReturnsTheNewerMessagesOfTheRoom() throws Exception {
+        MessageLog log = MessageLog.open(directory);
+        try {
+            long first = append(log, "games", "games 1");
+            append(log, "music", "music 1");
+            long everyone = append(log, "", "to everyone");
+            long last = append(log, "games", "games 2");
+            assertEquals(last, log.end());
+            List<MessageLog.Message> missed = log.since("games", first, 10);
+            assertEquals(List.of("to everyone", "games 2"), texts(missed));
+            assertEquals(everyone, missed.get(0).sequence);
+            assertEquals(last, missed.get(1).sequence);
+            assertEquals(List.of("games 1", "to everyone", "games 2"), texts(log.since("games", 0, 10)));
+            assertTrue(log.since("games", last, 10).isEmpty());
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    /**
+     * When more messages were missed than asked for, the newest ones are replayed.
+     *
+     * @throws Exception if the log fails
+     */
+    @Test
+    void sinceKeepsTheNewest() throws Exception {
+        MessageLog log = MessageLog.open(directory);
+        try {
+            for (int i = 0; i < 10; i++) {
+                append(log, "games", "message " + i);
+            }
+            assertEquals(List.of("message 7", "message 8", "message 9"), texts(log.since("games", 0, 3)));
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    /**
+     * A restarted server goes on with the sequence numbers, so a token issued before the restart still finds the
+     * messages after it.
+     *
+     * @throws Exception if the log fails
+     */
+    @Test
+    void sequencesGoOnAfterReopen() throws Exception {
+        MessageLog log = MessageLog.open(directory);
+        long seen = append(log, "games", "before 1");
+        append(log, "games", "before 2");
+        long end = log.end();
+        log.close();
+        log = MessageLog.open(directory);
+        try {
+            assertEquals(end, log.end());
+            assertTrue(append(log, "games", "after") > end);
+            assertEquals(List.of("before 2", "after"), texts(log.since("games", seen, 10)));
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    /**
+     * The replay goes back over the segments the log rolled to while the client was away.
+     *
+     * @throws Exception if the log fails
+     */
+    @Test
+    void sinceReadsAcrossSegments() throws Exception {
+        MessageLog log = MessageLog.open(directory);
+        try {
+            String padding = "x".repeat(32 * 1024);
+            long seen = append(log, "games", "seen");
+            List<String> expected = new ArrayList<String>();
+            int count = MessageLog.SEGMENT_BYTES / padding.length() + 10;
+            for (int i = 0; i < count; i++) {
+                expected.add(i + padding);
+                append(log, "games", i + padding);
+            }
+            try (Stream<Path> files = Files.list(directory)) {
+                assertTrue(files.count() > 1, "the log did not roll");
+            }
+            assertEquals(expected, texts(log.since("games", seen, Integer.MAX_VALUE)));
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    /**
+     * A room whose name does not fit into a record is not logged, and the records around it stay readable.
+     *
+     * @throws Exception if the log fails
+     */
+    @Test
+    void longRoomNameIsNotLogged() throws Exception {
+        MessageLog log = MessageLog.open(directory);
+        try {
+            String longRoom = "r".repeat(MessageLog.MAX_ROOM_BYTES + 1);
+            long seen = append(log, "games", "before");
+            assertEquals(-1, log.append(longRoom, FrameCodec.encode(FrameCodec.CHAT, "not logged")));
+            assertEquals(seen, log.end());
+            append(log, "games", "after");
+            String longestRoom = "r".repeat(MessageLog.MAX_ROOM_BYTES);
+            append(log, longestRoom, "longest name");
+            assertEquals(List.of("before", "after"), texts(log.since("games", 0, 10)));
+            assertEquals(List.of("longest name"), texts(log.since(longestRoom, seen, 10)));
+        }
+        finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Append a chat frame to the log.
+     *
+     * @param log the log
+     * @param room the room, or "" for everyone
+     * @param text the text of the frame
+     * @return long the sequence number of the record
+     */
+    private static long append(MessageLog log, String room, String text) {
+        long sequence = log.append(room, FrameCodec.encode(FrameCodec.CHAT, text));
+        assertTrue(sequence > 0, "the frame was not logged");
+        return sequence;
+    }
+
+    /**
+     * Get the texts of logged frames.
+     *
+     * @param messages the messages
+     * @return List of the texts
+     */
+    private static List<String> texts(List<MessageLog.Message> messages) {
+        List<String> texts = new ArrayList<String>();
+        for (MessageLog.Message message : messages) {
+            ByteBuffer frame = message.frame.duplicate();
+            assertEquals(FrameCodec.CHAT, frame.get(frame.position() + 4));
+            frame.position(frame.position() + FrameCodec.HEADER_LENGTH);
+            byte[] payload = new byte[frame.remaining()];
+            frame.get(payload);
+            texts.add(new String(payload, StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+}
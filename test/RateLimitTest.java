@@ -0,0 +1,79 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * RateLimitTest checks that a client which floods the room is disconnected, and reads why before the end of the stream.
+ * <br>It contains members: FLOOD,
+ * and methods: offenderReadsTheNoticeBeforeItIsClosed(String mode), everyLineOfAFrameIsCharged(String mode).
+ *
+ * @author Zhiyong Liu
+ */
+class RateLimitTest {
+
+    /**
+     * The number of lines the client sends at once, far more than the burst and the strikes of the test server allow.
+     */
+    private static final int FLOOD = 200;
+
+    /**
+     * The disconnect notice is written out before the server closes the connection of a repeat offender,
+     * in every execution mode.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or the client fails
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "virtual", "nio"})
+    void offenderReadsTheNoticeBeforeItIsClosed(String mode) throws Exception {
+        try (TestServer server = TestServer.start(mode, "-Dchatroom.rateMessageBurst=5", "-Dchatroom.rateMessagesPerSecond=1",
+                "-Dchatroom.rateMaxStrikes=10");
+             TestClient client = server.connect()) {
+            client.login("flooder");
+            StringBuilder flood = new StringBuilder();
+            for (int i = 0; i < FLOOD; i++) {
+                flood.append("message ").append(i).append('\n');
+            }
+            client.sendLine(flood.substring(0, flood.length() - 1));
+            List<String> lines = client.readLinesUntilClosed();
+            assertTrue(lines.contains("You are sending messages too fast, some of them are dropped."), "the first notice is missing");
+            assertEquals("You are disconnected for sending too many messages.", lines.get(lines.size() - 1),
+                    "the disconnect notice is not the last line before the end of the stream");
+        }
+    }
+
+    /**
+     * Every line of a CHAT frame with line breaks takes its own token, so one large frame can not flood the room:
+     * the other members get no more lines than the burst allows, and the sender is disconnected.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or the clients fail
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "virtual", "nio"})
+    void everyLineOfAFrameIsCharged(String mode) throws Exception {
+        try (TestServer server = TestServer.start(mode, "-Dchatroom.rateMessageBurst=5", "-Dchatroom.rateMessagesPerSecond=1",
+                "-Dchatroom.rateMaxStrikes=10");
+             TestClient flooder = server.connect();
+             TestClient reader = server.connect()) {
+            reader.login("reader");
+            flooder.loginBinary("flooder");
+            StringBuilder flood = new StringBuilder();
+            for (int i = 0; i < FLOOD; i++) {
+                flood.append("line ").append(i).append('\n');
+            }
+            flooder.sendFrame(FrameCodec.CHAT, flood.toString());
+            int delivered = 0;
+            String line;
+            while (!(line = reader.readLine()).contains("flooder has left the chat.")) {
+                if (line.contains("flooder: line ")) {
+                    delivered++;
+                }
+            }
+            assertTrue(delivered <= 5, delivered + " lines of one frame were broadcast");
+        }
+    }
+}
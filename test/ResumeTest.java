@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * ResumeTest checks that a client which resumes its session returns to its room, and that the room is told so.
+ * <br>It contains members: RETRY_MILLIS,
+ * and methods: noticeGoesToTheResumedRoom(String mode), loginForTokens(TestClient client, String name),
+ * resume(TestServer server, String token).
+ *
+ * @author Zhiyong Liu
+ */
+class ResumeTest {
+
+    /**
+     * The time between two attempts to resume, while the server has not noticed yet that the old connection is closed.
+     */
+    private static final int RETRY_MILLIS = 50;
+
+    /**
+     * A client which was the last member of its room resumes into it: the notice goes into the history of that room,
+     * where the next member finds it, and not to the lobby.
+     *
+     * @param mode the execution mode of the server
+     * @throws Exception if the server or the client fails
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"thread", "nio"})
+    void noticeGoesToTheResumedRoom(String mode) throws Exception {
+        try (TestServer server = TestServer.start(mode);
+             TestClient lobby = server.connect()) {
+            lobby.login("carol");
+            String token;
+            try (TestClient alice = server.connect()) {
+                loginForTokens(alice, "alice");
+                alice.sendLine("\\join games");
+                token = alice.readLineContaining("\\token ");
+            }
+            try (TestClient alice = resume(server, token)) {
+                alice.sendLine("resumed");
+                alice.readLineContaining("alice: resumed");
+                lobby.sendLine("marker");
+                String line;
+                while (!(line = lobby.readLine()).contains("carol: marker")) {
+                    assertFalse(line.contains("alice is back"), "the lobby got the notice of room games");
+                }
+                try (TestClient dave = server.connect()) {
+                    dave.login("dave");
+                    dave.sendLine("\\join games");
+                    dave.readLineContaining("------ Recent messages in games ------");
+                    dave.readLineContaining("alice is back");
+                }
+            }
+        }
+    }
+
+    /**
+     * Enter the chat like the client does, asking for tokens first, and skip the token of the lobby.
+     *
+     * @param client the connection
+     * @param name the username
+     * @throws IOException if the server does not accept the name
+     */
+    private static void loginForTokens(TestClient client, String name) throws IOException {
+        client.readLineContaining(ClientProtocol.WELCOME);
+        client.sendLine("\\resume");
+        client.readLineContaining(ClientProtocol.WELCOME);
+        client.sendLine(name);
+        client.readLineContaining(ClientProtocol.ACCEPT);
+        client.readLineContaining("\\token ");
+    }
+
+    /**
+     * Resume a session on a new connection, as soon as the server released the username of the old one.
+     *
+     * @param server the server
+     * @param token the last token line the old connection got
+     * @return TestClient the connection, after the token of the resumed session
+     * @throws Exception if the session is not resumed in time
+     */
+    private static TestClient resume(TestServer server, String token) throws Exception {
+        long deadline = System.currentTimeMillis() + TestClient.TIMEOUT_MILLIS;
+        while (true) {
+            TestClient client = server.connect();
+            client.readLineContaining(ClientProtocol.WELCOME);
+            client.sendLine("\\resume " + token.substring("\\token ".length()));
+            String line = client.readLine();
+            while (!line.contains(ClientProtocol.ACCEPT) && !line.contains("unavailable")) {
+                line = client.readLine();
+            }
+            if (line.contains(ClientProtocol.ACCEPT)) {
+                client.readLineContaining("\\token ");
+                return client;
+            }
+            client.close();
+            assertTrue(System.currentTimeMillis() < deadline, "the old session was not released");
+            Thread.sleep(RETRY_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * SessionRegistryTest drives SessionRegistry from many threads at once and checks that reserve, release, joinRoom
+ * and leaveRoom never lose an entry or give one username to two clients. It also checks that the recent histories
+ * outlive their rooms and are capped.
+ * <br>It contains members: THREADS, ROUNDS, NAMES, ROOMS,
+ * and methods: churnNeverDuplicatesNames(), keptEntriesAreAllFound(), entriesCanBeIteratedDuringChurn(),
+ * historyOutlivesTheRoom(), historiesAreCapped(), runThreads(int count, Worker worker).
+ *
+ * @author Zhiyong Liu
+ */
+class SessionRegistryTest {
+
+    /**
+     * The number of threads which use the registry at once.
+     */
+    private static final int THREADS = 8;
+
+    /**
+     * The number of operations of each thread.
+     */
+    private static final int ROUNDS = 20000;
+
+    /**
+     * The number of usernames the threads fight for.
+     */
+    private static final int NAMES = 32;
+
+    /**
+     * The rooms the clients move between.
+     */
+    private static final String[] ROOMS = {SessionRegistry.LOBBY, "games", "music", "news"};
+
+    /**
+     * Threads which reserve the same usernames at once never hold one name together, and the registry
+     * and all the rooms are empty once every name is released.
+     *
+     * @throws Exception if a thread fails
+     */
+    @Test
+    void churnNeverDuplicatesNames() throws Exception {
+        SessionRegistry registry = new SessionRegistry();
+        AtomicInteger[] holders = new AtomicInteger[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            holders[i] = new AtomicInteger(0);
+        }
+        AtomicInteger reserved = new AtomicInteger(0);
+        AtomicInteger released = new AtomicInteger(0);
+        runThreads(THREADS, new Worker() {
+            public void run(int thread, Random random) {
+                for (int round = 0; round < ROUNDS; round++) {
+                    int name = random.nextInt(NAMES);
+                    SessionRegistry.Entry entry = registry.reserve("user" + name, null);
+                    if (entry == null) {
+                        continue;
+                    }
+                    reserved.incrementAndGet();
+                    assertEquals(1, holders[name].incrementAndGet(), "user" + name + " is held twice");
+                    assertSame(entry, registry.get("user" + name));
+                    for (int move = random.nextInt(3); move >= 0; move--) {
+                        SessionRegistry.Room room = registry.joinRoom(entry, ROOMS[random.nextInt(ROOMS.length)]);
+                        assertTrue(room.members.contains(entry));
+                        assertSame(room, entry.room);
+                    }
+                    if (random.nextBoolean()) {
+                        registry.leaveRoom(entry);
+                    }
+                    holders[name].decrementAndGet();
+                    assertTrue(registry.release(entry));
+                    assertFalse(registry.release(entry), "an entry is released twice");
+                    released.incrementAndGet();
+                }
+            }
+        });
+        assertTrue(reserved.get() > 0);
+        assertEquals(reserved.get(), released.get());
+        assertEquals(0, registry.size());
+        assertTrue(registry.entries().isEmpty());
+        for (String room : ROOMS) {
+            assertNull(registry.getRoom(room), "room " + room + " is kept without members");
+        }
+    }
+
+    /**
+     * Entries which stay in the registry after the churn are all found, each of them exactly once, in exactly
+     * the room it joined last.
+     *
+     * @throws Exception if a thread fails
+     */
+    @Test
+    void keptEntriesAreAllFound() throws Exception {
+        SessionRegistry registry = new SessionRegistry();
+        Map<String, String> lastRooms = new ConcurrentHashMap<String, String>();
+        runThreads(THREADS, new Worker() {
+            public void run(int thread, Random random) {
+                List<SessionRegistry.Entry> mine = new ArrayList<SessionRegistry.Entry>();
+                for (int round = 0; round < ROUNDS / 10; round++) {
+                    // Every thread has names of its own, so every reservation must succeed.
+                    SessionRegistry.Entry entry = registry.reserve("t" + thread + "-" + round, null);
+                    assertNotNull(entry);
+                    registry.joinRoom(entry, ROOMS[random.nextInt(ROOMS.length)]);
+                    mine.add(entry);
+                    if (random.nextInt(3) == 0) {
+                        SessionRegistry.Entry leaving = mine.remove(random.nextInt(mine.size()));
+                        assertTrue(registry.release(leaving));
+                        lastRooms.remove(leaving.name);
+                    }
+                }
+                for (SessionRegistry.Entry entry : mine) {
+                    String room = ROOMS[random.nextInt(ROOMS.length)];
+                    registry.joinRoom(entry, room);
+                    lastRooms.put(entry.name, room);
+                }
+            }
+        });
+        assertEquals(lastRooms.size(), registry.size());
+        Set<String> names = new HashSet<String>();
+        for (SessionRegistry.Entry entry : registry.entries()) {
+            assertTrue(names.add(entry.name), entry.name + " is in the registry twice");
+            assertEquals(lastRooms.get(entry.name), entry.room.name);
+        }
+        assertEquals(lastRooms.keySet(), names);
+        int members = 0;
+        for (String roomName : ROOMS) {
+            SessionRegistry.Room room = registry.getRoom(roomName);
+            if (room == null) {
+                continue;
+            }
+            for (SessionRegistry.Entry member : room.members) {
+                assertSame(room, member.room, member.name + " is a member of a room it is not in");
+                members++;
+            }
+        }
+        assertEquals(lastRooms.size(), members, "a client is in no room or in two rooms");
+    }
+
+    /**
+     * Broadcasts walk the entries and the members of a room while clients join and leave, without locking.
+     *
+     * @throws Exception if a thread fails
+     */
+    @Test
+    void entriesCanBeIteratedDuringChurn() throws Exception {
+        SessionRegistry registry = new SessionRegistry();
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread walker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        for (SessionRegistry.Entry entry : registry.entries()) {
+                            assertNotNull(entry.name);
+                        }
+                        SessionRegistry.Room lobby = registry.getRoom(SessionRegistry.LOBBY);
+                        if (lobby != null) {
+                            for (SessionRegistry.Entry member : lobby.members) {
+                                assertNotNull(member.name);
+                            }
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        walker.start();
+        runThreads(THREADS, new Worker() {
+            public void run(int thread, Random random) {
+                for (int round = 0; round < ROUNDS; round++) {
+                    SessionRegistry.Entry entry = registry.reserve("t" + thread + "-" + round, null);
+                    registry.joinRoom(entry, SessionRegistry.LOBBY);
+                    registry.release(entry);
+                }
+            }
+        });
+        walker.interrupt();
+        walker.join();
+        assertNull(failure.get());
+        assertEquals(0, registry.size());
+    }
+
+    /**
+     * The recent history of a room is still there after its last member left, and the room created again by
+     * the next member shares it.
+     */
+    @Test
+    void historyOutlivesTheRoom() {
+        SessionRegistry registry = new SessionRegistry();
+        SessionRegistry.Entry entry = registry.reserve("alice", null);
+        SessionRegistry.Room room = registry.joinRoom(entry, "games");
+        room.history.add(ByteBuffer.wrap("hello\n".getBytes(StandardCharsets.UTF_8)));
+        registry.joinRoom(entry, SessionRegistry.LOBBY);
+        assertNull(registry.getRoom("games"));
+        RecentHistory history = registry.getHistory("games");
+        assertNotNull(history, "the history is lost with the room");
+        assertEquals(1, history.recent().size());
+        assertSame(history, registry.joinRoom(entry, "games").history);
+        assertNull(registry.getHistory("music"));
+    }
+
+    /**
+     * At most MAX_HISTORIES histories are kept. The history of the room which has been quiet the longest is
+     * dropped first, and the history of a room with members is never dropped.
+     *
+     * @throws Exception if the thread is interrupted
+     */
+    @Test
+    void historiesAreCapped() throws Exception {
+        SessionRegistry registry = new SessionRegistry();
+        SessionRegistry.Entry member = registry.reserve("member", null);
+        registry.joinRoom(member, "kept");
+        SessionRegistry.Entry visitor = registry.reserve("visitor", null);
+        for (int i = 0; i < SessionRegistry.MAX_HISTORIES + 10; i++) {
+            registry.joinRoom(visitor, "room" + i);
+            if (i == 0) {
+                // room0 is the oldest, but its history stays the newest.
+                Thread.sleep(5);
+            }
+        }
+        SessionRegistry.Entry speaker = registry.reserve("speaker", null);
+        registry.joinRoom(speaker, "room0").history.add(ByteBuffer.wrap("hi\n".getBytes(StandardCharsets.UTF_8)));
+        registry.joinRoom(speaker, "last");
+        registry.release(speaker);
+        registry.joinRoom(visitor, "new");
+        int kept = 0;
+        for (int i = 0; i < SessionRegistry.MAX_HISTORIES + 10; i++) {
+            if (registry.getHistory("room" + i) != null) {
+                kept++;
+            }
+        }
+        assertNotNull(registry.getHistory("kept"), "the history of a room with members is dropped");
+        assertNotNull(registry.getHistory("new"));
+        assertNotNull(registry.getHistory("room0"), "the history which was quiet the shortest is dropped");
+        assertTrue(kept + 3 <= SessionRegistry.MAX_HISTORIES, kept + " histories are kept");
+    }
+
+    /**
+     * Run a worker on several threads which all start at the same time, and rethrow the first failure.
+     *
+     * @param count the number of threads
+     * @param worker the worker
+     * @throws Exception if a worker fails
+     */
+    private static void runThreads(int count, Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(count);
+        CyclicBarrier start = new CyclicBarrier(count);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int i = 0; i < count; i++) {
+            int thread = i;
+            results.add(pool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    worker.run(thread, new Random(thread));
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> result : results) {
+                try {
+                    result.get(60, TimeUnit.SECONDS);
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Worker is the work of one thread of a stress test.
+     */
+    private interface Worker {
+
+        /**
+         * Do the work.
+         *
+         * @param thread the number of the thread
+         * @param random the random numbers of the thread
+         */
+        void run(int thread, Random random);
+    }
+}
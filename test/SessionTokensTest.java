@@ -0,0 +1,88 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * SessionTokensTest checks that a token gives back the username and the room it was issued for, and that changed,
+ * broken, expired and future tokens and the tokens of other nodes are refused.
+ * <br>It contains methods: tokenGivesBackNameAndRoom(), changedTokenIsRefused(), brokenTokenIsRefused(),
+ * tokenExpires(), tokenOfAnotherNodeIsRefused(), join(String... parts).
+ *
+ * @author Zhiyong Liu
+ */
+class SessionTokensTest {
+
+    /**
+     * A token keeps any username and room, and has no spaces, so it fits into one line of the protocol.
+     */
+    @Test
+    void tokenGivesBackNameAndRoom() {
+        String token = SessionTokens.issue("alice 你好", "games.night");
+        assertFalse(token.contains(" "));
+        assertArrayEquals(new String[] {"alice 你好", "games.night"}, SessionTokens.verify(token));
+    }
+
+    /**
+     * A token whose username, room, node, time or signature was changed is refused.
+     */
+    @Test
+    void changedTokenIsRefused() {
+        String[] alice = SessionTokens.issue("alice", "games").split("\\.");
+        String[] bob = SessionTokens.issue("bob", "lobby").split("\\.");
+        String[] other = SessionTokens.issue("alice", "games", "other-node", Long.parseLong(alice[3])).split("\\.");
+        assertNull(SessionTokens.verify(join(bob[0], alice[1], alice[2], alice[3], alice[4])));
+        assertNull(SessionTokens.verify(join(alice[0], bob[1], alice[2], alice[3], alice[4])));
+        assertNull(SessionTokens.verify(join(alice[0], alice[1], other[2], alice[3], alice[4])));
+        assertNull(SessionTokens.verify(join(alice[0], alice[1], alice[2], String.valueOf(Long.parseLong(alice[3]) + 1), alice[4])));
+        char last = alice[4].charAt(alice[4].length() - 1);
+        String signature = alice[4].substring(0, alice[4].length() - 1) + (last == 'A' ? 'B' : 'A');
+        assertNull(SessionTokens.verify(join(alice[0], alice[1], alice[2], alice[3], signature)));
+    }
+
+    /**
+     * A token which can not be parsed is refused without an exception.
+     */
+    @Test
+    void brokenTokenIsRefused() {
+        assertNull(SessionTokens.verify(""));
+        assertNull(SessionTokens.verify("a.b.c"));
+        assertNull(SessionTokens.verify("a.b.c.d"));
+        assertNull(SessionTokens.verify("a.b.c.d.e.f"));
+        assertNull(SessionTokens.verify("!!!.###.$$$.now.sig"));
+        String[] parts = SessionTokens.issue("alice", "games").split("\\.");
+        assertNull(SessionTokens.verify(join(parts[0], parts[1], parts[2], "soon", parts[4])));
+    }
+
+    /**
+     * A token can be used for TOKEN_MILLIS after it is issued, and not before it is issued.
+     */
+    @Test
+    void tokenExpires() {
+        long now = System.currentTimeMillis();
+        String node = ClusterNode.NODE_ID;
+        assertNotNull(SessionTokens.verify(SessionTokens.issue("alice", "games", node, now - SessionTokens.TOKEN_MILLIS + 60000)));
+        assertNull(SessionTokens.verify(SessionTokens.issue("alice", "games", node, now - SessionTokens.TOKEN_MILLIS - 1)));
+        assertNull(SessionTokens.verify(SessionTokens.issue("alice", "games", node, now + 60000)));
+    }
+
+    /**
+     * A token signed with the same key by another node is refused, because its sequence number is an offset in the
+     * message log of that node.
+     */
+    @Test
+    void tokenOfAnotherNodeIsRefused() {
+        long now = System.currentTimeMillis();
+        assertNotNull(SessionTokens.verify(SessionTokens.issue("alice", "games", ClusterNode.NODE_ID, now)));
+        assertNull(SessionTokens.verify(SessionTokens.issue("alice", "games", ClusterNode.NODE_ID + "-other", now)));
+    }
+
+    /**
+     * Join the parts of a token.
+     *
+     * @param parts the parts
+     * @return String
+     */
+    private static String join(String... parts) {
+        return String.join(".", parts);
+    }
+}
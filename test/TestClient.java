@@ -0,0 +1,249 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TestClient is a plain socket client of a TestServer, which speaks the text protocol or, after switchToBinary(),
+ * the frames of FrameCodec.
+ * <br>Every read waits at most TIMEOUT_MILLIS, so a test fails instead of hanging when the server stays silent.
+ * <br>It contains members: TIMEOUT_MILLIS, socket, in, out,
+ * and methods: login(String name), loginBinary(String name), switchToBinary(), sendLine(String line), readLine(),
+ * pollLine(int millis), readLineContaining(String text), readLinesUntilClosed(), sendFrame(byte type, String text), readFrame(), readFrameContaining(String text),
+ * close().
+ *
+ * @author Zhiyong Liu
+ */
+final class TestClient implements AutoCloseable {
+
+    /**
+     * The longest time a read waits.
+     */
+    static final int TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The socket connected to the server.
+     */
+    private final Socket socket;
+
+    /**
+     * The input stream of the socket. Lines are read byte by byte, so nothing of a binary frame is buffered
+     * by a line reader.
+     */
+    private final DataInputStream in;
+
+    /**
+     * The output stream of the socket.
+     */
+    private final OutputStream out;
+
+    /**
+     * The constructor of TestClient class.
+     *
+     * @param port the port number of the server
+     * @throws IOException if the connection fails
+     */
+    TestClient(int port) throws IOException {
+        this(new Socket("127.0.0.1", port));
+    }
+
+    /**
+     * The constructor of TestClient class for a socket which is already connected, e.g. a TLS socket.
+     *
+     * @param socket the socket connected to the server
+     * @throws IOException if the streams can not be created
+     */
+    TestClient(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * Enter the chat with a username over the text protocol.
+     *
+     * @param name the username
+     * @throws IOException if the server does not accept the name
+     */
+    void login(String name) throws IOException {
+        readLineContaining(ClientProtocol.WELCOME);
+        sendLine(name);
+        readLineContaining(ClientProtocol.ACCEPT);
+    }
+
+    /**
+     * Switch to binary frames and enter the chat with a username.
+     *
+     * @param name the username
+     * @throws IOException if the server does not accept the name
+     */
+    void loginBinary(String name) throws IOException {
+        readLineContaining(ClientProtocol.WELCOME);
+        switchToBinary();
+        sendFrame(FrameCodec.CHAT, name);
+        readFrameContaining(ClientProtocol.ACCEPT);
+    }
+
+    /**
+     * Ask for binary frames without compression and wait for the accept line.
+     *
+     * @throws IOException if the server does not accept
+     */
+    void switchToBinary() throws IOException {
+        sendLine(FrameCodec.BINARY_REQUEST);
+        readLineContaining(FrameCodec.BINARY_ACCEPT);
+    }
+
+    /**
+     * Send one text line.
+     *
+     * @param line the line without its line separator
+     * @throws IOException if an I/O error occurs
+     */
+    void sendLine(String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Read one text line.
+     *
+     * @return String the line without its line separator
+     * @throws IOException if the connection is closed or nothing arrives in time
+     */
+    String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("The connection is closed after \"" + line.toString(StandardCharsets.UTF_8) + "\"");
+            }
+            line.write(b);
+        }
+        String text = line.toString(StandardCharsets.UTF_8);
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Read one text line if it arrives within some time.
+     *
+     * @param millis the longest time to wait
+     * @return String the line without its line separator, or null if none arrived in time
+     * @throws IOException if the connection is closed
+     */
+    String pollLine(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+        try {
+            return readLine();
+        }
+        catch (SocketTimeoutException e) {
+            return null;
+        }
+        finally {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * Skip text lines until one contains the text.
+     *
+     * @param text the text to wait for
+     * @return String the line which contains it
+     * @throws IOException if the connection is closed or the line does not arrive in time
+     */
+    String readLineContaining(String text) throws IOException {
+        while (true) {
+            String line = readLine();
+            if (line.contains(text)) {
+                return line;
+            }
+        }
+    }
+
+    /**
+     * Read text lines until the server closes the connection. A reset also ends the lines, so the lines it
+     * discarded are missing.
+     *
+     * @return List of the lines
+     * @throws IOException if the connection is still open after TIMEOUT_MILLIS
+     */
+    List<String> readLinesUntilClosed() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        try {
+            while (true) {
+                lines.add(readLine());
+            }
+        }
+        catch (EOFException e) {
+            return lines;
+        }
+        catch (SocketException e) {
+            return lines;
+        }
+    }
+
+    /**
+     * Send one frame.
+     *
+     * @param type the type of the frame, see FrameCodec
+     * @param text the payload
+     * @throws IOException if an I/O error occurs
+     */
+    void sendFrame(byte type, String text) throws IOException {
+        ByteBuffer frame = FrameCodec.encode(type, text);
+        out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+        out.flush();
+    }
+
+    /**
+     * Read one frame. The frames must not be compressed.
+     *
+     * @return String the payload
+     * @throws IOException if the connection is closed or nothing arrives in time
+     */
+    String readFrame() throws IOException {
+        int length = in.readInt();
+        in.readByte();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skip frames until the payload of one contains the text.
+     *
+     * @param text the text to wait for
+     * @return String the payload which contains it
+     * @throws IOException if the connection is closed or the frame does not arrive in time
+     */
+    String readFrameContaining(String text) throws IOException {
+        while (true) {
+            String payload = readFrame();
+            if (payload.contains(text)) {
+                return payload;
+            }
+        }
+    }
+
+    /**
+     * Close the connection.
+     */
+    public void close() {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            System.err.println("Exception in close:\n" + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TestServer runs a chat room server in a child JVM on a free port, for the tests which talk to it over sockets.
+ * <br>The server gets the class path of the tests, no message log, no heartbeats and no idle timeout unless the
+ * options say otherwise, and is stopped when the test closes it.
+ * <br>It contains members: port, process,
+ * and methods: start(String mode, String... options), connect(), close(), freePort(), isListening(int port).
+ *
+ * @author Zhiyong Liu
+ */
+final class TestServer implements AutoCloseable {
+
+    /**
+     * The port number the server listens on.
+     */
+    final int port;
+
+    /**
+     * The process of the server.
+     */
+    private final Process process;
+
+    /**
+     * The constructor of TestServer class.
+     *
+     * @param port the port number the server listens on
+     * @param process the process of the server
+     */
+    private TestServer(int port, Process process) {
+        this.port = port;
+        this.process = process;
+    }
+
+    /**
+     * Start a server and wait until it accepts connections.
+     *
+     * @param mode the execution mode, "thread", "virtual" or "nio"
+     * @param options more system properties of the server, e.g. "-Dchatroom.rateMessagesPerSecond=1"; they
+     * override the defaults of the test
+     * @return TestServer
+     * @throws IOException if the server exits or does not start within 30 seconds
+     */
+    static TestServer start(String mode, String... options) throws IOException {
+        int port = freePort();
+        List<String> command = new ArrayList<String>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "-Dfile.encoding=UTF-8",
+                "-Dchatroom.port=" + port, "-Dchatroom.logLevel=off", "-Dchatroom.logDir=",
+                "-Dchatroom.heartbeatMillis=0", "-Dchatroom.idleTimeoutMillis=0"));
+        command.addAll(Arrays.asList(options));
+        command.addAll(Arrays.asList("Server", mode));
+        Process process = new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        TestServer server = new TestServer(port, process);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!isListening(port)) {
+            if (!process.isAlive()) {
+                throw new IOException("The server exited with " + process.exitValue());
+            }
+            if (System.nanoTime() > deadline) {
+                server.close();
+                throw new IOException("The server did not start within 30 seconds");
+            }
+            try {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException e) {
+                server.close();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the server");
+            }
+        }
+        return server;
+    }
+
+    /**
+     * Connect a new client to the server.
+     *
+     * @return TestClient
+     * @throws IOException if the connection fails
+     */
+    TestClient connect() throws IOException {
+        return new TestClient(port);
+    }
+
+    /**
+     * Stop the server, forcibly if it does not exit within 10 seconds.
+     */
+    public void close() {
+        process.destroy();
+        try {
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+        catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Find a port which nothing listens on.
+     *
+     * @return int
+     * @throws IOException if no port is free
+     */
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Test whether something accepts connections on a local port.
+     *
+     * @param port the port number
+     * @return boolean
+     */
+    private static boolean isListening(int port) {
+        Socket probe = new Socket();
+        try {
+            probe.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            try {
+                probe.close();
+            }
+            catch (IOException e) {
+                System.err.println("Exception in isListening:\n" + e.getMessage());
+            }
+        }
+    }
+}
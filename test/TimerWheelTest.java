@@ -0,0 +1,142 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * TimerWheelTest checks that the tasks of a TimerWheel run once, never before their delay and at most about one
+ * tick after it, and that cancelled tasks never run.
+ * <br>It contains members: TIMERS,
+ * and methods: taskRunsAfterItsDelay(), cancelledTaskNeverRuns(), everyTaskRunsOnce(), failingTaskDoesNotStopTheWheel().
+ *
+ * @author Zhiyong Liu
+ */
+class TimerWheelTest {
+
+    /**
+     * The number of timers scheduled at once.
+     */
+    private static final int TIMERS = 10000;
+
+    /**
+     * A task runs no sooner than its delay, and not much later.
+     *
+     * @throws Exception if the thread is interrupted
+     */
+    @Test
+    void taskRunsAfterItsDelay() throws Exception {
+        TimerWheel wheel = new TimerWheel().start();
+        long delayMillis = 3 * TimerWheel.TICK_MILLIS + 30;
+        AtomicLong ranNanos = new AtomicLong(0);
+        CountDownLatch ran = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(new Runnable() {
+            public void run() {
+                ranNanos.set(System.nanoTime());
+                ran.countDown();
+            }
+        }, delayMillis);
+        assertTrue(ran.await(10, TimeUnit.SECONDS), "the task did not run");
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(ranNanos.get() - start);
+        assertTrue(elapsedMillis >= delayMillis, "the task ran after " + elapsedMillis + " ms instead of " + delayMillis);
+        // One tick late at most, and some slack for a busy machine.
+        assertTrue(elapsedMillis < delayMillis + TimerWheel.TICK_MILLIS + 1000, "the task ran after " + elapsedMillis + " ms");
+    }
+
+    /**
+     * A task cancelled before it is due never runs, whether it is cancelled before or after the wheel took it in,
+     * while the other tasks of the same bucket still run.
+     *
+     * @throws Exception if the thread is interrupted
+     */
+    @Test
+    void cancelledTaskNeverRuns() throws Exception {
+        TimerWheel wheel = new TimerWheel().start();
+        AtomicInteger cancelledRuns = new AtomicInteger(0);
+        Runnable mustNotRun = new Runnable() {
+            public void run() {
+                cancelledRuns.incrementAndGet();
+            }
+        };
+        CountDownLatch kept = new CountDownLatch(1);
+        long delayMillis = 5 * TimerWheel.TICK_MILLIS;
+        wheel.schedule(mustNotRun, delayMillis).cancel();
+        TimerWheel.Timeout later = wheel.schedule(mustNotRun, delayMillis);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                kept.countDown();
+            }
+        }, delayMillis);
+        // Let the wheel put the timeout into its bucket before it is cancelled.
+        Thread.sleep(2 * TimerWheel.TICK_MILLIS);
+        later.cancel();
+        later.cancel();
+        assertTrue(kept.await(10, TimeUnit.SECONDS), "the task which was not cancelled did not run");
+        Thread.sleep(2 * TimerWheel.TICK_MILLIS);
+        assertEquals(0, cancelledRuns.get());
+    }
+
+    /**
+     * Many tasks scheduled from several threads at once each run exactly once.
+     *
+     * @throws Exception if the thread is interrupted
+     */
+    @Test
+    void everyTaskRunsOnce() throws Exception {
+        TimerWheel wheel = new TimerWheel().start();
+        AtomicInteger[] runs = new AtomicInteger[TIMERS];
+        CountDownLatch done = new CountDownLatch(TIMERS);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int first = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = first; i < TIMERS; i += threads.length) {
+                        AtomicInteger count = runs[i] = new AtomicInteger(0);
+                        wheel.schedule(new Runnable() {
+                            public void run() {
+                                count.incrementAndGet();
+                                done.countDown();
+                            }
+                        }, i % 10 * TimerWheel.TICK_MILLIS / 2);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS), done.getCount() + " tasks did not run");
+        Thread.sleep(2 * TimerWheel.TICK_MILLIS);
+        for (int i = 0; i < TIMERS; i++) {
+            assertEquals(1, runs[i].get(), "task " + i + " ran " + runs[i].get() + " times");
+        }
+    }
+
+    /**
+     * A task which throws does not stop the wheel, so the later tasks still run.
+     *
+     * @throws Exception if the thread is interrupted
+     */
+    @Test
+    void failingTaskDoesNotStopTheWheel() throws Exception {
+        TimerWheel wheel = new TimerWheel().start();
+        CountDownLatch ran = new CountDownLatch(1);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                throw new IllegalStateException("This exception is expected by the test.");
+            }
+        }, 0);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        }, 2 * TimerWheel.TICK_MILLIS);
+        assertTrue(ran.await(10, TimeUnit.SECONDS), "the wheel stopped after a failing task");
+    }
+}
@@ -0,0 +1,208 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.EOFException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * TlsTest runs the handshake between two TlsChannels on non-blocking channels and echoes text through them, and
+ * checks that a TLS server is reached by a standard TLS client.
+ * <br>It contains members: directory, keyStore,
+ * and methods: createKeyStore(), handshakeAndEcho(), wrongHostIsRefused(), serverChatsOverTls(),
+ * clientEngine(SSLContext context, String host, int port), exchange(TlsChannel server, SocketChannel serverChannel,
+ * TlsChannel client, SocketChannel clientChannel, String text), pump(TlsChannel tls, SocketChannel channel,
+ * ByteBuffer plain, StringBuilder received).
+ *
+ * @author Zhiyong Liu
+ */
+class TlsTest {
+
+    /**
+     * The directory of the key store, which is deleted after the tests.
+     */
+    @TempDir
+    static Path directory;
+
+    /**
+     * The path of the self-signed key store of the tests, which is also the trust store of the clients.
+     */
+    private static String keyStore;
+
+    /**
+     * Create the key store once for all the tests; keytool takes a while.
+     *
+     * @throws Exception if keytool fails
+     */
+    @BeforeAll
+    static void createKeyStore() throws Exception {
+        keyStore = directory.resolve("chatroom-test.p12").toString();
+        TlsContext.generateKeyStore(keyStore);
+    }
+
+    /**
+     * The handshake finishes on non-blocking channels, and a line sent by the client comes back unchanged.
+     * The line is longer than one record, so it is wrapped and unwrapped in pieces.
+     *
+     * @throws Exception if the handshake or the echo fails
+     */
+    @Test
+    void handshakeAndEcho() throws Exception {
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             SocketChannel clientChannel = SocketChannel.open(listener.getLocalAddress());
+             SocketChannel serverChannel = listener.accept()) {
+            clientChannel.configureBlocking(false);
+            serverChannel.configureBlocking(false);
+            SSLEngine serverEngine = TlsContext.createServerContext(keyStore).createSSLEngine();
+            serverEngine.setUseClientMode(false);
+            TlsChannel server = new TlsChannel(serverEngine);
+            TlsChannel client = new TlsChannel(clientEngine(TlsContext.createClientContext(keyStore), "localhost",
+                    listener.socket().getLocalPort()));
+            String text = "hello over tls " + "x".repeat(3 * TlsContext.APPLICATION_SIZE) + "\n";
+            assertEquals(text, exchange(server, serverChannel, client, clientChannel, text));
+            assertFalse(server.isHandshaking());
+            assertFalse(client.isHandshaking());
+            assertEquals("second line\n", exchange(server, serverChannel, client, clientChannel, "second line\n"));
+        }
+    }
+
+    /**
+     * A client which expects another host name refuses the certificate during the handshake.
+     *
+     * @throws Exception if the channels can not be opened
+     */
+    @Test
+    void wrongHostIsRefused() throws Exception {
+        try (ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             SocketChannel clientChannel = SocketChannel.open(listener.getLocalAddress());
+             SocketChannel serverChannel = listener.accept()) {
+            clientChannel.configureBlocking(false);
+            serverChannel.configureBlocking(false);
+            SSLEngine serverEngine = TlsContext.createServerContext(keyStore).createSSLEngine();
+            serverEngine.setUseClientMode(false);
+            TlsChannel server = new TlsChannel(serverEngine);
+            TlsChannel client = new TlsChannel(clientEngine(TlsContext.createClientContext(keyStore), "example.com",
+                    listener.socket().getLocalPort()));
+            assertThrows(SSLException.class, () -> exchange(server, serverChannel, client, clientChannel, "hello\n"));
+        }
+    }
+
+    /**
+     * A server started with TLS serves a standard TLS client: it checks the certificate, enters the chat and reads
+     * its own message.
+     *
+     * @throws Exception if the server or the client fails
+     */
+    @Test
+    void serverChatsOverTls() throws Exception {
+        try (TestServer server = TestServer.start("nio", "-Dchatroom.tls=true", "-Dchatroom.tlsKeyStore=" + keyStore)) {
+            SSLSocket socket = (SSLSocket) TlsContext.createClientContext(keyStore).getSocketFactory()
+                    .createSocket(new Socket("127.0.0.1", server.port), "localhost", server.port, true);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            try (TestClient client = new TestClient(socket)) {
+                client.login("secure");
+                client.sendLine("hello over tls");
+                assertTrue(client.readLineContaining("hello over tls").endsWith("secure: hello over tls"));
+            }
+        }
+    }
+
+    /**
+     * Create the engine of a client like TlsContext.clientEngine() does, but with the trust store of the test.
+     *
+     * @param context the client context
+     * @param host the host name the certificate must be issued for
+     * @param port the port number of the server
+     * @return SSLEngine with the handshake begun
+     * @throws Exception if the handshake can not begin
+     */
+    private static SSLEngine clientEngine(SSLContext context, String host, int port) throws Exception {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        engine.beginHandshake();
+        return engine;
+    }
+
+    /**
+     * Send a text from the client to the server, and the text the server received back to the client, driving both
+     * channels on this thread until the client has received it all.
+     *
+     * @param server the TLS state of the server side
+     * @param serverChannel the channel of the server side
+     * @param client the TLS state of the client side
+     * @param clientChannel the channel of the client side
+     * @param text the text to send
+     * @return String the text the client received
+     * @throws Exception if TLS fails or nothing comes back within 10 seconds
+     */
+    private static String exchange(TlsChannel server, SocketChannel serverChannel, TlsChannel client,
+                                   SocketChannel clientChannel, String text) throws Exception {
+        ByteBuffer request = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer echo = ByteBuffer.allocate(0);
+        StringBuilder atServer = new StringBuilder();
+        StringBuilder atClient = new StringBuilder();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (atClient.length() < text.length()) {
+            assertTrue(System.nanoTime() < deadline, "the exchange did not finish, the server has " + atServer.length()
+                    + " chars and the client " + atClient.length());
+            pump(client, clientChannel, request, atClient);
+            pump(server, serverChannel, echo, atServer);
+            if (!echo.hasRemaining() && atServer.length() > 0) {
+                // The server echoes what it received so far.
+                echo = ByteBuffer.wrap(atServer.toString().getBytes(StandardCharsets.UTF_8));
+                atServer.setLength(0);
+            }
+            Thread.sleep(1);
+        }
+        return atClient.toString();
+    }
+
+    /**
+     * Do one step of one side: read and unwrap what arrived, write the handshake data and the plain text to send.
+     *
+     * @param tls the TLS state of the side
+     * @param channel the channel of the side
+     * @param plain the plain text to send; its position is moved past what was sent
+     * @param received the plain text received so far
+     * @throws Exception if TLS fails or the other side closed the channel
+     */
+    private static void pump(TlsChannel tls, SocketChannel channel, ByteBuffer plain, StringBuilder received) throws Exception {
+        if (tls.read(channel) < 0) {
+            throw new EOFException("The other side closed the channel");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(TlsContext.APPLICATION_SIZE);
+        int n;
+        while ((n = tls.unwrap(buffer)) > 0) {
+            buffer.flip();
+            received.append(StandardCharsets.UTF_8.decode(buffer));
+            buffer.clear();
+        }
+        if (n < 0) {
+            throw new EOFException("The other side closed TLS");
+        }
+        tls.flush(channel);
+        if (plain.hasRemaining()) {
+            tls.write(channel, new ByteBuffer[] {plain}, 0, 1);
+        }
+    }
+}